@@ -0,0 +1,184 @@
+package com.sigmadrm.drmpacker;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.telephony.TelephonyManager;
+import java.util.Map;
+
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.common.util.NetworkTypeObserver;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.exoplayer.upstream.BandwidthMeter;
+import androidx.media3.exoplayer.upstream.DefaultBandwidthMeter;
+
+/**
+ * Persists bandwidth estimates per network, so that playback on a known network starts at the
+ * quality it ended at last time.
+ *
+ * <p>Networks are identified by their type and by a hash of the Wi-Fi SSID or the mobile operator,
+ * when these are available. Stored estimates decay towards the default estimate of the network
+ * type as they age, and are dropped once they are older than {@link #MAX_AGE_MS}.
+ */
+@UnstableApi
+public final class BandwidthEstimateStore {
+
+  /** The age at which a stored estimate counts half, in milliseconds. */
+  public static final long DEFAULT_HALF_LIFE_MS = 24 * 60 * 60 * 1000L;
+  /** The age after which a stored estimate is ignored and removed, in milliseconds. */
+  public static final long MAX_AGE_MS = 7 * DEFAULT_HALF_LIFE_MS;
+
+  private static final String PREFERENCES_NAME = "bandwidth_estimates";
+  private static final String BITRATE_SUFFIX = ".bitrate";
+  private static final String TIMESTAMP_SUFFIX = ".timestamp";
+  private static final String UNKNOWN_SSID = "<unknown ssid>";
+  /** The minimum interval between two writes of the estimate of a player. */
+  private static final long MIN_WRITE_INTERVAL_MS = 10_000;
+
+  private final Context context;
+  private final SharedPreferences preferences;
+  private final long halfLifeMs;
+
+  /**
+   * Loads the stored estimates and removes expired ones. Reads from disk, so it must not be called
+   * on the main thread.
+   *
+   * @param context    A context.
+   * @param halfLifeMs The age at which a stored estimate counts half, in milliseconds.
+   */
+  public BandwidthEstimateStore(Context context, long halfLifeMs) {
+    this.context = context.getApplicationContext();
+    this.halfLifeMs = halfLifeMs;
+    preferences = this.context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    removeExpiredEstimates();
+  }
+
+  /**
+   * Returns a bandwidth meter whose initial estimate for the current network type is the stored
+   * estimate of the current network, and whose estimates are written back to this store.
+   */
+  public DefaultBandwidthMeter buildBandwidthMeter() {
+    int networkType = NetworkTypeObserver.getInstance(context).getNetworkType();
+    DefaultBandwidthMeter.Builder builder = new DefaultBandwidthMeter.Builder(context);
+    long defaultEstimate = builder.build().getBitrateEstimate();
+    long estimate = getEstimate(getNetworkKey(context), defaultEstimate);
+    DefaultBandwidthMeter bandwidthMeter =
+            builder.setInitialBitrateEstimate(networkType, estimate).build();
+    bandwidthMeter.addEventListener(
+            new Handler(Looper.getMainLooper()), new PersistingListener());
+    return bandwidthMeter;
+  }
+
+  /**
+   * Returns the stored estimate of the network with {@code networkKey}, decayed by its age, or
+   * {@code defaultEstimate} if there is none.
+   */
+  public long getEstimate(String networkKey, long defaultEstimate) {
+    long bitrate = preferences.getLong(networkKey + BITRATE_SUFFIX, C.LENGTH_UNSET);
+    long timestampMs = preferences.getLong(networkKey + TIMESTAMP_SUFFIX, C.TIME_UNSET);
+    if (bitrate == C.LENGTH_UNSET || timestampMs == C.TIME_UNSET) {
+      return defaultEstimate;
+    }
+    return decay(bitrate, defaultEstimate, System.currentTimeMillis() - timestampMs, halfLifeMs);
+  }
+
+  /** Stores {@code bitrate} as the current estimate of the network with {@code networkKey}. */
+  public void putEstimate(String networkKey, long bitrate) {
+    preferences.edit()
+            .putLong(networkKey + BITRATE_SUFFIX, bitrate)
+            .putLong(networkKey + TIMESTAMP_SUFFIX, System.currentTimeMillis())
+            .apply();
+  }
+
+  /**
+   * Returns {@code storedEstimate} moved towards {@code defaultEstimate} by its age, such that it
+   * counts half after {@code halfLifeMs}. Returns {@code defaultEstimate} for estimates older than
+   * {@link #MAX_AGE_MS}.
+   */
+  /* package */ static long decay(long storedEstimate, long defaultEstimate, long ageMs,
+                                  long halfLifeMs) {
+    if (ageMs > MAX_AGE_MS) {
+      return defaultEstimate;
+    }
+    double weight = Math.pow(0.5, Math.max(0, ageMs) / (double) halfLifeMs);
+    return Math.round(defaultEstimate + (storedEstimate - defaultEstimate) * weight);
+  }
+
+  /** Returns the key identifying the network the device is currently connected to. */
+  public static String getNetworkKey(Context context) {
+    int networkType = NetworkTypeObserver.getInstance(context).getNetworkType();
+    @Nullable String identity = null;
+    if (networkType == C.NETWORK_TYPE_WIFI) {
+      WifiManager wifiManager =
+              (WifiManager) context.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+      WifiInfo wifiInfo = wifiManager != null ? wifiManager.getConnectionInfo() : null;
+      // The SSID is only available with the location permission.
+      String ssid = wifiInfo != null ? wifiInfo.getSSID() : null;
+      if (ssid != null && !UNKNOWN_SSID.equals(ssid)) {
+        identity = ssid;
+      }
+    } else if (isCellular(networkType)) {
+      TelephonyManager telephonyManager =
+              (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+      identity = telephonyManager != null ? telephonyManager.getNetworkOperator() : null;
+    }
+    return identity == null || identity.isEmpty()
+            ? String.valueOf(networkType)
+            : networkType + "-" + Integer.toHexString(identity.hashCode());
+  }
+
+  private static boolean isCellular(int networkType) {
+    switch (networkType) {
+      case C.NETWORK_TYPE_2G:
+      case C.NETWORK_TYPE_3G:
+      case C.NETWORK_TYPE_4G:
+      case C.NETWORK_TYPE_5G_NSA:
+      case C.NETWORK_TYPE_5G_SA:
+      case C.NETWORK_TYPE_CELLULAR_UNKNOWN:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private void removeExpiredEstimates() {
+    long nowMs = System.currentTimeMillis();
+    SharedPreferences.Editor editor = null;
+    for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+      String key = entry.getKey();
+      if (key.endsWith(TIMESTAMP_SUFFIX) && entry.getValue() instanceof Long
+              && nowMs - (Long) entry.getValue() > MAX_AGE_MS) {
+        String networkKey = key.substring(0, key.length() - TIMESTAMP_SUFFIX.length());
+        if (editor == null) {
+          editor = preferences.edit();
+        }
+        editor.remove(key).remove(networkKey + BITRATE_SUFFIX);
+      }
+    }
+    if (editor != null) {
+      editor.apply();
+    }
+  }
+
+  /** Writes the estimates of one bandwidth meter back, at most every few seconds. */
+  private final class PersistingListener implements BandwidthMeter.EventListener {
+
+    // The first samples are not written, as the estimate needs a few of them to settle.
+    private long lastWriteRealtimeMs = SystemClock.elapsedRealtime();
+
+    @Override
+    public void onBandwidthSample(int elapsedMs, long bytesTransferred, long bitrateEstimate) {
+      long nowMs = SystemClock.elapsedRealtime();
+      if (nowMs - lastWriteRealtimeMs < MIN_WRITE_INTERVAL_MS) {
+        return;
+      }
+      lastWriteRealtimeMs = nowMs;
+      putEstimate(getNetworkKey(context), bitrateEstimate);
+    }
+  }
+}
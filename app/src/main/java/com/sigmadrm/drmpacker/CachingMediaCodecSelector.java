@@ -0,0 +1,144 @@
+package com.sigmadrm.drmpacker;
+
+import android.util.Log;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.media3.common.MimeTypes;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.exoplayer.mediacodec.MediaCodecInfo;
+import androidx.media3.exoplayer.mediacodec.MediaCodecSelector;
+import androidx.media3.exoplayer.mediacodec.MediaCodecUtil;
+import androidx.media3.exoplayer.mediacodec.MediaCodecUtil.DecoderQueryException;
+
+/**
+ * A {@link MediaCodecSelector} that keeps decoder queries off the playback startup path using a
+ * {@link DecoderCapabilityCache}.
+ *
+ * <p>Only two kinds of queries are answered from the disk cache: queries that found no decoder on
+ * this build, and {@link #getPreferredDecoder} for queries made on this build before. Renderers
+ * need decoder infos that carry the platform codec capabilities, which cannot be persisted, so
+ * queries that find decoders still go through {@link MediaCodecUtil}, which enumerates {@code
+ * MediaCodecList} once per process and query. {@link #warmUp()} repeats the queries of the
+ * previous process in the background, filling the in-memory cache of {@link MediaCodecUtil}. This
+ * moves the enumeration off the path to the first frame when the warm-up finishes first, but does
+ * not avoid it.
+ */
+@UnstableApi
+public final class CachingMediaCodecSelector implements MediaCodecSelector {
+
+  private static final String TAG = "CachingCodecSelector";
+
+  /** The queries warmed up when nothing is cached yet, those of DRM protected DASH content. */
+  private static final DecoderCapabilityCache.Query[] DEFAULT_QUERIES = {
+          new DecoderCapabilityCache.Query(
+                  MimeTypes.VIDEO_H264, /* secure= */ true, /* tunneling= */ false),
+          new DecoderCapabilityCache.Query(
+                  MimeTypes.VIDEO_H264, /* secure= */ false, /* tunneling= */ false),
+          new DecoderCapabilityCache.Query(
+                  MimeTypes.VIDEO_H265, /* secure= */ true, /* tunneling= */ false),
+          new DecoderCapabilityCache.Query(
+                  MimeTypes.VIDEO_H265, /* secure= */ false, /* tunneling= */ false),
+          new DecoderCapabilityCache.Query(
+                  MimeTypes.AUDIO_AAC, /* secure= */ false, /* tunneling= */ false),
+  };
+
+  private final DecoderCapabilityCache cache;
+  private final Executor saveExecutor;
+  private final AtomicBoolean savePending;
+
+  /**
+   * @param cache        The cache, which may still be loading.
+   * @param saveExecutor The executor on which the cache is written to disk.
+   */
+  public CachingMediaCodecSelector(DecoderCapabilityCache cache, Executor saveExecutor) {
+    this.cache = cache;
+    this.saveExecutor = saveExecutor;
+    savePending = new AtomicBoolean();
+  }
+
+  /**
+   * Loads the cache and repeats its queries, or a default set of queries if it is empty. Blocks
+   * while decoders are enumerated, so it must not be called on the main thread.
+   */
+  public void warmUp() {
+    cache.load();
+    List<DecoderCapabilityCache.Query> queries = cache.getQueries();
+    if (queries.isEmpty()) {
+      Collections.addAll(queries, DEFAULT_QUERIES);
+    }
+    for (DecoderCapabilityCache.Query query : queries) {
+      try {
+        query(query);
+      } catch (DecoderQueryException e) {
+        Log.w(TAG, "Failed to query decoders for " + query.mimeType, e);
+      }
+    }
+  }
+
+  @NonNull
+  @Override
+  public List<MediaCodecInfo> getDecoderInfos(@NonNull String mimeType,
+                                              boolean requiresSecureDecoder,
+                                              boolean requiresTunnelingDecoder)
+          throws DecoderQueryException {
+    DecoderCapabilityCache.Query query = new DecoderCapabilityCache.Query(
+            mimeType, requiresSecureDecoder, requiresTunnelingDecoder);
+    List<DecoderCapabilityCache.DecoderCapabilities> cached = cache.get(query);
+    if (cached != null && cached.isEmpty()) {
+      return Collections.emptyList();
+    }
+    return query(query);
+  }
+
+  /**
+   * Returns the capabilities of the decoder preferred for {@code query}, or null if there is none.
+   * Answered from the cache if the query was made on this build before, otherwise blocks while
+   * decoders are enumerated.
+   */
+  @Nullable
+  public DecoderCapabilityCache.DecoderCapabilities getPreferredDecoder(
+          DecoderCapabilityCache.Query query) throws DecoderQueryException {
+    @Nullable List<DecoderCapabilityCache.DecoderCapabilities> decoders = cache.get(query);
+    if (decoders == null) {
+      query(query);
+      decoders = cache.get(query);
+    }
+    return decoders == null || decoders.isEmpty() ? null : decoders.get(0);
+  }
+
+  private List<MediaCodecInfo> query(DecoderCapabilityCache.Query query)
+          throws DecoderQueryException {
+    List<MediaCodecInfo> decoderInfos =
+            MediaCodecUtil.getDecoderInfos(query.mimeType, query.secure, query.tunneling);
+    List<DecoderCapabilityCache.DecoderCapabilities> decoders =
+            new ArrayList<>(decoderInfos.size());
+    for (MediaCodecInfo decoderInfo : decoderInfos) {
+      decoders.add(DecoderCapabilityCache.DecoderCapabilities.fromMediaCodecInfo(decoderInfo));
+    }
+    if (cache.put(query, decoders)) {
+      scheduleSave();
+    }
+    return decoderInfos;
+  }
+
+  private void scheduleSave() {
+    if (!savePending.compareAndSet(false, true)) {
+      return;
+    }
+    saveExecutor.execute(() -> {
+      savePending.set(false);
+      try {
+        cache.save();
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to save decoder capabilities", e);
+      }
+    });
+  }
+}
@@ -0,0 +1,415 @@
+package com.sigmadrm.drmpacker;
+
+import android.net.Uri;
+import android.util.Log;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.common.util.Util;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.DataSpec;
+import androidx.media3.datasource.HttpDataSource;
+import androidx.media3.datasource.TransferListener;
+import androidx.media3.exoplayer.dash.manifest.DashManifest;
+import androidx.media3.exoplayer.dash.manifest.DashManifestParser;
+import androidx.media3.exoplayer.upstream.ParsingLoadable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Caches DASH manifests, raw and parsed, and revalidates them with conditional requests.
+ *
+ * <p>Manifests loaded through {@link #createDataSourceFactory} are stored in memory and on disk
+ * together with their {@code ETag} and {@code Last-Modified} headers, which are sent as {@code
+ * If-None-Match} and {@code If-Modified-Since} when the manifest is loaded again. When the server
+ * answers {@code 304 Not Modified}, the stored manifest is served instead, and {@link
+ * #getManifestParser()} returns the manifest parsed before rather than parsing it again. If the
+ * server cannot be reached or fails with a server error, the stored manifest is served as well.
+ * Other error responses, such as {@code 404 Not Found}, are passed on.
+ *
+ * <p>Parsed manifests are only kept in memory. {@link #warmUp()} parses the most recently stored
+ * manifests ahead of playback, so that the first load of a process finds them parsed too.
+ */
+@UnstableApi
+public final class DashManifestCache {
+
+  private static final String TAG = "DashManifestCache";
+
+  /** The number of manifests whose parsed form is kept in memory. */
+  private static final int MAX_MEMORY_ENTRIES = 8;
+  /** The largest manifest that is cached, in bytes. */
+  private static final int MAX_MANIFEST_BYTES = 4 * 1024 * 1024;
+
+  private final File directory;
+  private final DashManifestParser manifestParser;
+  // Ordered from least to most recently used.
+  private final LinkedHashMap<String, Entry> memoryEntries;
+  // Entries whose data is being served for a not modified response, by the URI passed to parsers.
+  private final Map<String, Entry> notModifiedEntries;
+  // Manifests parsed from responses that are still being read, by the URI passed to parsers.
+  private final Map<String, DashManifest> pendingManifests;
+
+  /** @param directory The directory in which manifests are stored. */
+  public DashManifestCache(File directory) {
+    this.directory = directory;
+    manifestParser = new DashManifestParser();
+    memoryEntries = new LinkedHashMap<>(
+            /* initialCapacity= */ 16, /* loadFactor= */ 0.75f, /* accessOrder= */ true);
+    notModifiedEntries = new ConcurrentHashMap<>();
+    pendingManifests = new ConcurrentHashMap<>();
+  }
+
+  /** Returns a factory for manifest data sources that read through this cache. */
+  public DataSource.Factory createDataSourceFactory(HttpDataSource.Factory upstreamFactory) {
+    return () -> new ConditionalDataSource(upstreamFactory.createDataSource());
+  }
+
+  /**
+   * Returns a parser that reuses the manifest parsed before when the manifest was not modified.
+   * Manifests must be loaded through a data source of {@link #createDataSourceFactory}.
+   */
+  public ParsingLoadable.Parser<DashManifest> getManifestParser() {
+    return (uri, inputStream) -> {
+      String key = uri.toString();
+      @Nullable Entry notModifiedEntry = notModifiedEntries.remove(key);
+      if (notModifiedEntry != null && notModifiedEntry.manifest != null) {
+        return notModifiedEntry.manifest;
+      }
+      DashManifest manifest = manifestParser.parse(uri, inputStream);
+      if (notModifiedEntry != null) {
+        notModifiedEntry.manifest = manifest;
+      } else {
+        pendingManifests.put(key, manifest);
+      }
+      return manifest;
+    };
+  }
+
+  /**
+   * Reads the most recently stored manifests into memory and parses them, as many as are kept in
+   * memory. Reads from disk and parses, so it must not be called on the main thread.
+   *
+   * @return The number of manifests parsed.
+   */
+  public int warmUp() {
+    @Nullable File[] metadataFiles = directory.listFiles(file -> file.getName().endsWith(".json"));
+    if (metadataFiles == null) {
+      return 0;
+    }
+    // Least recently stored first, so that the most recent one ends up most recently used.
+    Arrays.sort(metadataFiles, (first, second) ->
+            Long.compare(first.lastModified(), second.lastModified()));
+    int parsedCount = 0;
+    for (int i = Math.max(0, metadataFiles.length - MAX_MEMORY_ENTRIES);
+         i < metadataFiles.length; i++) {
+      String key;
+      try {
+        key = new JSONObject(new String(readFile(metadataFiles[i]), StandardCharsets.UTF_8))
+                .getString("uri");
+      } catch (IOException | JSONException e) {
+        Log.w(TAG, "Failed to read " + metadataFiles[i], e);
+        continue;
+      }
+      @Nullable Entry entry = readEntry(key);
+      if (entry == null) {
+        continue;
+      }
+      try {
+        entry.manifest = manifestParser.parse(
+                Uri.parse(entry.resolvedUri), new ByteArrayInputStream(entry.data));
+        parsedCount++;
+      } catch (IOException e) {
+        // Parsed again when it is loaded.
+        Log.w(TAG, "Failed to parse stored manifest of " + key, e);
+      }
+      putMemoryEntry(key, entry);
+    }
+    return parsedCount;
+  }
+
+  @Nullable
+  private Entry getEntry(String key) {
+    synchronized (memoryEntries) {
+      @Nullable Entry entry = memoryEntries.get(key);
+      if (entry != null) {
+        return entry;
+      }
+    }
+    @Nullable Entry entry = readEntry(key);
+    if (entry != null) {
+      putMemoryEntry(key, entry);
+    }
+    return entry;
+  }
+
+  private void putEntry(String key, Entry entry) {
+    putMemoryEntry(key, entry);
+    try {
+      writeEntry(key, entry);
+    } catch (IOException | JSONException e) {
+      Log.w(TAG, "Failed to store manifest of " + key, e);
+    }
+  }
+
+  private void putMemoryEntry(String key, Entry entry) {
+    synchronized (memoryEntries) {
+      memoryEntries.put(key, entry);
+      while (memoryEntries.size() > MAX_MEMORY_ENTRIES) {
+        memoryEntries.remove(memoryEntries.keySet().iterator().next());
+      }
+    }
+  }
+
+  @Nullable
+  private Entry readEntry(String key) {
+    File dataFile = getFile(key, ".mpd");
+    File metadataFile = getFile(key, ".json");
+    if (!dataFile.exists() || !metadataFile.exists()) {
+      return null;
+    }
+    try {
+      JSONObject metadata =
+              new JSONObject(new String(readFile(metadataFile), StandardCharsets.UTF_8));
+      if (!key.equals(metadata.getString("uri"))) {
+        return null;
+      }
+      return new Entry(
+              metadata.getString("resolvedUri"),
+              metadata.has("etag") ? metadata.getString("etag") : null,
+              metadata.has("lastModified") ? metadata.getString("lastModified") : null,
+              readFile(dataFile));
+    } catch (IOException | JSONException e) {
+      Log.w(TAG, "Failed to read manifest of " + key, e);
+      return null;
+    }
+  }
+
+  private void writeEntry(String key, Entry entry) throws IOException, JSONException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Failed to create " + directory);
+    }
+    JSONObject metadata = new JSONObject()
+            .put("uri", key)
+            .put("resolvedUri", entry.resolvedUri)
+            .putOpt("etag", entry.etag)
+            .putOpt("lastModified", entry.lastModified);
+    writeFile(getFile(key, ".mpd"), entry.data);
+    writeFile(getFile(key, ".json"), metadata.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  private File getFile(String key, String extension) {
+    return new File(directory, Integer.toHexString(key.hashCode()) + extension);
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    try (InputStream inputStream = new FileInputStream(file)) {
+      return Util.toByteArray(inputStream);
+    }
+  }
+
+  private static void writeFile(File file, byte[] data) throws IOException {
+    File tempFile = new File(file.getPath() + ".tmp");
+    try (OutputStream outputStream = new FileOutputStream(tempFile)) {
+      outputStream.write(data);
+    }
+    if (!tempFile.renameTo(file)) {
+      throw new IOException("Failed to rename " + tempFile);
+    }
+  }
+
+  @Nullable
+  private static String getHeader(Map<String, List<String>> headers, String name) {
+    for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+      if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+        return header.getValue().get(0);
+      }
+    }
+    return null;
+  }
+
+  /** A stored manifest. */
+  private static final class Entry {
+
+    public final String resolvedUri;
+    @Nullable public final String etag;
+    @Nullable public final String lastModified;
+    public final byte[] data;
+    @Nullable public volatile DashManifest manifest;
+
+    public Entry(String resolvedUri, @Nullable String etag, @Nullable String lastModified,
+                 byte[] data) {
+      this.resolvedUri = resolvedUri;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.data = data;
+    }
+  }
+
+  /**
+   * Loads manifests with conditional requests, serving the stored manifest when it was not
+   * modified, and stores the manifests it reads completely.
+   */
+  private final class ConditionalDataSource implements DataSource {
+
+    private final HttpDataSource upstream;
+
+    @Nullable private String key;
+    @Nullable private Entry replayEntry;
+    private int replayPosition;
+    @Nullable private ByteArrayOutputStream responseData;
+    private boolean reachedEndOfInput;
+
+    public ConditionalDataSource(HttpDataSource upstream) {
+      this.upstream = upstream;
+    }
+
+    @Override
+    public void addTransferListener(@NonNull TransferListener transferListener) {
+      upstream.addTransferListener(transferListener);
+    }
+
+    @Override
+    public long open(@NonNull DataSpec dataSpec) throws IOException {
+      key = dataSpec.uri.toString();
+      reachedEndOfInput = false;
+      if (dataSpec.position != 0 || dataSpec.length != C.LENGTH_UNSET) {
+        // Only whole manifests are cached.
+        responseData = null;
+        return upstream.open(dataSpec);
+      }
+      @Nullable Entry entry = getEntry(key);
+      DataSpec conditionalDataSpec = dataSpec;
+      if (entry != null) {
+        Map<String, String> headers = new HashMap<>();
+        if (entry.etag != null) {
+          headers.put("If-None-Match", entry.etag);
+        }
+        if (entry.lastModified != null) {
+          headers.put("If-Modified-Since", entry.lastModified);
+        }
+        conditionalDataSpec = dataSpec.withAdditionalHeaders(headers);
+      }
+      try {
+        long length = upstream.open(conditionalDataSpec);
+        responseData = new ByteArrayOutputStream(
+                length != C.LENGTH_UNSET && length <= MAX_MANIFEST_BYTES ? (int) length : 16_384);
+        return length;
+      } catch (HttpDataSource.InvalidResponseCodeException e) {
+        if (entry == null || (e.responseCode != 304 && e.responseCode < 500)) {
+          throw e;
+        }
+        if (e.responseCode != 304) {
+          Log.w(TAG, "Serving stored manifest of " + key + " after response " + e.responseCode);
+        }
+        return openReplay(entry);
+      } catch (HttpDataSource.HttpDataSourceException e) {
+        if (entry == null) {
+          throw e;
+        }
+        Log.w(TAG, "Serving stored manifest of " + key + " after load error", e);
+        return openReplay(entry);
+      }
+    }
+
+    @Override
+    public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+      @Nullable Entry replayEntry = this.replayEntry;
+      if (replayEntry != null) {
+        if (replayPosition == replayEntry.data.length) {
+          return C.RESULT_END_OF_INPUT;
+        }
+        int bytesRead = Math.min(length, replayEntry.data.length - replayPosition);
+        System.arraycopy(replayEntry.data, replayPosition, buffer, offset, bytesRead);
+        replayPosition += bytesRead;
+        return bytesRead;
+      }
+      int bytesRead = upstream.read(buffer, offset, length);
+      if (bytesRead == C.RESULT_END_OF_INPUT) {
+        reachedEndOfInput = true;
+      } else if (responseData != null) {
+        if (responseData.size() + bytesRead > MAX_MANIFEST_BYTES) {
+          responseData = null;
+        } else {
+          responseData.write(buffer, offset, bytesRead);
+        }
+      }
+      return bytesRead;
+    }
+
+    @Nullable
+    @Override
+    public Uri getUri() {
+      return replayEntry != null ? Uri.parse(replayEntry.resolvedUri) : upstream.getUri();
+    }
+
+    @NonNull
+    @Override
+    public Map<String, List<String>> getResponseHeaders() {
+      return replayEntry != null ? new HashMap<>() : upstream.getResponseHeaders();
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        if (replayEntry == null && responseData != null && key != null) {
+          storeResponse(key);
+        }
+      } finally {
+        replayEntry = null;
+        responseData = null;
+        upstream.close();
+      }
+    }
+
+    private long openReplay(Entry entry) {
+      replayEntry = entry;
+      replayPosition = 0;
+      // The parser may receive the URI after redirects, which is the one the entry is found by.
+      notModifiedEntries.put(entry.resolvedUri, entry);
+      return entry.data.length;
+    }
+
+    private void storeResponse(String key) throws IOException {
+      // Parsers may stop reading before the end of the document, so read the rest of it.
+      byte[] buffer = new byte[4096];
+      while (!reachedEndOfInput && responseData != null) {
+        read(buffer, 0, buffer.length);
+      }
+      @Nullable Uri uri = upstream.getUri();
+      String resolvedUri = uri != null ? uri.toString() : key;
+      // Removed even if the response is not stored, so that it does not stay behind.
+      @Nullable DashManifest manifest = pendingManifests.remove(resolvedUri);
+      if (responseData == null) {
+        return;
+      }
+      Map<String, List<String>> headers = upstream.getResponseHeaders();
+      @Nullable String etag = getHeader(headers, "ETag");
+      @Nullable String lastModified = getHeader(headers, "Last-Modified");
+      if (etag == null && lastModified == null) {
+        // Responses that cannot be revalidated, such as those of time servers, are not cached.
+        return;
+      }
+      Entry entry = new Entry(resolvedUri, etag, lastModified, responseData.toByteArray());
+      entry.manifest = manifest;
+      putEntry(key, entry);
+    }
+  }
+}
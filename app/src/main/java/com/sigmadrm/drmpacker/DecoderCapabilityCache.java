@@ -0,0 +1,309 @@
+package com.sigmadrm.drmpacker;
+
+import android.media.MediaCodecInfo.CodecCapabilities;
+import android.media.MediaCodecInfo.CodecProfileLevel;
+import android.media.MediaCodecInfo.VideoCapabilities;
+import android.os.Build;
+import android.util.Log;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.media3.common.Format;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.common.util.Util;
+import androidx.media3.exoplayer.mediacodec.MediaCodecInfo;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Persists the results of decoder queries, so that later processes know which queries find no
+ * decoder, and the capabilities of the decoders the others find, without enumerating {@code
+ * MediaCodecList}. It does not replace the enumeration for queries that find decoders, whose
+ * platform capabilities cannot be persisted, see {@link CachingMediaCodecSelector}.
+ *
+ * <p>Results are kept per query, a MIME type together with whether a secure and a tunneling
+ * decoder is required, and describe the capabilities of each decoder found. The cache is
+ * discarded when the build fingerprint changes, which is when the set of decoders can change.
+ */
+@UnstableApi
+public final class DecoderCapabilityCache {
+
+  /** The capabilities of one decoder. */
+  public static final class DecoderCapabilities {
+
+    /** The name of the decoder. */
+    public final String name;
+    /** The MIME type the decoder is configured with. */
+    public final String codecMimeType;
+    /** Whether the decoder is hardware accelerated. */
+    public final boolean hardwareAccelerated;
+    /** Whether the decoder is secure. */
+    public final boolean secure;
+    /** Whether the decoder supports tunneling. */
+    public final boolean tunneling;
+    /** The maximum supported video width, or {@link Format#NO_VALUE}. */
+    public final int maxWidth;
+    /** The maximum supported video height, or {@link Format#NO_VALUE}. */
+    public final int maxHeight;
+    /** The supported profiles. */
+    public final int[] profiles;
+    /** The number of instances the device supports, or {@link Format#NO_VALUE}. */
+    public final int maxInstances;
+
+    @VisibleForTesting
+    /* package */ DecoderCapabilities(String name, String codecMimeType,
+                                      boolean hardwareAccelerated, boolean secure,
+                                      boolean tunneling, int maxWidth, int maxHeight,
+                                      int[] profiles, int maxInstances) {
+      this.name = name;
+      this.codecMimeType = codecMimeType;
+      this.hardwareAccelerated = hardwareAccelerated;
+      this.secure = secure;
+      this.tunneling = tunneling;
+      this.maxWidth = maxWidth;
+      this.maxHeight = maxHeight;
+      this.profiles = profiles;
+      this.maxInstances = maxInstances;
+    }
+
+    /** Returns the capabilities of {@code decoderInfo}. */
+    public static DecoderCapabilities fromMediaCodecInfo(MediaCodecInfo decoderInfo) {
+      int maxWidth = Format.NO_VALUE;
+      int maxHeight = Format.NO_VALUE;
+      int[] profiles = new int[0];
+      int maxInstances = Format.NO_VALUE;
+      @Nullable CodecCapabilities capabilities = decoderInfo.capabilities;
+      if (capabilities != null) {
+        @Nullable VideoCapabilities videoCapabilities = capabilities.getVideoCapabilities();
+        if (videoCapabilities != null) {
+          maxWidth = videoCapabilities.getSupportedWidths().getUpper();
+          maxHeight = videoCapabilities.getSupportedHeights().getUpper();
+        }
+        CodecProfileLevel[] profileLevels = capabilities.profileLevels;
+        profiles = new int[profileLevels.length];
+        for (int i = 0; i < profileLevels.length; i++) {
+          profiles[i] = profileLevels[i].profile;
+        }
+        if (Util.SDK_INT >= 23) {
+          maxInstances = capabilities.getMaxSupportedInstances();
+        }
+      }
+      return new DecoderCapabilities(decoderInfo.name, decoderInfo.codecMimeType,
+              decoderInfo.hardwareAccelerated, decoderInfo.secure, decoderInfo.tunneling, maxWidth,
+              maxHeight, profiles, maxInstances);
+    }
+
+    private JSONObject toJson() throws JSONException {
+      JSONArray profilesJson = new JSONArray();
+      for (int profile : profiles) {
+        profilesJson.put(profile);
+      }
+      return new JSONObject()
+              .put("name", name)
+              .put("codecMimeType", codecMimeType)
+              .put("hardwareAccelerated", hardwareAccelerated)
+              .put("secure", secure)
+              .put("tunneling", tunneling)
+              .put("maxWidth", maxWidth)
+              .put("maxHeight", maxHeight)
+              .put("profiles", profilesJson)
+              .put("maxInstances", maxInstances);
+    }
+
+    private static DecoderCapabilities fromJson(JSONObject json) throws JSONException {
+      JSONArray profilesJson = json.getJSONArray("profiles");
+      int[] profiles = new int[profilesJson.length()];
+      for (int i = 0; i < profiles.length; i++) {
+        profiles[i] = profilesJson.getInt(i);
+      }
+      return new DecoderCapabilities(json.getString("name"), json.getString("codecMimeType"),
+              json.getBoolean("hardwareAccelerated"), json.getBoolean("secure"),
+              json.getBoolean("tunneling"), json.getInt("maxWidth"), json.getInt("maxHeight"),
+              profiles, json.optInt("maxInstances", Format.NO_VALUE));
+    }
+
+    @Override
+    public boolean equals(@Nullable Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (obj == null || getClass() != obj.getClass()) {
+        return false;
+      }
+      DecoderCapabilities other = (DecoderCapabilities) obj;
+      return name.equals(other.name) && codecMimeType.equals(other.codecMimeType)
+              && hardwareAccelerated == other.hardwareAccelerated && secure == other.secure
+              && tunneling == other.tunneling && maxWidth == other.maxWidth
+              && maxHeight == other.maxHeight && Arrays.equals(profiles, other.profiles)
+              && maxInstances == other.maxInstances;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * name.hashCode() + codecMimeType.hashCode();
+    }
+  }
+
+  /** A decoder query. */
+  public static final class Query {
+
+    /** The MIME type of the media to decode. */
+    public final String mimeType;
+    /** Whether a secure decoder is required. */
+    public final boolean secure;
+    /** Whether a tunneling decoder is required. */
+    public final boolean tunneling;
+
+    public Query(String mimeType, boolean secure, boolean tunneling) {
+      this.mimeType = mimeType;
+      this.secure = secure;
+      this.tunneling = tunneling;
+    }
+
+    @Override
+    public boolean equals(@Nullable Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (obj == null || getClass() != obj.getClass()) {
+        return false;
+      }
+      Query other = (Query) obj;
+      return mimeType.equals(other.mimeType) && secure == other.secure
+              && tunneling == other.tunneling;
+    }
+
+    @Override
+    public int hashCode() {
+      return 4 * mimeType.hashCode() + (secure ? 2 : 0) + (tunneling ? 1 : 0);
+    }
+  }
+
+  private static final String TAG = "DecoderCapabilityCache";
+
+  private final File file;
+  private final String fingerprint;
+  private final Map<Query, List<DecoderCapabilities>> decodersByQuery;
+
+  /** @param file The file in which the cache is persisted. */
+  public DecoderCapabilityCache(File file) {
+    this(file, Build.FINGERPRINT);
+  }
+
+  @VisibleForTesting
+  /* package */ DecoderCapabilityCache(File file, String fingerprint) {
+    this.file = file;
+    this.fingerprint = fingerprint;
+    decodersByQuery = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Loads the persisted results, unless they were written by a different build. Reads from disk,
+   * so it must not be called on the main thread.
+   */
+  public void load() {
+    if (!file.exists()) {
+      return;
+    }
+    try {
+      JSONObject json = new JSONObject(new String(readFile(file), StandardCharsets.UTF_8));
+      if (!fingerprint.equals(json.optString("fingerprint"))) {
+        Log.i(TAG, "Discarding decoder capabilities of a previous build");
+        return;
+      }
+      JSONArray queriesJson = json.getJSONArray("queries");
+      for (int i = 0; i < queriesJson.length(); i++) {
+        JSONObject queryJson = queriesJson.getJSONObject(i);
+        Query query = new Query(queryJson.getString("mimeType"), queryJson.getBoolean("secure"),
+                queryJson.getBoolean("tunneling"));
+        JSONArray decodersJson = queryJson.getJSONArray("decoders");
+        List<DecoderCapabilities> decoders = new ArrayList<>(decodersJson.length());
+        for (int j = 0; j < decodersJson.length(); j++) {
+          decoders.add(DecoderCapabilities.fromJson(decodersJson.getJSONObject(j)));
+        }
+        decodersByQuery.put(query, Collections.unmodifiableList(decoders));
+      }
+    } catch (IOException | JSONException e) {
+      Log.w(TAG, "Failed to load decoder capabilities", e);
+    }
+  }
+
+  /**
+   * Returns the decoders found by {@code query}, ordered by preference, or null if the query has
+   * not been made on this build.
+   */
+  @Nullable
+  public List<DecoderCapabilities> get(Query query) {
+    return decodersByQuery.get(query);
+  }
+
+  /** Returns all queries that have results. */
+  public List<Query> getQueries() {
+    return new ArrayList<>(decodersByQuery.keySet());
+  }
+
+  /**
+   * Records the decoders found by {@code query}.
+   *
+   * @return Whether the results differ from the ones recorded before.
+   */
+  public boolean put(Query query, List<DecoderCapabilities> decoders) {
+    List<DecoderCapabilities> previous =
+            decodersByQuery.put(query, Collections.unmodifiableList(new ArrayList<>(decoders)));
+    return !decoders.equals(previous);
+  }
+
+  /** Writes the results to disk. Must not be called on the main thread. */
+  public synchronized void save() throws IOException {
+    byte[] data;
+    try {
+      JSONArray queriesJson = new JSONArray();
+      for (Map.Entry<Query, List<DecoderCapabilities>> entry : decodersByQuery.entrySet()) {
+        JSONArray decodersJson = new JSONArray();
+        for (DecoderCapabilities decoder : entry.getValue()) {
+          decodersJson.put(decoder.toJson());
+        }
+        queriesJson.put(new JSONObject()
+                .put("mimeType", entry.getKey().mimeType)
+                .put("secure", entry.getKey().secure)
+                .put("tunneling", entry.getKey().tunneling)
+                .put("decoders", decodersJson));
+      }
+      data = new JSONObject()
+              .put("fingerprint", fingerprint)
+              .put("queries", queriesJson)
+              .toString()
+              .getBytes(StandardCharsets.UTF_8);
+    } catch (JSONException e) {
+      throw new IOException(e);
+    }
+    File tempFile = new File(file.getPath() + ".tmp");
+    try (OutputStream outputStream = new FileOutputStream(tempFile)) {
+      outputStream.write(data);
+    }
+    if (!tempFile.renameTo(file)) {
+      throw new IOException("Failed to rename " + tempFile);
+    }
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    try (InputStream inputStream = new FileInputStream(file)) {
+      return Util.toByteArray(inputStream);
+    }
+  }
+}
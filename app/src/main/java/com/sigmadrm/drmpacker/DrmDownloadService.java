@@ -0,0 +1,65 @@
+package com.sigmadrm.drmpacker;
+
+import android.app.Notification;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.exoplayer.offline.Download;
+import androidx.media3.exoplayer.offline.DownloadManager;
+import androidx.media3.exoplayer.offline.DownloadService;
+import androidx.media3.exoplayer.scheduler.PlatformScheduler;
+import androidx.media3.exoplayer.scheduler.Scheduler;
+
+/**
+ * Runs the downloads of {@link ExoplayerApplication#getDownloadManager()} in the foreground, and
+ * restarts them through the job scheduler when their requirements are met again.
+ */
+@UnstableApi
+public class DrmDownloadService extends DownloadService {
+
+  /** The id of the notification channel of download notifications. */
+  public static final String DOWNLOAD_NOTIFICATION_CHANNEL_ID = "download_channel";
+
+  private static final int FOREGROUND_NOTIFICATION_ID = 1;
+  private static final int JOB_ID = 1;
+
+  public DrmDownloadService() {
+    super(
+            FOREGROUND_NOTIFICATION_ID,
+            DEFAULT_FOREGROUND_NOTIFICATION_UPDATE_INTERVAL,
+            DOWNLOAD_NOTIFICATION_CHANNEL_ID,
+            R.string.download_channel_name,
+            /* channelDescriptionResourceId= */ 0);
+  }
+
+  @NonNull
+  @Override
+  protected DownloadManager getDownloadManager() {
+    // Called on the main thread, which waits for the manager to be built in the background rather
+    // than opening the download cache itself.
+    return StartupWarmup.await(((ExoplayerApplication) getApplication()).getDownloadManagerFuture());
+  }
+
+  @Nullable
+  @Override
+  protected Scheduler getScheduler() {
+    return new PlatformScheduler(this, JOB_ID);
+  }
+
+  @NonNull
+  @Override
+  protected Notification getForegroundNotification(@NonNull List<Download> downloads,
+                                                   int notMetRequirements) {
+    return ((ExoplayerApplication) getApplication())
+            .getDownloadNotificationHelper()
+            .buildProgressNotification(
+                    this,
+                    android.R.drawable.stat_sys_download,
+                    /* contentIntent= */ null,
+                    /* message= */ null,
+                    downloads,
+                    notMetRequirements);
+  }
+}
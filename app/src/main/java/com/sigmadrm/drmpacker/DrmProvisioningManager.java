@@ -0,0 +1,342 @@
+package com.sigmadrm.drmpacker;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.DeniedByServerException;
+import android.media.MediaCryptoException;
+import android.media.MediaDrmException;
+import android.media.NotProvisionedException;
+import android.os.Build;
+import android.os.PersistableBundle;
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.common.DrmInitData;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.decoder.CryptoConfig;
+import androidx.media3.exoplayer.analytics.PlayerId;
+import androidx.media3.exoplayer.drm.ExoMediaDrm;
+import androidx.media3.exoplayer.drm.MediaDrmCallback;
+import androidx.media3.exoplayer.drm.MediaDrmCallbackException;
+
+/**
+ * Provisions the device in the background, so that the first playback does not have to provision
+ * before it can request a license.
+ *
+ * <p>Success is remembered per build, so later processes do not probe the provisioning state
+ * again. Concurrent calls to {@link #provision()} share one attempt. License callbacks {@link
+ * #wrap wrapped} by the manager wait for an attempt in progress before they send a request, on the
+ * thread that executes the request rather than the playback thread, so that the request finds the
+ * device provisioned. A session that asked to be provisioned while the attempt was in progress
+ * does not send its own provisioning request once the attempt succeeded, and opens again instead.
+ */
+@UnstableApi
+public final class DrmProvisioningManager {
+
+  /** The longest time a {@link #wrap wrapped} callback waits for provisioning, in milliseconds. */
+  public static final long MAX_WAIT_MS = 10_000;
+
+  private static final String TAG = "DrmProvisioningManager";
+  private static final String PREFERENCES_NAME = "drm_provisioning";
+  private static final String KEY_PROVISIONED_FINGERPRINT = "provisioned_fingerprint";
+
+  // Returned for provisioning requests made redundant by a successful attempt, and skipped by the
+  // ExoMediaDrm instances of the manager's provider. Compared by identity.
+  private static final byte[] ALREADY_PROVISIONED = new byte[0];
+
+  private final SharedPreferences preferences;
+  private final ExoMediaDrm.Provider exoMediaDrmProvider;
+  private final ExoMediaDrm.Provider sessionExoMediaDrmProvider;
+  private final UUID uuid;
+  private final MediaDrmCallback callback;
+  private final ExecutorService executor;
+
+  @Nullable private Future<Boolean> provisioningFuture;
+
+  /**
+   * @param context             A context.
+   * @param exoMediaDrmProvider The provider of the {@link ExoMediaDrm} to provision.
+   * @param uuid                The UUID of the DRM scheme.
+   * @param callback            The callback that executes provisioning requests.
+   * @param executor            The executor on which provisioning runs, which should run nothing
+   *                            else so that provisioning starts right away.
+   */
+  public DrmProvisioningManager(Context context, ExoMediaDrm.Provider exoMediaDrmProvider,
+                                UUID uuid, MediaDrmCallback callback, ExecutorService executor) {
+    preferences = context.getApplicationContext()
+            .getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    this.exoMediaDrmProvider = exoMediaDrmProvider;
+    sessionExoMediaDrmProvider = drmUuid ->
+            new ProvisionedExoMediaDrm(exoMediaDrmProvider.acquireExoMediaDrm(drmUuid));
+    this.uuid = uuid;
+    this.callback = callback;
+    this.executor = executor;
+  }
+
+  /** Returns whether provisioning succeeded before on this build. Reads from disk. */
+  public boolean isProvisioned() {
+    return Build.FINGERPRINT.equals(preferences.getString(KEY_PROVISIONED_FINGERPRINT, null));
+  }
+
+  /**
+   * Provisions the device unless it is known to be provisioned. Returns the attempt in progress
+   * if there is one.
+   *
+   * @return A future that is true if the device is provisioned.
+   */
+  public synchronized Future<Boolean> provision() {
+    if (provisioningFuture == null || provisioningFuture.isDone()) {
+      provisioningFuture = executor.submit(this::provisionInternal);
+    }
+    return provisioningFuture;
+  }
+
+  /**
+   * Forgets that the device was provisioned, for example after the DRM reported that it is not.
+   * The next call to {@link #provision()} probes the provisioning state again.
+   */
+  public void invalidate() {
+    preferences.edit().remove(KEY_PROVISIONED_FINGERPRINT).apply();
+  }
+
+  /**
+   * Returns the provider of the {@link ExoMediaDrm} that the manager provisions, for the session
+   * managers that use a {@link #wrap wrapped} callback.
+   */
+  public ExoMediaDrm.Provider getExoMediaDrmProvider() {
+    return sessionExoMediaDrmProvider;
+  }
+
+  /**
+   * Returns a callback that waits for provisioning in progress, for at most {@link #MAX_WAIT_MS},
+   * before it executes a request of {@code delegate}. A provisioning request that waited for an
+   * attempt that succeeded is not sent, as the device is provisioned by then. Session managers
+   * must use the {@link #getExoMediaDrmProvider() provider} of this manager, whose {@link
+   * ExoMediaDrm} instances then skip the response, so that the session opens again.
+   */
+  public MediaDrmCallback wrap(MediaDrmCallback delegate) {
+    return new MediaDrmCallback() {
+      @NonNull
+      @Override
+      public byte[] executeProvisionRequest(@NonNull UUID uuid,
+                                            @NonNull ExoMediaDrm.ProvisionRequest request)
+              throws MediaDrmCallbackException {
+        if (awaitProvisioning()) {
+          // The request was made before the attempt provisioned the device, so it is stale.
+          Log.i(TAG, "Skipping provisioning request, provisioned in the background");
+          return ALREADY_PROVISIONED;
+        }
+        return delegate.executeProvisionRequest(uuid, request);
+      }
+
+      @NonNull
+      @Override
+      public byte[] executeKeyRequest(@NonNull UUID uuid, @NonNull ExoMediaDrm.KeyRequest request)
+              throws MediaDrmCallbackException {
+        awaitProvisioning();
+        return delegate.executeKeyRequest(uuid, request);
+      }
+    };
+  }
+
+  /**
+   * Waits for an attempt in progress, if any.
+   *
+   * @return Whether an attempt was in progress and provisioned the device.
+   */
+  private boolean awaitProvisioning() {
+    @Nullable Future<Boolean> provisioningFuture;
+    synchronized (this) {
+      provisioningFuture = this.provisioningFuture;
+    }
+    if (provisioningFuture == null || provisioningFuture.isDone()) {
+      return false;
+    }
+    long startTimeMs = SystemClock.elapsedRealtime();
+    boolean provisioned = false;
+    try {
+      provisioned = provisioningFuture.get(MAX_WAIT_MS, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException | TimeoutException e) {
+      // The session provisions by itself if it has to.
+      Log.w(TAG, "Background provisioning did not complete", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    Log.i(TAG, "Waited " + (SystemClock.elapsedRealtime() - startTimeMs) + "ms for provisioning");
+    return provisioned;
+  }
+
+  private boolean provisionInternal() {
+    if (isProvisioned()) {
+      return true;
+    }
+    long startTimeMs = SystemClock.elapsedRealtime();
+    try {
+      ExoMediaDrm mediaDrm = exoMediaDrmProvider.acquireExoMediaDrm(uuid);
+      try {
+        byte[] sessionId;
+        try {
+          sessionId = mediaDrm.openSession();
+        } catch (NotProvisionedException e) {
+          ExoMediaDrm.ProvisionRequest request = mediaDrm.getProvisionRequest();
+          mediaDrm.provideProvisionResponse(callback.executeProvisionRequest(uuid, request));
+          Log.i(TAG, "Provisioned in " + (SystemClock.elapsedRealtime() - startTimeMs) + "ms");
+          sessionId = mediaDrm.openSession();
+        }
+        mediaDrm.closeSession(sessionId);
+      } finally {
+        mediaDrm.release();
+      }
+    } catch (Exception e) {
+      Log.w(TAG, "Provisioning failed", e);
+      return false;
+    }
+    preferences.edit().putString(KEY_PROVISIONED_FINGERPRINT, Build.FINGERPRINT).apply();
+    return true;
+  }
+
+  /**
+   * Forwards to another {@link ExoMediaDrm}, but skips the response of provisioning requests that
+   * were not sent because the device was provisioned in the background.
+   */
+  private static final class ProvisionedExoMediaDrm implements ExoMediaDrm {
+
+    private final ExoMediaDrm mediaDrm;
+
+    private ProvisionedExoMediaDrm(ExoMediaDrm mediaDrm) {
+      this.mediaDrm = mediaDrm;
+    }
+
+    @Override
+    public void setOnEventListener(@Nullable OnEventListener listener) {
+      mediaDrm.setOnEventListener(listener);
+    }
+
+    @Override
+    public void setOnKeyStatusChangeListener(@Nullable OnKeyStatusChangeListener listener) {
+      mediaDrm.setOnKeyStatusChangeListener(listener);
+    }
+
+    @Override
+    public void setOnExpirationUpdateListener(@Nullable OnExpirationUpdateListener listener) {
+      mediaDrm.setOnExpirationUpdateListener(listener);
+    }
+
+    @Override
+    public byte[] openSession() throws MediaDrmException {
+      return mediaDrm.openSession();
+    }
+
+    @Override
+    public void closeSession(byte[] sessionId) {
+      mediaDrm.closeSession(sessionId);
+    }
+
+    @Override
+    public void setPlayerIdForSession(byte[] sessionId, PlayerId playerId) {
+      mediaDrm.setPlayerIdForSession(sessionId, playerId);
+    }
+
+    @Override
+    public KeyRequest getKeyRequest(byte[] scope,
+                                    @Nullable List<DrmInitData.SchemeData> schemeDatas,
+                                    int keyType,
+                                    @Nullable HashMap<String, String> optionalParameters)
+            throws NotProvisionedException {
+      return mediaDrm.getKeyRequest(scope, schemeDatas, keyType, optionalParameters);
+    }
+
+    @Nullable
+    @Override
+    public byte[] provideKeyResponse(byte[] scope, byte[] response)
+            throws NotProvisionedException, DeniedByServerException {
+      return mediaDrm.provideKeyResponse(scope, response);
+    }
+
+    @Override
+    public ProvisionRequest getProvisionRequest() {
+      return mediaDrm.getProvisionRequest();
+    }
+
+    @Override
+    public void provideProvisionResponse(byte[] response) throws DeniedByServerException {
+      if (response != ALREADY_PROVISIONED) {
+        mediaDrm.provideProvisionResponse(response);
+      }
+    }
+
+    @Override
+    public Map<String, String> queryKeyStatus(byte[] sessionId) {
+      return mediaDrm.queryKeyStatus(sessionId);
+    }
+
+    @Override
+    public boolean requiresSecureDecoder(byte[] sessionId, String mimeType) {
+      return mediaDrm.requiresSecureDecoder(sessionId, mimeType);
+    }
+
+    @Override
+    public void acquire() {
+      mediaDrm.acquire();
+    }
+
+    @Override
+    public void release() {
+      mediaDrm.release();
+    }
+
+    @Override
+    public void restoreKeys(byte[] sessionId, byte[] keySetId) {
+      mediaDrm.restoreKeys(sessionId, keySetId);
+    }
+
+    @Nullable
+    @Override
+    public PersistableBundle getMetrics() {
+      return mediaDrm.getMetrics();
+    }
+
+    @Override
+    public String getPropertyString(String propertyName) {
+      return mediaDrm.getPropertyString(propertyName);
+    }
+
+    @Override
+    public byte[] getPropertyByteArray(String propertyName) {
+      return mediaDrm.getPropertyByteArray(propertyName);
+    }
+
+    @Override
+    public void setPropertyString(String propertyName, String value) {
+      mediaDrm.setPropertyString(propertyName, value);
+    }
+
+    @Override
+    public void setPropertyByteArray(String propertyName, byte[] value) {
+      mediaDrm.setPropertyByteArray(propertyName, value);
+    }
+
+    @Override
+    public CryptoConfig createCryptoConfig(byte[] sessionId) throws MediaCryptoException {
+      return mediaDrm.createCryptoConfig(sessionId);
+    }
+
+    @Override
+    @C.CryptoType
+    public int getCryptoType() {
+      return mediaDrm.getCryptoType();
+    }
+  }
+}
@@ -0,0 +1,348 @@
+package com.sigmadrm.drmpacker;
+
+import android.media.DeniedByServerException;
+import android.media.MediaCryptoException;
+import android.media.MediaDrmException;
+import android.media.NotProvisionedException;
+import android.os.PersistableBundle;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.common.DrmInitData;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.common.util.Util;
+import androidx.media3.decoder.CryptoConfig;
+import androidx.media3.exoplayer.analytics.PlayerId;
+import androidx.media3.exoplayer.drm.ExoMediaDrm;
+
+/**
+ * Tracks the sessions of the {@link ExoMediaDrm} instances of a {@link #wrap wrapped} provider and
+ * the key requests made for them, so that work done on behalf of a session can be cancelled when
+ * the session is closed.
+ *
+ * <p>A {@code DrmSession} closes its DRM session when it is released, which happens when the user
+ * switches to another title. Key requests of a session that are still in flight at that point,
+ * and key requests superseded by a newer request of the same session, are cancelled through the
+ * {@link Registration} they were {@link #registerKeyRequest registered} with.
+ */
+@UnstableApi
+public final class DrmSessionTracker {
+
+  /** Receives the sessions of the {@link ExoMediaDrm} instances of one wrapped provider. */
+  public interface SessionListener {
+
+    /**
+     * Called on the thread that provided the keys when a key response was provided to an open
+     * session.
+     *
+     * @param mediaDrm  The untracked {@link ExoMediaDrm} the session belongs to.
+     * @param sessionId The ID of the session.
+     */
+    void onKeysLoaded(ExoMediaDrm mediaDrm, byte[] sessionId);
+
+    /** Called on the thread that closes the session before a session is closed. */
+    void onSessionClosed(byte[] sessionId);
+  }
+
+  /** A registered key request. */
+  public interface Registration {
+
+    /** Unregisters the key request once it completed. */
+    void unregister();
+  }
+
+  // Marks key requests whose session was closed or made a newer key request.
+  private static final String RETIRED = "";
+
+  private final Object lock;
+  // Guarded by lock. The registrations of the open sessions, by session ID in hex.
+  private final Map<String, List<KeyRequestRegistration>> registrationsBySession;
+  // Guarded by lock. The session of each key request, or RETIRED. Key requests do not override
+  // equals, so they are compared by identity, and are dropped once no longer referenced.
+  private final Map<ExoMediaDrm.KeyRequest, String> sessionsByKeyRequest;
+
+  public DrmSessionTracker() {
+    lock = new Object();
+    registrationsBySession = new HashMap<>();
+    sessionsByKeyRequest = new WeakHashMap<>();
+  }
+
+  /** Returns a provider whose {@link ExoMediaDrm} instances are tracked by this tracker. */
+  public ExoMediaDrm.Provider wrap(ExoMediaDrm.Provider provider) {
+    return wrap(provider, /* sessionListener= */ null);
+  }
+
+  /**
+   * Returns a provider whose {@link ExoMediaDrm} instances are tracked by this tracker, and whose
+   * sessions are reported to {@code sessionListener}.
+   */
+  public ExoMediaDrm.Provider wrap(ExoMediaDrm.Provider provider,
+                                   @Nullable SessionListener sessionListener) {
+    return uuid -> new TrackingExoMediaDrm(provider.acquireExoMediaDrm(uuid), sessionListener);
+  }
+
+  /**
+   * Registers an in-flight key request. {@code onCancel} is run when the session of the request
+   * is closed or makes a newer key request, on the thread doing so, or right away if that already
+   * happened. Requests that were not made by a tracked {@link ExoMediaDrm} are never cancelled.
+   *
+   * @return The registration, which must be {@link Registration#unregister() unregistered} once
+   *     the request completed.
+   */
+  public Registration registerKeyRequest(ExoMediaDrm.KeyRequest request, Runnable onCancel) {
+    KeyRequestRegistration registration = new KeyRequestRegistration(onCancel);
+    boolean retired;
+    synchronized (lock) {
+      @Nullable String sessionKey = sessionsByKeyRequest.get(request);
+      @Nullable List<KeyRequestRegistration> registrations =
+              sessionKey != null ? registrationsBySession.get(sessionKey) : null;
+      if (registrations != null) {
+        registration.sessionKey = sessionKey;
+        registrations.add(registration);
+      }
+      retired = RETIRED.equals(sessionKey);
+    }
+    if (retired) {
+      onCancel.run();
+    }
+    return registration;
+  }
+
+  private boolean isSessionOpen(byte[] sessionId) {
+    synchronized (lock) {
+      return registrationsBySession.containsKey(Util.toHexString(sessionId));
+    }
+  }
+
+  private void onSessionOpened(byte[] sessionId) {
+    synchronized (lock) {
+      registrationsBySession.put(Util.toHexString(sessionId), new ArrayList<>());
+    }
+  }
+
+  private void onKeyRequest(byte[] sessionId, ExoMediaDrm.KeyRequest request) {
+    String sessionKey = Util.toHexString(sessionId);
+    @Nullable List<KeyRequestRegistration> superseded;
+    synchronized (lock) {
+      superseded = retire(sessionKey);
+      if (superseded != null) {
+        registrationsBySession.put(sessionKey, new ArrayList<>());
+        sessionsByKeyRequest.put(request, sessionKey);
+      }
+    }
+    cancel(superseded);
+  }
+
+  private void onSessionClosed(byte[] sessionId) {
+    @Nullable List<KeyRequestRegistration> registrations;
+    synchronized (lock) {
+      registrations = retire(Util.toHexString(sessionId));
+    }
+    cancel(registrations);
+  }
+
+  /**
+   * Retires the key requests of a session and removes its registrations. Returns them, or null if
+   * the session is not open.
+   */
+  @Nullable
+  private List<KeyRequestRegistration> retire(String sessionKey) {
+    for (Map.Entry<ExoMediaDrm.KeyRequest, String> entry : sessionsByKeyRequest.entrySet()) {
+      if (sessionKey.equals(entry.getValue())) {
+        entry.setValue(RETIRED);
+      }
+    }
+    @Nullable List<KeyRequestRegistration> registrations =
+            registrationsBySession.remove(sessionKey);
+    if (registrations != null) {
+      for (KeyRequestRegistration registration : registrations) {
+        registration.sessionKey = null;
+      }
+    }
+    return registrations;
+  }
+
+  private static void cancel(@Nullable List<KeyRequestRegistration> registrations) {
+    if (registrations != null) {
+      for (KeyRequestRegistration registration : registrations) {
+        registration.onCancel.run();
+      }
+    }
+  }
+
+  private final class KeyRequestRegistration implements Registration {
+
+    private final Runnable onCancel;
+    // Guarded by lock. Null once the registration is no longer tracked.
+    @Nullable private String sessionKey;
+
+    private KeyRequestRegistration(Runnable onCancel) {
+      this.onCancel = onCancel;
+    }
+
+    @Override
+    public void unregister() {
+      synchronized (lock) {
+        if (sessionKey != null) {
+          @Nullable List<KeyRequestRegistration> registrations =
+                  registrationsBySession.get(sessionKey);
+          if (registrations != null) {
+            registrations.remove(this);
+          }
+          sessionKey = null;
+        }
+      }
+    }
+  }
+
+  /** Forwards to another {@link ExoMediaDrm} and reports its sessions and key requests. */
+  private final class TrackingExoMediaDrm implements ExoMediaDrm {
+
+    private final ExoMediaDrm mediaDrm;
+    @Nullable private final SessionListener sessionListener;
+
+    private TrackingExoMediaDrm(ExoMediaDrm mediaDrm, @Nullable SessionListener sessionListener) {
+      this.mediaDrm = mediaDrm;
+      this.sessionListener = sessionListener;
+    }
+
+    @Override
+    public void setOnEventListener(@Nullable OnEventListener listener) {
+      mediaDrm.setOnEventListener(listener);
+    }
+
+    @Override
+    public void setOnKeyStatusChangeListener(@Nullable OnKeyStatusChangeListener listener) {
+      mediaDrm.setOnKeyStatusChangeListener(listener);
+    }
+
+    @Override
+    public void setOnExpirationUpdateListener(@Nullable OnExpirationUpdateListener listener) {
+      mediaDrm.setOnExpirationUpdateListener(listener);
+    }
+
+    @Override
+    public byte[] openSession() throws MediaDrmException {
+      byte[] sessionId = mediaDrm.openSession();
+      onSessionOpened(sessionId);
+      return sessionId;
+    }
+
+    @Override
+    public void closeSession(byte[] sessionId) {
+      onSessionClosed(sessionId);
+      if (sessionListener != null) {
+        sessionListener.onSessionClosed(sessionId);
+      }
+      mediaDrm.closeSession(sessionId);
+    }
+
+    @Override
+    public void setPlayerIdForSession(byte[] sessionId, PlayerId playerId) {
+      mediaDrm.setPlayerIdForSession(sessionId, playerId);
+    }
+
+    @Override
+    public KeyRequest getKeyRequest(byte[] scope,
+                                    @Nullable List<DrmInitData.SchemeData> schemeDatas,
+                                    int keyType,
+                                    @Nullable HashMap<String, String> optionalParameters)
+            throws NotProvisionedException {
+      KeyRequest request = mediaDrm.getKeyRequest(scope, schemeDatas, keyType, optionalParameters);
+      if (keyType != KEY_TYPE_RELEASE) {
+        // The scope of other key types is a session ID.
+        onKeyRequest(scope, request);
+      }
+      return request;
+    }
+
+    @Nullable
+    @Override
+    public byte[] provideKeyResponse(byte[] scope, byte[] response)
+            throws NotProvisionedException, DeniedByServerException {
+      @Nullable byte[] keySetId = mediaDrm.provideKeyResponse(scope, response);
+      // The scope of release responses is a key set ID rather than a session ID.
+      if (sessionListener != null && isSessionOpen(scope)) {
+        sessionListener.onKeysLoaded(mediaDrm, scope);
+      }
+      return keySetId;
+    }
+
+    @Override
+    public ProvisionRequest getProvisionRequest() {
+      return mediaDrm.getProvisionRequest();
+    }
+
+    @Override
+    public void provideProvisionResponse(byte[] response) throws DeniedByServerException {
+      mediaDrm.provideProvisionResponse(response);
+    }
+
+    @Override
+    public Map<String, String> queryKeyStatus(byte[] sessionId) {
+      return mediaDrm.queryKeyStatus(sessionId);
+    }
+
+    @Override
+    public boolean requiresSecureDecoder(byte[] sessionId, String mimeType) {
+      return mediaDrm.requiresSecureDecoder(sessionId, mimeType);
+    }
+
+    @Override
+    public void acquire() {
+      mediaDrm.acquire();
+    }
+
+    @Override
+    public void release() {
+      mediaDrm.release();
+    }
+
+    @Override
+    public void restoreKeys(byte[] sessionId, byte[] keySetId) {
+      mediaDrm.restoreKeys(sessionId, keySetId);
+    }
+
+    @Nullable
+    @Override
+    public PersistableBundle getMetrics() {
+      return mediaDrm.getMetrics();
+    }
+
+    @Override
+    public String getPropertyString(String propertyName) {
+      return mediaDrm.getPropertyString(propertyName);
+    }
+
+    @Override
+    public byte[] getPropertyByteArray(String propertyName) {
+      return mediaDrm.getPropertyByteArray(propertyName);
+    }
+
+    @Override
+    public void setPropertyString(String propertyName, String value) {
+      mediaDrm.setPropertyString(propertyName, value);
+    }
+
+    @Override
+    public void setPropertyByteArray(String propertyName, byte[] value) {
+      mediaDrm.setPropertyByteArray(propertyName, value);
+    }
+
+    @Override
+    public CryptoConfig createCryptoConfig(byte[] sessionId) throws MediaCryptoException {
+      return mediaDrm.createCryptoConfig(sessionId);
+    }
+
+    @Override
+    @C.CryptoType
+    public int getCryptoType() {
+      return mediaDrm.getCryptoType();
+    }
+  }
+}
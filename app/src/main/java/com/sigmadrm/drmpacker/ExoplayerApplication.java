@@ -15,12 +15,26 @@
  */
 package com.sigmadrm.drmpacker;
 
+import android.app.ActivityManager;
 import android.app.Application;
+import android.media.NotProvisionedException;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.StrictMode;
+import android.os.Trace;
+import android.util.Log;
 
+import androidx.annotation.Nullable;
 import androidx.annotation.OptIn;
+import androidx.media3.common.C;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.util.Assertions;
+import androidx.media3.common.util.Clock;
 import androidx.media3.common.util.UnstableApi;
 import androidx.media3.common.util.Util;
 import androidx.media3.exoplayer.DefaultRenderersFactory;
+import androidx.media3.exoplayer.ExoPlayer;
 import androidx.media3.exoplayer.RenderersFactory;
 import androidx.media3.database.DatabaseProvider;
 import androidx.media3.database.ExoDatabaseProvider;
@@ -29,43 +43,705 @@ import androidx.media3.datasource.DefaultDataSourceFactory;
 import androidx.media3.datasource.DefaultHttpDataSource;
 import androidx.media3.datasource.HttpDataSource;
 import androidx.media3.datasource.cache.Cache;
+import androidx.media3.datasource.cache.CacheDataSink;
 import androidx.media3.datasource.cache.CacheDataSource;
 import androidx.media3.datasource.cache.NoOpCacheEvictor;
 import androidx.media3.datasource.cache.SimpleCache;
+import androidx.media3.exoplayer.dash.DashMediaSource;
+import androidx.media3.exoplayer.dash.DefaultDashChunkSource;
+import androidx.media3.exoplayer.dash.manifest.DashManifest;
+import androidx.media3.exoplayer.drm.DefaultDrmSessionManager;
+import androidx.media3.exoplayer.drm.DrmSession;
+import androidx.media3.exoplayer.drm.DrmSessionManager;
+import androidx.media3.exoplayer.drm.ExoMediaDrm;
+import androidx.media3.exoplayer.drm.MediaDrmCallback;
+import androidx.media3.exoplayer.offline.Download;
+import androidx.media3.exoplayer.offline.DownloadManager;
+import androidx.media3.exoplayer.offline.DownloadNotificationHelper;
+import androidx.media3.exoplayer.source.MediaSource;
+import androidx.media3.exoplayer.trackselection.DefaultTrackSelector;
+import androidx.media3.exoplayer.trackselection.TrackSelector;
+import androidx.media3.exoplayer.upstream.BandwidthMeter;
+import androidx.media3.exoplayer.upstream.DefaultBandwidthMeter;
+import androidx.media3.exoplayer.upstream.ParsingLoadable;
+
+import com.sigma.packer.SigmaMediaDrm;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Placeholder application to facilitate overriding Application methods for debugging and testing.
  */
 public class ExoplayerApplication extends Application {
 
+  private static final String TAG = "ExoplayerApplication";
   private static final String DOWNLOAD_CONTENT_DIRECTORY = "downloads";
+  private static final String SEGMENT_CACHE_DIRECTORY = "segments";
+  private static final String MANIFEST_CACHE_DIRECTORY = "manifests";
+  private static final String PLAYBACK_METRICS_DIRECTORY = "metrics";
+  private static final String DECODER_CAPABILITIES_FILE = "decoder_capabilities.json";
+
+  /** The default number of segments downloaded in parallel, shared by all downloads. */
+  private static final int DEFAULT_DOWNLOAD_SEGMENT_CONCURRENCY = 4;
+  /** The number of titles downloaded in parallel. */
+  private static final int MAX_PARALLEL_DOWNLOADS = 2;
+  /** The number of playlist items preloaded after the current one. */
+  private static final int PLAYLIST_LOOK_AHEAD_ITEMS = 2;
+  /** The number of media segments per track prefetched for each preloaded playlist item. */
+  private static final int PLAYLIST_PREFETCH_SEGMENTS = 2;
+
+  private static final String SETTINGS_PREFERENCES_NAME = "settings";
+  private static final String SEGMENT_CACHE_WRITE_THROUGH_KEY = "segment_cache_write_through";
+  private static final String OFFLINE_LICENSE_PREFETCH_KEY = "offline_license_prefetch";
+  private static final String DOWNLOAD_SEGMENT_CONCURRENCY_KEY = "download_segment_concurrency";
+  private static final String DOWNLOAD_MAX_BYTES_PER_SECOND_KEY = "download_max_bytes_per_second";
+  /** The absolute size budget of the segment cache, or {@link C#LENGTH_UNSET}. */
+  private static final long SEGMENT_CACHE_MAX_BYTES = 512L * 1024 * 1024;
+  /** The fraction of free space the segment cache may use, or 0. */
+  private static final float SEGMENT_CACHE_FREE_SPACE_FRACTION = 0.1f;
 
   protected String userAgent;
 
   private DatabaseProvider databaseProvider;
   private File downloadDirectory;
   private Cache downloadCache;
+  private Cache segmentCache;
+  private DownloadManager downloadManager;
+  private Future<DownloadManager> downloadManagerFuture;
+  private DownloadNotificationHelper downloadNotificationHelper;
+  private ThrottlingDataSource.Factory downloadDataSourceFactory;
+  private ThreadPoolExecutor downloadSegmentExecutor;
+  private SegmentCacheStats segmentCacheStats;
+  private LicenseHttpTransport licenseTransport;
+  private KeyIdSessionCoalescer keyIdSessionCoalescer;
+  private HandlerThread playbackThread;
+  private PlayerPool playerPool;
+  private PlaybackMetrics playbackMetrics;
+  private CachingMediaCodecSelector mediaCodecSelector;
+  private DrmProvisioningManager drmProvisioningManager;
+  private DrmSessionTracker drmSessionTracker;
+  private LicenseRenewalScheduler licenseRenewalScheduler;
+  private PlaybackMetricsExporter playbackMetricsExporter;
+  private OfflineLicenseFetcher offlineLicenseFetcher;
+  // Content URIs whose offline license is being fetched.
+  private final Set<String> pendingOfflineLicenseFetches = new HashSet<>();
+  private ExecutorService backgroundExecutor;
+  private ExecutorService licenseRequestExecutor;
+  // Load controls of players that have not been garbage collected yet.
+  private final Set<MemoryAwareLoadControl> loadControls =
+      Collections.newSetFromMap(new WeakHashMap<>());
+  private StartupWarmup startupWarmup;
+  private Future<DataSource.Factory> dataSourceFactoryFuture;
+  private Future<DashManifestCache> manifestCacheFuture;
+  private Future<OfflineLicenseStore> offlineLicenseStoreFuture;
+  private Future<BandwidthEstimateStore> bandwidthEstimateStoreFuture;
 
   @OptIn(markerClass = UnstableApi.class) @Override
   public void onCreate() {
+    Trace.beginSection("ExoplayerApplication.onCreate");
     super.onCreate();
+    if (BuildConfig.DEBUG) {
+      // Startup work that touches the disk belongs in the warm-up below.
+      StrictMode.setThreadPolicy(
+          new StrictMode.ThreadPolicy.Builder()
+              .detectDiskReads()
+              .detectDiskWrites()
+              .penaltyLog()
+              .build());
+    }
     userAgent = Util.getUserAgent(this, "ExoplayerApplication");
+    // Provisioning takes network round trips, so it starts first, on its own thread.
+    getDrmProvisioningManager().provision();
+    // Ordered by how soon playback needs the result.
+    startupWarmup = new StartupWarmup(getBackgroundExecutor());
+    dataSourceFactoryFuture =
+        startupWarmup.submit("Warmup:caches", this::buildCachingDataSourceFactory);
+    manifestCacheFuture =
+        startupWarmup.submit(
+            "Warmup:manifests",
+            () -> {
+              DashManifestCache manifestCache =
+                  new DashManifestCache(new File(getCacheDir(), MANIFEST_CACHE_DIRECTORY));
+              // Parsed here so that the first load of the process is not parsed on its own.
+              manifestCache.warmUp();
+              return manifestCache;
+            });
+    ExecutorService backgroundExecutor = getBackgroundExecutor();
+    offlineLicenseStoreFuture =
+        startupWarmup.submit(
+            "Warmup:offlineLicenses",
+            () ->
+                new OfflineLicenseStore(
+                    this,
+                    OfflineLicenseStore.DEFAULT_MAX_ENTRIES,
+                    // Releasing uses the store, so it waits for the store to be loaded.
+                    keySetId -> backgroundExecutor.execute(() -> releaseOfflineLicense(keySetId))));
+    bandwidthEstimateStoreFuture =
+        startupWarmup.submit(
+            "Warmup:bandwidthEstimates",
+            () -> new BandwidthEstimateStore(this, BandwidthEstimateStore.DEFAULT_HALF_LIFE_MS));
+    startupWarmup.submit(
+        "Warmup:decoders",
+        () -> {
+          getMediaCodecSelector().warmUp();
+          return null;
+        });
+    startupWarmup.submit("Warmup:mediaDrm", this::warmUpMediaDrm);
+    Trace.endSection();
+  }
+
+  /** Returns the startup warm-up, which also traces the time to the first rendered frame. */
+  @OptIn(markerClass = UnstableApi.class) public StartupWarmup getStartupWarmup() {
+    return startupWarmup;
   }
 
-  /** Returns a {@link DataSource.Factory}. */
+  /**
+   * Returns a {@link DataSource.Factory}. It can be called before the caches are opened, in which
+   * case the first data source created from it waits for them.
+   */
   @OptIn(markerClass = UnstableApi.class) public DataSource.Factory buildDataSourceFactory() {
-    DefaultDataSourceFactory upstreamFactory =
-        new DefaultDataSourceFactory(this, buildHttpDataSourceFactory());
+    return StartupWarmup.deferDataSourceFactory(dataSourceFactoryFuture);
+  }
+
+  /**
+   * Returns a {@link DataSource.Factory} for DASH manifests, which are revalidated with the server
+   * instead of being served from the segment cache. Downloaded manifests are still read from the
+   * download cache. Must be used together with {@link #buildManifestParser()}.
+   */
+  @OptIn(markerClass = UnstableApi.class) public DataSource.Factory buildManifestDataSourceFactory() {
+    return () -> {
+      DataSource.Factory upstreamFactory =
+          StartupWarmup.await(manifestCacheFuture)
+              .createDataSourceFactory(buildHttpDataSourceFactory());
+      return buildReadOnlyCacheDataSource(upstreamFactory, getDownloadCache()).createDataSource();
+    };
+  }
+
+  /** Returns a DASH manifest parser that skips parsing manifests that were not modified. */
+  @OptIn(markerClass = UnstableApi.class) public ParsingLoadable.Parser<DashManifest> buildManifestParser() {
+    return (uri, inputStream) ->
+        StartupWarmup.await(manifestCacheFuture).getManifestParser().parse(uri, inputStream);
+  }
+
+  /**
+   * Returns a factory for the DASH media sources of a player whose protected content uses {@code
+   * drmSessionManager}. Manifests are revalidated with the server, and only parsed when they
+   * changed. Sessions that other players opened for the same key ids are shared instead of opened
+   * again.
+   */
+  @OptIn(markerClass = UnstableApi.class) public MediaSource.Factory buildMediaSourceFactory(
+      DrmSessionManager drmSessionManager) {
+    DrmSessionManager sharingDrmSessionManager =
+        getKeyIdSessionCoalescer().wrap(drmSessionManager);
+    return new DashMediaSource.Factory(
+            new DefaultDashChunkSource.Factory(buildDataSourceFactory()),
+            buildManifestDataSourceFactory())
+        .setManifestParser(buildManifestParser())
+        .setDrmSessionManagerProvider(mediaItem -> sharingDrmSessionManager);
+  }
+
+  /**
+   * Returns a session manager for Widevine content whose licenses are requested through {@code
+   * drmCallback}. Requests wait for background provisioning, key requests are cancelled when their
+   * session is released, and licenses are renewed in the background before they expire.
+   *
+   * @param exoMediaDrmProvider The provider of the {@link ExoMediaDrm} of the sessions.
+   * @param drmCallback The callback that executes key requests.
+   * @param multiSession Whether each key request gets its own session.
+   */
+  @OptIn(markerClass = UnstableApi.class) public DefaultDrmSessionManager buildDrmSessionManager(
+      ExoMediaDrm.Provider exoMediaDrmProvider, MediaDrmCallback drmCallback, boolean multiSession) {
+    ExoMediaDrm.Provider trackedProvider =
+        getDrmSessionTracker()
+            .wrap(
+                exoMediaDrmProvider,
+                getLicenseRenewalScheduler().createSessionListener(drmCallback));
+    return new DefaultDrmSessionManager.Builder()
+        .setMultiSession(multiSession)
+        .setUuidAndExoMediaDrmProvider(C.WIDEVINE_UUID, trackedProvider)
+        .build(getDrmProvisioningManager().wrap(drmCallback));
+  }
+
+  /**
+   * Returns a license callback for {@code licenseUrl} that sends {@code customData}. It reports
+   * license latency to the playback metrics, and its key requests are cancelled by the session
+   * tracker.
+   */
+  @OptIn(markerClass = UnstableApi.class) public WidevineMediaDrmCallback buildMediaDrmCallback(
+      String licenseUrl, SigmaCustomData customData) {
+    WidevineMediaDrmCallback drmCallback =
+        new WidevineMediaDrmCallback(
+            licenseUrl, getLicenseTransport().getDataSourceFactory(), customData);
+    drmCallback.setRequestExecutor(getLicenseRequestExecutor());
+    drmCallback.setLicenseRequestListener(getPlaybackMetrics());
+    drmCallback.setSessionTracker(getDrmSessionTracker());
+    return drmCallback;
+  }
+
+  /**
+   * Returns a pipeline for up to {@code maxTiles} players that share one DRM session manager, the
+   * license callback {@code drmCallback}, one bandwidth meter, one media source factory and the
+   * heap budget for buffered media. Tiles whose content has the same keys share DRM sessions.
+   *
+   * @param drmCallback The callback that executes key requests.
+   * @param decoderBudget The budget of the video decoder, from {@link
+   *     MultiViewPipeline.DecoderBudget#forMimeType}.
+   * @param maxTiles The number of tiles that may play at the same time.
+   */
+  @OptIn(markerClass = UnstableApi.class) public MultiViewPipeline buildMultiViewPipeline(
+      MediaDrmCallback drmCallback, MultiViewPipeline.DecoderBudget decoderBudget, int maxTiles) {
+    DefaultDrmSessionManager drmSessionManager =
+        buildDrmSessionManager(
+            getDrmProvisioningManager().getExoMediaDrmProvider(),
+            drmCallback,
+            /* multiSession= */ true);
+    RenderersFactory renderersFactory = buildRenderersFactory(/* preferExtensionRenderer= */ false);
+    return new MultiViewPipeline(
+        this,
+        drmSessionManager,
+        buildMediaSourceFactory(drmSessionManager),
+        buildBandwidthMeter(),
+        (trackSelector, bandwidthMeter) ->
+            buildPlayerBuilder(renderersFactory, trackSelector, bandwidthMeter, maxTiles),
+        getPlaybackLooper(),
+        decoderBudget,
+        maxTiles);
+  }
+
+  /**
+   * Returns a builder for a player that renders with {@code renderersFactory}, selects tracks with
+   * {@code trackSelector} and runs on the shared {@link #getPlaybackLooper() playback looper}.
+   */
+  @OptIn(markerClass = UnstableApi.class) public ExoPlayer.Builder buildPlayerBuilder(
+      RenderersFactory renderersFactory,
+      TrackSelector trackSelector,
+      BandwidthMeter bandwidthMeter) {
+    return buildPlayerBuilder(
+        renderersFactory, trackSelector, bandwidthMeter, /* concurrentPlayerCount= */ 1);
+  }
+
+  /**
+   * Returns a builder for a player like {@link #buildPlayerBuilder(RenderersFactory, TrackSelector,
+   * BandwidthMeter)}, for one of {@code concurrentPlayerCount} players that buffer at the same time
+   * and split the heap budget for buffered media.
+   */
+  @OptIn(markerClass = UnstableApi.class) public ExoPlayer.Builder buildPlayerBuilder(
+      RenderersFactory renderersFactory,
+      TrackSelector trackSelector,
+      BandwidthMeter bandwidthMeter,
+      int concurrentPlayerCount) {
+    return new ExoPlayer.Builder(this, renderersFactory)
+        .setTrackSelector(trackSelector)
+        .setLoadControl(buildLoadControl(concurrentPlayerCount))
+        .setBandwidthMeter(bandwidthMeter)
+        .setPlaybackLooper(getPlaybackLooper());
+  }
+
+  /**
+   * Returns a prepared player for {@code playlist} wired as the player screen plays it, whose
+   * protected content uses {@code drmSessionManager}. See {@link #buildPlaylistPlayer(String[],
+   * DrmSessionManager, RenderersFactory, Clock)}.
+   */
+  @OptIn(markerClass = UnstableApi.class) public PlaylistPlayer buildPlaylistPlayer(
+      String[] playlist, DrmSessionManager drmSessionManager) {
+    return buildPlaylistPlayer(
+        playlist,
+        drmSessionManager,
+        buildRenderersFactory(/* preferExtensionRenderer= */ false),
+        Clock.DEFAULT);
+  }
+
+  /**
+   * Returns a prepared player for {@code playlist}, wired as the player screen plays it: DASH
+   * media sources from {@link #buildMediaSourceFactory}, a track selector that allows adaptation
+   * across video MIME types, a bandwidth meter seeded with the last estimate of the current
+   * network, the playback metrics listener, and a {@link PlaylistPreloader} when there is more than
+   * one item and {@code drmSessionManager} is a {@link DefaultDrmSessionManager}. The player is not
+   * started.
+   *
+   * @param playlist The URIs of the DASH manifests to play in order.
+   * @param drmSessionManager The session manager of the protected content.
+   * @param renderersFactory The factory of the renderers of the player.
+   * @param clock The clock of the player, which is {@link Clock#DEFAULT} outside of tests.
+   */
+  @OptIn(markerClass = UnstableApi.class) public PlaylistPlayer buildPlaylistPlayer(
+      String[] playlist,
+      DrmSessionManager drmSessionManager,
+      RenderersFactory renderersFactory,
+      Clock clock) {
+    MediaSource.Factory mediaSourceFactory = buildMediaSourceFactory(drmSessionManager);
+    List<MediaSource> mediaSources = new ArrayList<>(playlist.length);
+    for (String contentUri : playlist) {
+      mediaSources.add(mediaSourceFactory.createMediaSource(MediaItem.fromUri(contentUri)));
+    }
+    DefaultTrackSelector trackSelector = new DefaultTrackSelector(/* context= */ this);
+    DefaultTrackSelector.Parameters trackSelectionParameters =
+        new DefaultTrackSelector.ParametersBuilder(/* context= */ this)
+            .setAllowVideoMixedMimeTypeAdaptiveness(true)
+            .setAllowVideoNonSeamlessAdaptiveness(true)
+            .build();
+    BandwidthMeter bandwidthMeter = buildBandwidthMeter();
+    ExoPlayer player =
+        buildPlayerBuilder(renderersFactory, trackSelector, bandwidthMeter)
+            .setClock(clock)
+            .build();
+    player.setTrackSelectionParameters(trackSelectionParameters);
+    @Nullable PlaylistPreloader playlistPreloader = null;
+    if (playlist.length > 1 && drmSessionManager instanceof DefaultDrmSessionManager) {
+      // Loads the next items and opens their sessions while the current one plays.
+      playlistPreloader =
+          buildPlaylistPreloader(
+              player, (DefaultDrmSessionManager) drmSessionManager, bandwidthMeter);
+      player.addListener(playlistPreloader);
+    }
+    player.addAnalyticsListener(getPlaybackMetrics().createAnalyticsListener());
+    player.setMediaSources(mediaSources);
+    player.prepare();
+    return new PlaylistPlayer(player, trackSelector, playlistPreloader);
+  }
+
+  @OptIn(markerClass = UnstableApi.class) private DataSource.Factory buildCachingDataSourceFactory() {
+    DataSource.Factory upstreamFactory =
+        new DefaultDataSourceFactory(this, getSegmentCacheStats(), buildHttpDataSourceFactory());
+    if (isSegmentCacheWriteThroughEnabled()) {
+      upstreamFactory = buildWriteThroughCacheDataSource(upstreamFactory, getSegmentCache());
+    }
     return buildReadOnlyCacheDataSource(upstreamFactory, getDownloadCache());
   }
 
+  /**
+   * Returns whether streamed segments are written through to the segment cache. Enabled by
+   * default.
+   */
+  public boolean isSegmentCacheWriteThroughEnabled() {
+    return getSharedPreferences(SETTINGS_PREFERENCES_NAME, MODE_PRIVATE)
+        .getBoolean(SEGMENT_CACHE_WRITE_THROUGH_KEY, true);
+  }
+
+  /**
+   * Sets whether streamed segments are written through to the segment cache. Takes effect the next
+   * time the application starts, segments cached before stay until they are evicted.
+   */
+  public void setSegmentCacheWriteThroughEnabled(boolean enabled) {
+    getSharedPreferences(SETTINGS_PREFERENCES_NAME, MODE_PRIVATE)
+        .edit()
+        .putBoolean(SEGMENT_CACHE_WRITE_THROUGH_KEY, enabled)
+        .apply();
+  }
+
+  /**
+   * Returns whether a persistable license is acquired after the first play of a title that is not
+   * downloaded, so that its next play restores the keys instead of requesting a license. Disabled
+   * by default, as it doubles the license requests of first plays.
+   */
+  public boolean isOfflineLicensePrefetchEnabled() {
+    return getSharedPreferences(SETTINGS_PREFERENCES_NAME, MODE_PRIVATE)
+        .getBoolean(OFFLINE_LICENSE_PREFETCH_KEY, false);
+  }
+
+  /** Sets whether persistable licenses are acquired after first plays. Applies to later plays. */
+  public void setOfflineLicensePrefetchEnabled(boolean enabled) {
+    getSharedPreferences(SETTINGS_PREFERENCES_NAME, MODE_PRIVATE)
+        .edit()
+        .putBoolean(OFFLINE_LICENSE_PREFETCH_KEY, enabled)
+        .apply();
+  }
+
+  /** Returns the hit, miss and byte counters of the caches used for playback. */
+  @OptIn(markerClass = UnstableApi.class) public synchronized SegmentCacheStats getSegmentCacheStats() {
+    if (segmentCacheStats == null) {
+      segmentCacheStats = new SegmentCacheStats();
+    }
+    return segmentCacheStats;
+  }
+
   /** Returns a {@link HttpDataSource.Factory}. */
   @OptIn(markerClass = UnstableApi.class) public HttpDataSource.Factory buildHttpDataSourceFactory() {
     return (new DefaultHttpDataSource.Factory()).setUserAgent(userAgent);
   }
 
+  /** Returns the shared transport for license and provisioning requests. */
+  @OptIn(markerClass = UnstableApi.class) public synchronized LicenseHttpTransport getLicenseTransport() {
+    if (licenseTransport == null) {
+      licenseTransport = new LicenseHttpTransport.Builder().setUserAgent(userAgent).build();
+    }
+    return licenseTransport;
+  }
+
+  @OptIn(markerClass = UnstableApi.class) @Override
+  public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    if (level >= TRIM_MEMORY_RUNNING_LOW && level != TRIM_MEMORY_UI_HIDDEN && playerPool != null) {
+      playerPool.trim();
+    }
+    if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+      trimLoadControls();
+    }
+  }
+
+  @Override
+  public void onLowMemory() {
+    super.onLowMemory();
+    trimLoadControls();
+  }
+
+  /**
+   * Returns a new load control sized for the memory of this device, shared with {@code
+   * concurrentPlayerCount - 1} other players that buffer at the same time. Its unused allocations
+   * are released when the system is low on memory.
+   */
+  @OptIn(markerClass = UnstableApi.class) public synchronized MemoryAwareLoadControl buildLoadControl(
+      int concurrentPlayerCount) {
+    MemoryAwareLoadControl loadControl =
+        MemoryAwareLoadControl.create(this, concurrentPlayerCount);
+    loadControls.add(loadControl);
+    return loadControl;
+  }
+
+  /**
+   * Returns a preloader for the playlist of {@code player}, whose items all use {@code
+   * drmSessionManager}. Devices with little memory only preload the next item.
+   */
+  @OptIn(markerClass = UnstableApi.class) public PlaylistPreloader buildPlaylistPreloader(
+      ExoPlayer player, DefaultDrmSessionManager drmSessionManager, BandwidthMeter bandwidthMeter) {
+    ActivityManager activityManager = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+    // Every preloaded item holds a parsed manifest and a DRM session.
+    boolean lowMemory =
+        MemoryAwareLoadControl.Profile.forMemoryClass(
+                activityManager.getMemoryClass(), activityManager.isLowRamDevice())
+            == MemoryAwareLoadControl.Profile.LOW;
+    return new PlaylistPreloader(
+        player,
+        buildManifestDataSourceFactory(),
+        buildManifestParser(),
+        buildDataSourceFactory(),
+        drmSessionManager,
+        bandwidthMeter,
+        lowMemory ? 1 : PLAYLIST_LOOK_AHEAD_ITEMS,
+        PLAYLIST_PREFETCH_SEGMENTS);
+  }
+
+  @OptIn(markerClass = UnstableApi.class) private synchronized void trimLoadControls() {
+    for (MemoryAwareLoadControl loadControl : loadControls) {
+      loadControl.trimMemory();
+    }
+  }
+
+  /**
+   * Returns the playback looper shared by all players. It outlives activities so that pooled
+   * players keep working after their activity is destroyed.
+   */
+  public synchronized Looper getPlaybackLooper() {
+    if (playbackThread == null) {
+      playbackThread = new HandlerThread("ExoPlayer:Playback", Process.THREAD_PRIORITY_AUDIO);
+      playbackThread.start();
+    }
+    return playbackThread.getLooper();
+  }
+
+  /** Returns the pool of idle players. Must be called on the main thread. */
+  @OptIn(markerClass = UnstableApi.class) public PlayerPool getPlayerPool() {
+    if (playerPool == null) {
+      playerPool = new PlayerPool();
+    }
+    return playerPool;
+  }
+
+  /**
+   * Returns a new bandwidth meter that starts from the persisted estimate of the current network
+   * and persists its own estimates.
+   */
+  @OptIn(markerClass = UnstableApi.class) public DefaultBandwidthMeter buildBandwidthMeter() {
+    return StartupWarmup.await(bandwidthEstimateStoreFuture).buildBandwidthMeter();
+  }
+
+  /** Returns the performance metrics of all players. */
+  @OptIn(markerClass = UnstableApi.class) public synchronized PlaybackMetrics getPlaybackMetrics() {
+    if (playbackMetrics == null) {
+      playbackMetrics = new PlaybackMetrics();
+    }
+    return playbackMetrics;
+  }
+
+  /** Writes the current playback metrics to the app's files directory in the background. */
+  @OptIn(markerClass = UnstableApi.class) public void exportPlaybackMetricsAsync() {
+    PlaybackMetrics.Snapshot snapshot = getPlaybackMetrics().getSnapshot();
+    getBackgroundExecutor().execute(() -> {
+      try {
+        getPlaybackMetricsExporter().export(snapshot);
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to export playback metrics", e);
+      }
+    });
+  }
+
+  @OptIn(markerClass = UnstableApi.class) private synchronized PlaybackMetricsExporter getPlaybackMetricsExporter() {
+    if (playbackMetricsExporter == null) {
+      playbackMetricsExporter =
+          new PlaybackMetricsExporter(new File(getFilesDir(), PLAYBACK_METRICS_DIRECTORY));
+    }
+    return playbackMetricsExporter;
+  }
+
+  /** Returns the executor on which all license callbacks post their requests. */
+  @OptIn(markerClass = UnstableApi.class) public synchronized ExecutorService getLicenseRequestExecutor() {
+    if (licenseRequestExecutor == null) {
+      licenseRequestExecutor =
+          WidevineMediaDrmCallback.newRequestExecutor(
+              WidevineMediaDrmCallback.DEFAULT_MAX_REQUEST_THREADS);
+    }
+    return licenseRequestExecutor;
+  }
+
+  /**
+   * Returns the coalescer that shares the DRM sessions of all players by key id, and counts the
+   * sessions opened and shared.
+   */
+  @OptIn(markerClass = UnstableApi.class) public synchronized KeyIdSessionCoalescer getKeyIdSessionCoalescer() {
+    if (keyIdSessionCoalescer == null) {
+      keyIdSessionCoalescer = new KeyIdSessionCoalescer(C.WIDEVINE_UUID);
+    }
+    return keyIdSessionCoalescer;
+  }
+
+  /**
+   * Returns the store of persisted offline licenses, waiting for it to be loaded if the warm-up has
+   * not finished yet, so it must not be called on the main thread.
+   */
+  @OptIn(markerClass = UnstableApi.class) public OfflineLicenseStore getOfflineLicenseStore() {
+    return StartupWarmup.await(offlineLicenseStoreFuture);
+  }
+
+  /**
+   * Returns the fetcher of the persistable licenses of the offline license store. Waits for the
+   * store to be loaded, so it must not be called on the main thread.
+   */
+  @OptIn(markerClass = UnstableApi.class) public OfflineLicenseFetcher getOfflineLicenseFetcher() {
+    OfflineLicenseStore licenseStore = getOfflineLicenseStore();
+    synchronized (this) {
+      if (offlineLicenseFetcher == null) {
+        SigmaCustomData customData = PlayerActivity.buildCustomData();
+        offlineLicenseFetcher =
+            new OfflineLicenseFetcher(
+                buildManifestDataSourceFactory(),
+                buildManifestParser(),
+                buildDataSourceFactory(),
+                getDrmProvisioningManager().getExoMediaDrmProvider(),
+                getDrmProvisioningManager()
+                    .wrap(buildMediaDrmCallback(PlayerActivity.LICENSE_URL, customData)),
+                licenseStore,
+                customData.getMerchantId(),
+                customData.getUserId());
+      }
+      return offlineLicenseFetcher;
+    }
+  }
+
+  /**
+   * Acquires a persistable license for {@code contentUri} in the background, unless one is already
+   * stored or being acquired. The licenses of downloaded titles are pinned, so that they are never
+   * evicted.
+   *
+   * @param contentUri The URI of the DASH manifest.
+   * @param downloaded Whether the title is downloaded for offline playback.
+   */
+  @OptIn(markerClass = UnstableApi.class) public void fetchOfflineLicenseAsync(
+      String contentUri, boolean downloaded) {
+    ExecutorService executor = getBackgroundExecutor();
+    if (downloaded) {
+      executor.execute(() -> getOfflineLicenseStore().setPinned(contentUri, true));
+    }
+    synchronized (pendingOfflineLicenseFetches) {
+      if (!pendingOfflineLicenseFetches.add(contentUri)) {
+        return;
+      }
+    }
+    executor.execute(
+        () -> {
+          try {
+            if (getOfflineLicenseStore().getKeySetId(contentUri) == null) {
+              getOfflineLicenseFetcher().fetch(contentUri);
+            }
+          } catch (IOException | DrmSession.DrmSessionException e) {
+            Log.w(TAG, "Failed to fetch offline license for " + contentUri, e);
+          } finally {
+            synchronized (pendingOfflineLicenseFetches) {
+              pendingOfflineLicenseFetches.remove(contentUri);
+            }
+          }
+        });
+  }
+
+  @OptIn(markerClass = UnstableApi.class) private void releaseOfflineLicense(byte[] keySetId) {
+    try {
+      getOfflineLicenseFetcher().release(keySetId);
+    } catch (DrmSession.DrmSessionException e) {
+      Log.w(TAG, "Failed to release offline license", e);
+    }
+  }
+
+  /** Returns an executor for application scoped background work. */
+  public synchronized ExecutorService getBackgroundExecutor() {
+    if (backgroundExecutor == null) {
+      backgroundExecutor = Executors.newSingleThreadExecutor();
+    }
+    return backgroundExecutor;
+  }
+
+  /** Returns the manager that provisions the device in the background. */
+  @OptIn(markerClass = UnstableApi.class) public synchronized DrmProvisioningManager getDrmProvisioningManager() {
+    if (drmProvisioningManager == null) {
+      // Provisioning requests need neither a license URL nor custom data.
+      WidevineMediaDrmCallback widevineCallback =
+          new WidevineMediaDrmCallback(
+              /* defaultLicenseUrl= */ "",
+              getLicenseTransport().getDataSourceFactory(),
+              /* customData= */ null);
+      widevineCallback.setRequestExecutor(getLicenseRequestExecutor());
+      drmProvisioningManager =
+          new DrmProvisioningManager(
+              this,
+              SigmaMediaDrm.DEFAULT_PROVIDER,
+              C.WIDEVINE_UUID,
+              widevineCallback,
+              Executors.newSingleThreadExecutor());
+    }
+    return drmProvisioningManager;
+  }
+
+  /**
+   * Returns the tracker of DRM sessions, which cancels the key requests of sessions that are
+   * released before their license arrived.
+   */
+  @OptIn(markerClass = UnstableApi.class) public synchronized DrmSessionTracker getDrmSessionTracker() {
+    if (drmSessionTracker == null) {
+      drmSessionTracker = new DrmSessionTracker();
+    }
+    return drmSessionTracker;
+  }
+
+  /** Returns the scheduler that renews the licenses of all streaming sessions. */
+  @OptIn(markerClass = UnstableApi.class) public synchronized LicenseRenewalScheduler getLicenseRenewalScheduler() {
+    if (licenseRenewalScheduler == null) {
+      licenseRenewalScheduler =
+          new LicenseRenewalScheduler(C.WIDEVINE_UUID, Executors.newSingleThreadScheduledExecutor());
+    }
+    return licenseRenewalScheduler;
+  }
+
   /** Returns whether extension renderers should be used. */
   public boolean useExtensionRenderers() {
     return false;//"withExtensions".equals(BuildConfig.FLAVOR);
@@ -80,7 +756,130 @@ public class ExoplayerApplication extends Application {
             : DefaultRenderersFactory.EXTENSION_RENDERER_MODE_ON)
             : DefaultRenderersFactory.EXTENSION_RENDERER_MODE_OFF;
     return new DefaultRenderersFactory(/* context= */ this)
-        .setExtensionRendererMode(extensionRendererMode);
+        .setExtensionRendererMode(extensionRendererMode)
+        .setMediaCodecSelector(getMediaCodecSelector());
+  }
+
+  /** Returns the codec selector that answers decoder queries from the decoder capability cache. */
+  @OptIn(markerClass = UnstableApi.class) public synchronized CachingMediaCodecSelector getMediaCodecSelector() {
+    if (mediaCodecSelector == null) {
+      mediaCodecSelector =
+          new CachingMediaCodecSelector(
+              new DecoderCapabilityCache(new File(getFilesDir(), DECODER_CAPABILITIES_FILE)),
+              getBackgroundExecutor());
+    }
+    return mediaCodecSelector;
+  }
+
+  /**
+   * Returns a future for the {@link #getDownloadManager() download manager}, which is built on the
+   * background executor, so that the main thread never opens the download cache or its database.
+   */
+  @OptIn(markerClass = UnstableApi.class) public synchronized Future<DownloadManager> getDownloadManagerFuture() {
+    if (downloadManagerFuture == null) {
+      downloadManagerFuture = getBackgroundExecutor().submit(this::getDownloadManager);
+    }
+    return downloadManagerFuture;
+  }
+
+  /**
+   * Returns the manager of offline downloads. Downloads are written to the download cache, which
+   * playback reads first, and resume from the segments already cached when they are restarted.
+   * The first call opens the download cache, so it must not be made on the main thread, which uses
+   * {@link #getDownloadManagerFuture()} instead.
+   */
+  @OptIn(markerClass = UnstableApi.class) public synchronized DownloadManager getDownloadManager() {
+    if (downloadManager == null) {
+      downloadDataSourceFactory =
+          new ThrottlingDataSource.Factory(
+              buildHttpDataSourceFactory(), getMaxDownloadBytesPerSecond());
+      int segmentConcurrency = getDownloadSegmentConcurrency();
+      // The segments of a download are fetched in parallel on this executor.
+      downloadSegmentExecutor =
+          new ThreadPoolExecutor(
+              segmentConcurrency,
+              segmentConcurrency,
+              /* keepAliveTime= */ 0,
+              TimeUnit.MILLISECONDS,
+              new LinkedBlockingQueue<>());
+      downloadManager =
+          new DownloadManager(
+              this,
+              getDatabaseProvider(),
+              getDownloadCache(),
+              downloadDataSourceFactory,
+              downloadSegmentExecutor);
+      downloadManager.setMaxParallelDownloads(MAX_PARALLEL_DOWNLOADS);
+      downloadManager.addListener(
+          new DownloadManager.Listener() {
+            @Override
+            public void onDownloadRemoved(DownloadManager downloadManager, Download download) {
+              // The license of a title that is no longer downloaded may be evicted again.
+              String contentUri = download.request.uri.toString();
+              getBackgroundExecutor()
+                  .execute(() -> getOfflineLicenseStore().setPinned(contentUri, false));
+            }
+          });
+    }
+    return downloadManager;
+  }
+
+  /** Returns the combined download rate limit in bytes per second, or 0 for no limit. */
+  public long getMaxDownloadBytesPerSecond() {
+    return getSharedPreferences(SETTINGS_PREFERENCES_NAME, MODE_PRIVATE)
+        .getLong(DOWNLOAD_MAX_BYTES_PER_SECOND_KEY, 0);
+  }
+
+  /**
+   * Sets the combined download rate limit in bytes per second, or 0 for no limit. Applies to the
+   * downloads in progress and is kept for later processes.
+   */
+  @OptIn(markerClass = UnstableApi.class) public synchronized void setMaxDownloadBytesPerSecond(
+      long maxBytesPerSecond) {
+    Assertions.checkArgument(maxBytesPerSecond >= 0);
+    getSharedPreferences(SETTINGS_PREFERENCES_NAME, MODE_PRIVATE)
+        .edit()
+        .putLong(DOWNLOAD_MAX_BYTES_PER_SECOND_KEY, maxBytesPerSecond)
+        .apply();
+    if (downloadDataSourceFactory != null) {
+      downloadDataSourceFactory.setMaxBytesPerSecond(maxBytesPerSecond);
+    }
+  }
+
+  /** Returns the number of segments downloaded in parallel, shared by all downloads. */
+  public int getDownloadSegmentConcurrency() {
+    return getSharedPreferences(SETTINGS_PREFERENCES_NAME, MODE_PRIVATE)
+        .getInt(DOWNLOAD_SEGMENT_CONCURRENCY_KEY, DEFAULT_DOWNLOAD_SEGMENT_CONCURRENCY);
+  }
+
+  /**
+   * Sets the number of segments downloaded in parallel, shared by all downloads. Applies to the
+   * segments that start downloading next and is kept for later processes.
+   */
+  public synchronized void setDownloadSegmentConcurrency(int segmentConcurrency) {
+    Assertions.checkArgument(segmentConcurrency > 0);
+    getSharedPreferences(SETTINGS_PREFERENCES_NAME, MODE_PRIVATE)
+        .edit()
+        .putInt(DOWNLOAD_SEGMENT_CONCURRENCY_KEY, segmentConcurrency)
+        .apply();
+    if (downloadSegmentExecutor != null) {
+      // The core size may never exceed the maximum size, so the order depends on the direction.
+      if (segmentConcurrency > downloadSegmentExecutor.getMaximumPoolSize()) {
+        downloadSegmentExecutor.setMaximumPoolSize(segmentConcurrency);
+        downloadSegmentExecutor.setCorePoolSize(segmentConcurrency);
+      } else {
+        downloadSegmentExecutor.setCorePoolSize(segmentConcurrency);
+        downloadSegmentExecutor.setMaximumPoolSize(segmentConcurrency);
+      }
+    }
+  }
+
+  @OptIn(markerClass = UnstableApi.class) public synchronized DownloadNotificationHelper getDownloadNotificationHelper() {
+    if (downloadNotificationHelper == null) {
+      downloadNotificationHelper =
+          new DownloadNotificationHelper(this, DrmDownloadService.DOWNLOAD_NOTIFICATION_CHANNEL_ID);
+    }
+    return downloadNotificationHelper;
   }
 
   @OptIn(markerClass = UnstableApi.class) protected synchronized Cache getDownloadCache() {
@@ -92,6 +891,21 @@ public class ExoplayerApplication extends Application {
     return downloadCache;
   }
 
+  @OptIn(markerClass = UnstableApi.class) protected synchronized Cache getSegmentCache() {
+    if (segmentCache == null) {
+      File segmentCacheDirectory = new File(getCacheDir(), SEGMENT_CACHE_DIRECTORY);
+      long budgetBytes = SegmentCacheEvictor.computeBudgetBytes(
+          segmentCacheDirectory, SEGMENT_CACHE_MAX_BYTES, SEGMENT_CACHE_FREE_SPACE_FRACTION);
+      segmentCache =
+          new SimpleCache(
+              segmentCacheDirectory,
+              new SegmentCacheEvictor(
+                  budgetBytes, SegmentCacheEvictor.DEFAULT_PRIORITIZED_SEGMENTS_PER_REPRESENTATION),
+              getDatabaseProvider());
+    }
+    return segmentCache;
+  }
+
   @OptIn(markerClass = UnstableApi.class) private DatabaseProvider getDatabaseProvider() {
     if (databaseProvider == null) {
       databaseProvider = new ExoDatabaseProvider(this);
@@ -99,6 +913,29 @@ public class ExoplayerApplication extends Application {
     return databaseProvider;
   }
 
+  /**
+   * Loads the DRM plugin and opens a session once, so that the first session opened for playback
+   * does not pay for it.
+   */
+  @OptIn(markerClass = UnstableApi.class) private Void warmUpMediaDrm() {
+    try {
+      ExoMediaDrm mediaDrm = SigmaMediaDrm.DEFAULT_PROVIDER.acquireExoMediaDrm(C.WIDEVINE_UUID);
+      try {
+        mediaDrm.closeSession(mediaDrm.openSession());
+      } finally {
+        mediaDrm.release();
+      }
+    } catch (NotProvisionedException e) {
+      // Provisioning ran before this, so it failed or was reset since it last succeeded.
+      Log.i(TAG, "Device is not provisioned");
+      getDrmProvisioningManager().invalidate();
+      getDrmProvisioningManager().provision();
+    } catch (Exception e) {
+      Log.w(TAG, "MediaDrm warm-up failed", e);
+    }
+    return null;
+  }
+
   private File getDownloadDirectory() {
     if (downloadDirectory == null) {
       downloadDirectory = getExternalFilesDir(null);
@@ -108,12 +945,43 @@ public class ExoplayerApplication extends Application {
     }
     return downloadDirectory;
   }
-  @OptIn(markerClass = UnstableApi.class) private static CacheDataSource.Factory buildReadOnlyCacheDataSource(
+  @OptIn(markerClass = UnstableApi.class) private CacheDataSource.Factory buildReadOnlyCacheDataSource(
       DataSource.Factory upstreamFactory, Cache cache) {
     return new CacheDataSource.Factory()
         .setCache(cache)
         .setUpstreamDataSourceFactory(upstreamFactory)
         .setCacheWriteDataSinkFactory(null)
-        .setFlags(CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR);
+        .setFlags(CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR)
+        .setEventListener(getSegmentCacheStats());
+  }
+
+  @OptIn(markerClass = UnstableApi.class) private CacheDataSource.Factory buildWriteThroughCacheDataSource(
+      DataSource.Factory upstreamFactory, Cache cache) {
+    return new CacheDataSource.Factory()
+        .setCache(cache)
+        .setUpstreamDataSourceFactory(upstreamFactory)
+        .setCacheWriteDataSinkFactory(new CacheDataSink.Factory().setCache(cache))
+        .setFlags(CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR)
+        .setEventListener(getSegmentCacheStats());
+  }
+
+  /** A player built by {@link #buildPlaylistPlayer}, with the components it was wired with. */
+  public static final class PlaylistPlayer {
+
+    /** The player. */
+    public final ExoPlayer player;
+    /** The track selector of the player. */
+    public final DefaultTrackSelector trackSelector;
+    /** The preloader of the next playlist items, which must be released with the player, or null. */
+    @Nullable public final PlaylistPreloader playlistPreloader;
+
+    private PlaylistPlayer(
+        ExoPlayer player,
+        DefaultTrackSelector trackSelector,
+        @Nullable PlaylistPreloader playlistPreloader) {
+      this.player = player;
+      this.trackSelector = trackSelector;
+      this.playlistPreloader = playlistPreloader;
+    }
   }
 }
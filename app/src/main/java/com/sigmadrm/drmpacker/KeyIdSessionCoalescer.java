@@ -0,0 +1,261 @@
+package com.sigmadrm.drmpacker;
+
+import android.os.Looper;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.media3.common.C;
+import androidx.media3.common.DrmInitData;
+import androidx.media3.common.Format;
+import androidx.media3.common.util.ParsableByteArray;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.exoplayer.analytics.PlayerId;
+import androidx.media3.exoplayer.drm.DrmSession;
+import androidx.media3.exoplayer.drm.DrmSessionEventListener;
+import androidx.media3.exoplayer.drm.DrmSessionManager;
+
+/**
+ * Shares open DRM sessions between the session managers it {@link #wrap wraps}, by the content key
+ * ids their DRM init data lists, so that players whose content needs keys that an open session
+ * already requested do not request them again.
+ *
+ * <p>A session is acquired for a format whose key ids are all listed by the init data of an open
+ * session of any wrapped manager, rather than opened anew. Sessions opened for init data that lists
+ * the key ids of several tracks, as a multi-key license is requested, are so shared by all of these
+ * tracks. Requests for the same key ids cannot be merged at the license callback, as the key request
+ * of each session carries the nonce of its session.
+ *
+ * <p>All wrapped managers must be used on the same playback looper, on which the methods of the
+ * managers and the sessions are called.
+ */
+@UnstableApi
+public final class KeyIdSessionCoalescer {
+
+  private static final int PSSH_HEADER_SIZE = 32;
+  // The key_id field of the WidevinePsshData protocol buffer, which has the length-delimited type.
+  private static final int WIDEVINE_KEY_ID_TAG = (2 << 3) | 2;
+
+  private final UUID uuid;
+  // The open sessions, accessed on the playback thread only.
+  private final List<SharedSession> sharedSessions;
+  private final AtomicLong openedSessionCount;
+  private final AtomicLong sharedSessionCount;
+
+  /** @param uuid The UUID of the DRM scheme whose key ids are compared. */
+  public KeyIdSessionCoalescer(UUID uuid) {
+    this.uuid = uuid;
+    sharedSessions = new ArrayList<>();
+    openedSessionCount = new AtomicLong();
+    sharedSessionCount = new AtomicLong();
+  }
+
+  /** Returns a session manager that shares sessions through this coalescer. */
+  public DrmSessionManager wrap(DrmSessionManager delegate) {
+    return new DrmSessionManager() {
+      @Override
+      public void prepare() {
+        delegate.prepare();
+      }
+
+      @Override
+      public void release() {
+        delegate.release();
+      }
+
+      @Override
+      public void setPlayer(Looper playbackLooper, PlayerId playerId) {
+        delegate.setPlayer(playbackLooper, playerId);
+      }
+
+      @Override
+      public DrmSessionReference preacquireSession(
+              @Nullable DrmSessionEventListener.EventDispatcher eventDispatcher, Format format) {
+        return delegate.preacquireSession(eventDispatcher, format);
+      }
+
+      @Nullable
+      @Override
+      public DrmSession acquireSession(
+              @Nullable DrmSessionEventListener.EventDispatcher eventDispatcher, Format format) {
+        return acquireSharedSession(delegate, eventDispatcher, format);
+      }
+
+      @Override
+      public int getCryptoType(Format format) {
+        return delegate.getCryptoType(format);
+      }
+    };
+  }
+
+  /** Returns the number of sessions that were opened for key ids no open session listed. */
+  public long getOpenedSessionCount() {
+    return openedSessionCount.get();
+  }
+
+  /** Returns the number of acquisitions that were answered by a session already open. */
+  public long getSharedSessionCount() {
+    return sharedSessionCount.get();
+  }
+
+  @Nullable
+  private DrmSession acquireSharedSession(DrmSessionManager delegate,
+                                          @Nullable DrmSessionEventListener.EventDispatcher
+                                                  eventDispatcher,
+                                          Format format) {
+    Set<UUID> keyIds = format.drmInitData == null
+            ? Collections.emptySet()
+            : getKeyIds(format.drmInitData, uuid);
+    if (keyIds.isEmpty()) {
+      return delegate.acquireSession(eventDispatcher, format);
+    }
+    removeClosedSessions();
+    for (SharedSession sharedSession : sharedSessions) {
+      if (sharedSession.keyIds.containsAll(keyIds)) {
+        sharedSession.session.acquire(eventDispatcher);
+        sharedSessionCount.incrementAndGet();
+        return sharedSession.session;
+      }
+    }
+    @Nullable DrmSession session = delegate.acquireSession(eventDispatcher, format);
+    if (session == null) {
+      return null;
+    }
+    for (SharedSession sharedSession : sharedSessions) {
+      if (sharedSession.session == session) {
+        // The delegate reused a session of its own for the same init data.
+        sharedSession.keyIds.addAll(keyIds);
+        sharedSessionCount.incrementAndGet();
+        return session;
+      }
+    }
+    sharedSessions.add(new SharedSession(session, keyIds));
+    openedSessionCount.incrementAndGet();
+    return session;
+  }
+
+  private void removeClosedSessions() {
+    Iterator<SharedSession> iterator = sharedSessions.iterator();
+    while (iterator.hasNext()) {
+      int state = iterator.next().session.getState();
+      if (state == DrmSession.STATE_RELEASED || state == DrmSession.STATE_ERROR) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Returns the key ids listed by the PSSH boxes of {@code drmInitData} for the scheme {@code
+   * uuid}, from the header of version 1 boxes and, for Widevine, from the key_id fields of the
+   * Widevine PSSH data. Returns an empty set if none are listed.
+   */
+  @VisibleForTesting
+  /* package */ static Set<UUID> getKeyIds(DrmInitData drmInitData, UUID uuid) {
+    Set<UUID> keyIds = new HashSet<>();
+    for (int i = 0; i < drmInitData.schemeDataCount; i++) {
+      DrmInitData.SchemeData schemeData = drmInitData.get(i);
+      if (schemeData.matches(uuid) && schemeData.data != null) {
+        addPsshKeyIds(schemeData.data, uuid, keyIds);
+      }
+    }
+    return keyIds;
+  }
+
+  private static void addPsshKeyIds(byte[] pssh, UUID uuid, Set<UUID> keyIds) {
+    ParsableByteArray atom = new ParsableByteArray(pssh);
+    if (atom.limit() < PSSH_HEADER_SIZE) {
+      return;
+    }
+    int atomSize = atom.readInt();
+    atom.skipBytes(4); // The box type, "pssh".
+    int version = atom.readUnsignedByte();
+    atom.skipBytes(3); // The flags.
+    if (atomSize != atom.limit() || version > 1
+            || !uuid.equals(new UUID(atom.readLong(), atom.readLong()))) {
+      return;
+    }
+    if (version == 1) {
+      int keyIdCount = atom.readInt();
+      if (keyIdCount < 0 || atom.bytesLeft() < keyIdCount * 16L + 4) {
+        return;
+      }
+      for (int i = 0; i < keyIdCount; i++) {
+        keyIds.add(new UUID(atom.readLong(), atom.readLong()));
+      }
+    }
+    int dataSize = atom.readInt();
+    if (dataSize != atom.bytesLeft()) {
+      return;
+    }
+    if (C.WIDEVINE_UUID.equals(uuid)) {
+      addWidevineKeyIds(atom, keyIds);
+    }
+  }
+
+  private static void addWidevineKeyIds(ParsableByteArray data, Set<UUID> keyIds) {
+    while (data.bytesLeft() > 0) {
+      long tag = readVarint(data);
+      if (tag < 0) {
+        return;
+      }
+      int wireType = (int) (tag & 7);
+      if (wireType == 0) {
+        if (readVarint(data) < 0) {
+          return;
+        }
+      } else if (wireType == 1 || wireType == 5) {
+        int length = wireType == 1 ? 8 : 4;
+        if (data.bytesLeft() < length) {
+          return;
+        }
+        data.skipBytes(length);
+      } else if (wireType == 2) {
+        long length = readVarint(data);
+        if (length < 0 || length > data.bytesLeft()) {
+          return;
+        }
+        if (tag == WIDEVINE_KEY_ID_TAG && length == 16) {
+          keyIds.add(new UUID(data.readLong(), data.readLong()));
+        } else {
+          data.skipBytes((int) length);
+        }
+      } else {
+        return;
+      }
+    }
+  }
+
+  /** Returns the next varint of {@code data}, or -1 if it is truncated or too long. */
+  private static long readVarint(ParsableByteArray data) {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      if (data.bytesLeft() == 0) {
+        return -1;
+      }
+      int b = data.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    return -1;
+  }
+
+  private static final class SharedSession {
+
+    private final DrmSession session;
+    private final Set<UUID> keyIds;
+
+    public SharedSession(DrmSession session, Set<UUID> keyIds) {
+      this.session = session;
+      this.keyIds = keyIds;
+    }
+  }
+}
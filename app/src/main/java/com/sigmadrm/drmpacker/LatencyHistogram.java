@@ -0,0 +1,122 @@
+package com.sigmadrm.drmpacker;
+
+import java.util.Arrays;
+
+import androidx.media3.common.C;
+import androidx.media3.common.util.UnstableApi;
+
+/**
+ * A histogram of non-negative durations with log-linear buckets, which records without allocating.
+ *
+ * <p>Values below 16 have a bucket each. Above that, every power of two is split into 8 buckets,
+ * so percentiles are accurate to within 12.5%. Values above {@link #MAX_VALUE} are counted in the
+ * last bucket.
+ */
+@UnstableApi
+public final class LatencyHistogram {
+
+  /** The largest value that is told apart from larger ones, about 4.6 hours in milliseconds. */
+  public static final long MAX_VALUE = (1L << 24) - 1;
+
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int LINEAR_BUCKET_COUNT = 2 * SUB_BUCKET_COUNT;
+  private static final int BUCKET_COUNT = bucketIndex(MAX_VALUE) + 1;
+
+  private final long[] counts;
+  private long count;
+  private long sum;
+  private long max;
+
+  public LatencyHistogram() {
+    counts = new long[BUCKET_COUNT];
+  }
+
+  private LatencyHistogram(LatencyHistogram other) {
+    counts = other.counts.clone();
+    count = other.count;
+    sum = other.sum;
+    max = other.max;
+  }
+
+  /** Records {@code value}. Negative values are ignored. */
+  public synchronized void record(long value) {
+    if (value < 0) {
+      return;
+    }
+    counts[bucketIndex(Math.min(value, MAX_VALUE))]++;
+    count++;
+    sum += value;
+    max = Math.max(max, value);
+  }
+
+  /** Returns the number of recorded values. */
+  public synchronized long getCount() {
+    return count;
+  }
+
+  /** Returns the sum of the recorded values. */
+  public synchronized long getSum() {
+    return sum;
+  }
+
+  /** Returns the largest recorded value, or 0 if nothing has been recorded. */
+  public synchronized long getMax() {
+    return max;
+  }
+
+  /**
+   * Returns the upper bound of the bucket holding the given percentile of the recorded values, or
+   * {@link C#TIME_UNSET} if nothing has been recorded.
+   *
+   * @param percentile The percentile, in (0, 1].
+   */
+  public synchronized long getPercentile(double percentile) {
+    if (count == 0) {
+      return C.TIME_UNSET;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile * count));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(max, bucketUpperBound(i));
+      }
+    }
+    return max;
+  }
+
+  /** Returns a copy of this histogram. */
+  public synchronized LatencyHistogram copy() {
+    return new LatencyHistogram(this);
+  }
+
+  /** Clears all recorded values. */
+  public synchronized void reset() {
+    Arrays.fill(counts, 0);
+    count = 0;
+    sum = 0;
+    max = 0;
+  }
+
+  private static int bucketIndex(long value) {
+    if (value < LINEAR_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+    return LINEAR_BUCKET_COUNT
+            + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKET_COUNT
+            + subBucket;
+  }
+
+  private static long bucketUpperBound(int index) {
+    if (index < LINEAR_BUCKET_COUNT) {
+      return index;
+    }
+    int exponent = (index - LINEAR_BUCKET_COUNT) / SUB_BUCKET_COUNT + SUB_BUCKET_BITS + 1;
+    int subBucket = (index - LINEAR_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+    long lowerBound = (long) (SUB_BUCKET_COUNT + subBucket) << (exponent - SUB_BUCKET_BITS);
+    return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+  }
+}
@@ -0,0 +1,199 @@
+package com.sigmadrm.drmpacker;
+
+import android.util.Log;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.NonNull;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.HttpDataSource;
+import androidx.media3.datasource.okhttp.OkHttpDataSource;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.EventListener;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * HTTP transport for license and provisioning requests that keeps connections to the license
+ * server alive and reuses them across requests.
+ *
+ * <p>All {@link HttpDataSource HttpDataSources} created by {@link #getDataSourceFactory()} share
+ * one connection pool, so only the first request to a license server pays for connection setup
+ * and TLS. {@link #preconnect(String)} can be used to pay that cost before the first request.
+ */
+@UnstableApi
+public final class LicenseHttpTransport {
+
+  /** The default connect timeout, in milliseconds. */
+  public static final long DEFAULT_CONNECT_TIMEOUT_MS = 8_000;
+  /** The default read timeout, in milliseconds. */
+  public static final long DEFAULT_READ_TIMEOUT_MS = 8_000;
+  /** The default number of idle connections kept in the pool. */
+  public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 4;
+  /** The default duration for which idle connections are kept alive, in milliseconds. */
+  public static final long DEFAULT_KEEP_ALIVE_DURATION_MS = 5 * 60 * 1000;
+
+  private static final String TAG = "LicenseHttpTransport";
+
+  /** Builder for {@link LicenseHttpTransport} instances. */
+  public static final class Builder {
+
+    private long connectTimeoutMs;
+    private long readTimeoutMs;
+    private int maxIdleConnections;
+    private long keepAliveDurationMs;
+    private boolean http2Enabled;
+    private String userAgent;
+
+    /** Creates a builder with default values. */
+    public Builder() {
+      connectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+      readTimeoutMs = DEFAULT_READ_TIMEOUT_MS;
+      maxIdleConnections = DEFAULT_MAX_IDLE_CONNECTIONS;
+      keepAliveDurationMs = DEFAULT_KEEP_ALIVE_DURATION_MS;
+      http2Enabled = true;
+    }
+
+    /** Sets the connect timeout, in milliseconds. */
+    public Builder setConnectTimeoutMs(long connectTimeoutMs) {
+      this.connectTimeoutMs = connectTimeoutMs;
+      return this;
+    }
+
+    /** Sets the read timeout, in milliseconds. */
+    public Builder setReadTimeoutMs(long readTimeoutMs) {
+      this.readTimeoutMs = readTimeoutMs;
+      return this;
+    }
+
+    /** Sets the number of idle connections kept in the pool. */
+    public Builder setMaxIdleConnections(int maxIdleConnections) {
+      this.maxIdleConnections = maxIdleConnections;
+      return this;
+    }
+
+    /** Sets the duration for which idle connections are kept alive, in milliseconds. */
+    public Builder setKeepAliveDurationMs(long keepAliveDurationMs) {
+      this.keepAliveDurationMs = keepAliveDurationMs;
+      return this;
+    }
+
+    /**
+     * Sets whether HTTP/2 may be negotiated, which multiplexes concurrent key requests over one
+     * connection. When disabled, only HTTP/1.1 is used.
+     */
+    public Builder setHttp2Enabled(boolean http2Enabled) {
+      this.http2Enabled = http2Enabled;
+      return this;
+    }
+
+    /** Sets the user agent sent with each request. */
+    public Builder setUserAgent(String userAgent) {
+      this.userAgent = userAgent;
+      return this;
+    }
+
+    /** Builds the transport. */
+    public LicenseHttpTransport build() {
+      return new LicenseHttpTransport(this);
+    }
+  }
+
+  private final OkHttpClient client;
+  private final HttpDataSource.Factory dataSourceFactory;
+  private final AtomicLong acquiredConnectionCount;
+  private final AtomicLong newConnectionCount;
+
+  private LicenseHttpTransport(Builder builder) {
+    acquiredConnectionCount = new AtomicLong();
+    newConnectionCount = new AtomicLong();
+    client =
+            new OkHttpClient.Builder()
+                    .connectTimeout(builder.connectTimeoutMs, TimeUnit.MILLISECONDS)
+                    .readTimeout(builder.readTimeoutMs, TimeUnit.MILLISECONDS)
+                    .connectionPool(new ConnectionPool(builder.maxIdleConnections,
+                            builder.keepAliveDurationMs, TimeUnit.MILLISECONDS))
+                    .protocols(builder.http2Enabled
+                            ? Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)
+                            : Collections.singletonList(Protocol.HTTP_1_1))
+                    .eventListener(new ConnectionStatsListener())
+                    .build();
+    dataSourceFactory = new OkHttpDataSource.Factory(client).setUserAgent(builder.userAgent);
+  }
+
+  /** Returns a factory for data sources that share this transport's connection pool. */
+  public HttpDataSource.Factory getDataSourceFactory() {
+    return dataSourceFactory;
+  }
+
+  /**
+   * Opens a connection to the origin of {@code url} in the background, so that the first license
+   * request finds a warm connection in the pool.
+   */
+  public void preconnect(String url) {
+    Request request = new Request.Builder().url(url).head().build();
+    client.newCall(request).enqueue(new Callback() {
+      @Override
+      public void onResponse(@NonNull Call call, @NonNull Response response) {
+        response.close();
+      }
+
+      @Override
+      public void onFailure(@NonNull Call call, @NonNull IOException e) {
+        Log.w(TAG, "Pre-connect to " + url + " failed", e);
+      }
+    });
+  }
+
+  /** Returns the number of times a request obtained a connection. */
+  public long getAcquiredConnectionCount() {
+    return acquiredConnectionCount.get();
+  }
+
+  /** Returns the number of connections that were newly established. */
+  public long getNewConnectionCount() {
+    return newConnectionCount.get();
+  }
+
+  /**
+   * Returns the fraction of connection acquisitions that reused a pooled connection, or 0 if no
+   * connection has been acquired yet.
+   */
+  public float getConnectionReuseRate() {
+    long acquired = acquiredConnectionCount.get();
+    if (acquired == 0) {
+      return 0;
+    }
+    long reused = Math.max(0, acquired - newConnectionCount.get());
+    return (float) reused / acquired;
+  }
+
+  /* package */ OkHttpClient getClient() {
+    return client;
+  }
+
+  private final class ConnectionStatsListener extends EventListener {
+
+    @Override
+    public void connectStart(@NonNull Call call, @NonNull InetSocketAddress inetSocketAddress,
+                             @NonNull Proxy proxy) {
+      newConnectionCount.incrementAndGet();
+    }
+
+    @Override
+    public void connectionAcquired(@NonNull Call call, @NonNull Connection connection) {
+      acquiredConnectionCount.incrementAndGet();
+    }
+  }
+}
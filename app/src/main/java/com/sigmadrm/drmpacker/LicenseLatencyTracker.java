@@ -0,0 +1,47 @@
+package com.sigmadrm.drmpacker;
+
+import java.util.Arrays;
+
+import androidx.media3.common.C;
+import androidx.media3.common.util.UnstableApi;
+
+/**
+ * Keeps the latencies of the most recent license requests and answers percentile queries on them.
+ */
+@UnstableApi
+public final class LicenseLatencyTracker {
+
+  private final long[] latenciesMs;
+  private int count;
+  private int nextIndex;
+
+  /**
+   * @param capacity The number of most recent latencies that are kept.
+   */
+  public LicenseLatencyTracker(int capacity) {
+    latenciesMs = new long[capacity];
+  }
+
+  /** Records the latency of a completed request. */
+  public synchronized void addLatency(long latencyMs) {
+    latenciesMs[nextIndex] = latencyMs;
+    nextIndex = (nextIndex + 1) % latenciesMs.length;
+    count = Math.min(count + 1, latenciesMs.length);
+  }
+
+  /**
+   * Returns the given percentile of the recorded latencies, or {@link C#TIME_UNSET} if nothing has
+   * been recorded yet.
+   *
+   * @param percentile The percentile, in (0, 1].
+   */
+  public synchronized long getPercentileMs(float percentile) {
+    if (count == 0) {
+      return C.TIME_UNSET;
+    }
+    long[] sorted = Arrays.copyOf(latenciesMs, count);
+    Arrays.sort(sorted);
+    int index = (int) Math.ceil(percentile * count) - 1;
+    return sorted[Math.max(0, Math.min(count - 1, index))];
+  }
+}
@@ -0,0 +1,198 @@
+package com.sigmadrm.drmpacker;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.common.DrmInitData;
+import androidx.media3.common.Format;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.exoplayer.analytics.PlayerId;
+import androidx.media3.exoplayer.dash.DashUtil;
+import androidx.media3.exoplayer.dash.manifest.DashManifest;
+import androidx.media3.exoplayer.drm.DefaultDrmSessionManager;
+import androidx.media3.exoplayer.drm.DrmSession;
+import androidx.media3.exoplayer.upstream.ParsingLoadable;
+
+/**
+ * Opens {@link DrmSession DrmSessions} ahead of playback so that the license request runs in
+ * parallel with, or before, the player's own manifest loading.
+ *
+ * <p>Each pre-acquisition owns a {@link DefaultDrmSessionManager} whose playback looper is the
+ * one passed to the constructor. A player that {@link #take takes} a pre-acquisition must be built
+ * with that playback looper and use the pre-acquisition's session manager, which then finds the
+ * already opened session instead of requesting a new license.
+ */
+@UnstableApi
+public final class LicensePreacquirer {
+
+  /** Builds the {@link DefaultDrmSessionManager} used for a pre-acquisition. */
+  public interface DrmSessionManagerFactory {
+
+    /** Returns a new session manager for {@code contentUri}. */
+    DefaultDrmSessionManager createDrmSessionManager(String contentUri);
+  }
+
+  /** The maximum number of pre-acquisitions that are kept while waiting to be taken. */
+  public static final int MAX_PENDING_PREACQUISITIONS = 3;
+
+  private static final String TAG = "LicensePreacquirer";
+
+  private final DataSource.Factory manifestDataSourceFactory;
+  private final ParsingLoadable.Parser<DashManifest> manifestParser;
+  private final DataSource.Factory segmentDataSourceFactory;
+  private final DrmSessionManagerFactory drmSessionManagerFactory;
+  private final Looper playbackLooper;
+  private final Handler playbackHandler;
+  private final ExecutorService manifestExecutor;
+  // Ordered from least to most recently requested.
+  private final LinkedHashMap<String, Preacquisition> pendingPreacquisitions;
+
+  /**
+   * @param manifestDataSourceFactory A factory for the data sources used to load manifests.
+   * @param manifestParser            The manifest parser of the players.
+   * @param segmentDataSourceFactory  A factory for the data sources used to load initialization
+   *                                  segments.
+   * @param drmSessionManagerFactory  A factory for the session managers of pre-acquisitions.
+   * @param playbackLooper            The playback looper of the players that take
+   *                                  pre-acquisitions.
+   */
+  public LicensePreacquirer(DataSource.Factory manifestDataSourceFactory,
+                            ParsingLoadable.Parser<DashManifest> manifestParser,
+                            DataSource.Factory segmentDataSourceFactory,
+                            DrmSessionManagerFactory drmSessionManagerFactory,
+                            Looper playbackLooper) {
+    this.manifestDataSourceFactory = manifestDataSourceFactory;
+    this.manifestParser = manifestParser;
+    this.segmentDataSourceFactory = segmentDataSourceFactory;
+    this.drmSessionManagerFactory = drmSessionManagerFactory;
+    this.playbackLooper = playbackLooper;
+    playbackHandler = new Handler(playbackLooper);
+    manifestExecutor = Executors.newSingleThreadExecutor();
+    pendingPreacquisitions = new LinkedHashMap<>();
+  }
+
+  /** Returns the playback looper that players using a pre-acquisition must be built with. */
+  public Looper getPlaybackLooper() {
+    return playbackLooper;
+  }
+
+  /**
+   * Loads the DASH manifest at {@code contentUri} and opens a session for its DRM init data.
+   * Does nothing if a pre-acquisition for {@code contentUri} is already pending.
+   */
+  public synchronized void preacquire(String contentUri) {
+    if (pendingPreacquisitions.containsKey(contentUri)) {
+      return;
+    }
+    Preacquisition preacquisition = addPreacquisition(contentUri);
+    preacquisition.loadFuture = manifestExecutor.submit(() -> {
+      try {
+        DashManifest manifest = ParsingLoadable.load(
+                manifestDataSourceFactory.createDataSource(), manifestParser,
+                Uri.parse(contentUri), C.DATA_TYPE_MANIFEST);
+        Format format = DashUtil.loadFormatWithDrmInitData(
+                segmentDataSourceFactory.createDataSource(), manifest.getPeriod(0));
+        if (format != null && format.drmInitData != null) {
+          playbackHandler.post(() -> preacquisition.acquire(format));
+        }
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to load manifest for " + contentUri, e);
+      }
+    });
+  }
+
+  /**
+   * Opens a session for already known {@code drmInitData} of {@code contentUri}. Does nothing if a
+   * pre-acquisition for {@code contentUri} is already pending.
+   */
+  public synchronized void preacquire(String contentUri, DrmInitData drmInitData) {
+    if (pendingPreacquisitions.containsKey(contentUri)) {
+      return;
+    }
+    Preacquisition preacquisition = addPreacquisition(contentUri);
+    Format format = new Format.Builder().setDrmInitData(drmInitData).build();
+    playbackHandler.post(() -> preacquisition.acquire(format));
+  }
+
+  /**
+   * Hands over the pending pre-acquisition of {@code contentUri}, if any. The caller becomes
+   * responsible for {@link Preacquisition#release() releasing} it once its player is released.
+   */
+  @Nullable
+  public synchronized Preacquisition take(String contentUri) {
+    return pendingPreacquisitions.remove(contentUri);
+  }
+
+  /** Releases all pending pre-acquisitions. */
+  public synchronized void release() {
+    for (Preacquisition preacquisition : pendingPreacquisitions.values()) {
+      preacquisition.release();
+    }
+    pendingPreacquisitions.clear();
+    manifestExecutor.shutdownNow();
+  }
+
+  private Preacquisition addPreacquisition(String contentUri) {
+    Iterator<Preacquisition> iterator = pendingPreacquisitions.values().iterator();
+    while (pendingPreacquisitions.size() >= MAX_PENDING_PREACQUISITIONS && iterator.hasNext()) {
+      iterator.next().release();
+      iterator.remove();
+    }
+    Preacquisition preacquisition =
+            new Preacquisition(drmSessionManagerFactory.createDrmSessionManager(contentUri));
+    pendingPreacquisitions.put(contentUri, preacquisition);
+    return preacquisition;
+  }
+
+  /** A session manager holding a session opened ahead of playback. */
+  public final class Preacquisition {
+
+    /** The session manager that the player must use. */
+    public final DefaultDrmSessionManager drmSessionManager;
+
+    @Nullable private volatile Future<?> loadFuture;
+    // Accessed on the playback thread only.
+    @Nullable private DrmSession drmSession;
+    private boolean released;
+
+    private Preacquisition(DefaultDrmSessionManager drmSessionManager) {
+      this.drmSessionManager = drmSessionManager;
+    }
+
+    /** Releases the pre-acquired session. The player keeps its own reference to the session. */
+    public void release() {
+      Future<?> loadFuture = this.loadFuture;
+      if (loadFuture != null) {
+        loadFuture.cancel(/* mayInterruptIfRunning= */ true);
+      }
+      playbackHandler.post(() -> {
+        released = true;
+        if (drmSession != null) {
+          drmSession.release(/* eventDispatcher= */ null);
+          drmSession = null;
+          drmSessionManager.release();
+        }
+      });
+    }
+
+    private void acquire(Format format) {
+      if (released) {
+        return;
+      }
+      drmSessionManager.setPlayer(getPlaybackLooper(), PlayerId.UNSET);
+      drmSessionManager.prepare();
+      drmSession = drmSessionManager.acquireSession(/* eventDispatcher= */ null, format);
+    }
+  }
+}
@@ -0,0 +1,236 @@
+package com.sigmadrm.drmpacker;
+
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.media3.common.C;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.common.util.Util;
+import androidx.media3.exoplayer.drm.ExoMediaDrm;
+import androidx.media3.exoplayer.drm.MediaDrmCallback;
+
+/**
+ * Renews the licenses of streaming DRM sessions in the background before they expire, instead of
+ * waiting for the CDM to ask for a renewal on the playback path.
+ *
+ * <p>Sessions are reported by the {@link DrmSessionTracker.SessionListener listeners} {@link
+ * #createSessionListener created} for each {@link MediaDrmCallback}. When keys are loaded, the
+ * remaining license and playback durations are read from the session's key status, and a
+ * renewal is scheduled a safety margin ahead of the earlier of the two, moved earlier by a random
+ * jitter. Renewals of different sessions are kept at least {@link #MIN_SPACING_MS} apart, so
+ * sessions whose licenses were acquired together do not renew in a burst. Licenses without a
+ * limited duration are not renewed.
+ */
+@UnstableApi
+public final class LicenseRenewalScheduler {
+
+  /** The smallest time between the renewal and the expiry of a license, in milliseconds. */
+  public static final long MIN_SAFETY_MARGIN_MS = 30_000;
+  /** The fraction of the remaining license duration kept as safety margin. */
+  public static final float SAFETY_MARGIN_FRACTION = 0.1f;
+  /** The largest fraction of the delay before a renewal that is randomly cut off. */
+  public static final float JITTER_FRACTION = 0.1f;
+  /** The smallest time between two renewals, in milliseconds. */
+  public static final long MIN_SPACING_MS = 2_000;
+  /** The smallest delay before a renewal, in milliseconds. */
+  public static final long MIN_DELAY_MS = 5_000;
+
+  private static final String TAG = "LicenseRenewal";
+  // Key status properties of Widevine, in seconds.
+  private static final String LICENSE_DURATION_REMAINING = "LicenseDurationRemaining";
+  private static final String PLAYBACK_DURATION_REMAINING = "PlaybackDurationRemaining";
+
+  private final UUID uuid;
+  private final ScheduledExecutorService executor;
+  private final Random random;
+  // By session ID in hex.
+  private final Map<String, Renewal> renewals;
+
+  /**
+   * @param uuid     The UUID of the DRM scheme.
+   * @param executor The executor on which key status is read and renewals are made.
+   */
+  public LicenseRenewalScheduler(UUID uuid, ScheduledExecutorService executor) {
+    this(uuid, executor, new Random());
+  }
+
+  @VisibleForTesting
+  /* package */ LicenseRenewalScheduler(UUID uuid, ScheduledExecutorService executor,
+                                        Random random) {
+    this.uuid = uuid;
+    this.executor = executor;
+    this.random = random;
+    renewals = new HashMap<>();
+  }
+
+  /**
+   * Returns a listener to {@link DrmSessionTracker#wrap(ExoMediaDrm.Provider,
+   * DrmSessionTracker.SessionListener) wrap} the provider of a session manager with, which renews
+   * the sessions of that manager through {@code callback}.
+   */
+  public DrmSessionTracker.SessionListener createSessionListener(MediaDrmCallback callback) {
+    return new DrmSessionTracker.SessionListener() {
+      @Override
+      public void onKeysLoaded(ExoMediaDrm mediaDrm, byte[] sessionId) {
+        executor.execute(() -> schedule(new Renewal(mediaDrm, sessionId, callback)));
+      }
+
+      @Override
+      public void onSessionClosed(byte[] sessionId) {
+        cancel(Util.toHexString(sessionId));
+      }
+    };
+  }
+
+  /**
+   * Returns the delay before renewing a license that expires in {@code remainingMs}, given a
+   * uniformly distributed {@code randomValue} in [0, 1).
+   */
+  @VisibleForTesting
+  /* package */ static long getRenewalDelayMs(long remainingMs, double randomValue) {
+    long marginMs = Math.max(MIN_SAFETY_MARGIN_MS, (long) (remainingMs * SAFETY_MARGIN_FRACTION));
+    long delayMs = remainingMs - marginMs;
+    delayMs -= (long) (delayMs * JITTER_FRACTION * randomValue);
+    return Math.max(MIN_DELAY_MS, delayMs);
+  }
+
+  /**
+   * Returns the time until the keys of a session with {@code keyStatus} expire, in milliseconds,
+   * or {@link C#TIME_UNSET} if they do not expire or the key status does not say.
+   */
+  @VisibleForTesting
+  /* package */ static long getRemainingMs(Map<String, String> keyStatus) {
+    long remainingSec = Long.MAX_VALUE;
+    for (String property : new String[] {LICENSE_DURATION_REMAINING, PLAYBACK_DURATION_REMAINING}) {
+      @Nullable String value = keyStatus.get(property);
+      if (value == null) {
+        continue;
+      }
+      try {
+        long durationSec = Long.parseLong(value.trim());
+        // Playback durations are 0 until playback starts.
+        if (durationSec > 0) {
+          remainingSec = Math.min(remainingSec, durationSec);
+        }
+      } catch (NumberFormatException e) {
+        // Ignore unparsable values.
+      }
+    }
+    return remainingSec == Long.MAX_VALUE || remainingSec > Long.MAX_VALUE / 1000
+            ? C.TIME_UNSET
+            : remainingSec * 1000;
+  }
+
+  private void schedule(Renewal renewal) {
+    long remainingMs;
+    try {
+      remainingMs = getRemainingMs(renewal.mediaDrm.queryKeyStatus(renewal.sessionId));
+    } catch (RuntimeException e) {
+      // The session was closed in the meantime.
+      return;
+    }
+    long nowMs = SystemClock.elapsedRealtime();
+    synchronized (this) {
+      @Nullable Renewal previous = renewals.remove(renewal.sessionKey);
+      if (previous != null) {
+        previous.cancel();
+      }
+      if (remainingMs == C.TIME_UNSET) {
+        return;
+      }
+      long renewAtMs = spread(nowMs + getRenewalDelayMs(remainingMs, random.nextDouble()), nowMs);
+      renewal.renewAtMs = renewAtMs;
+      renewal.future =
+              executor.schedule(() -> renew(renewal), renewAtMs - nowMs, TimeUnit.MILLISECONDS);
+      renewals.put(renewal.sessionKey, renewal);
+    }
+    Log.d(TAG, "License expires in " + remainingMs + "ms, renewing in "
+            + (renewal.renewAtMs - nowMs) + "ms");
+  }
+
+  /** Moves {@code renewAtMs} earlier until it is {@link #MIN_SPACING_MS} away from all others. */
+  private long spread(long renewAtMs, long nowMs) {
+    boolean moved = true;
+    while (moved && renewAtMs > nowMs) {
+      moved = false;
+      for (Renewal other : renewals.values()) {
+        if (Math.abs(other.renewAtMs - renewAtMs) < MIN_SPACING_MS) {
+          renewAtMs = other.renewAtMs - MIN_SPACING_MS;
+          moved = true;
+        }
+      }
+    }
+    return Math.max(nowMs, renewAtMs);
+  }
+
+  private synchronized void cancel(String sessionKey) {
+    @Nullable Renewal renewal = renewals.remove(sessionKey);
+    if (renewal != null) {
+      renewal.cancel();
+    }
+  }
+
+  private void renew(Renewal renewal) {
+    synchronized (this) {
+      if (renewals.get(renewal.sessionKey) != renewal) {
+        return;
+      }
+    }
+    try {
+      ExoMediaDrm.KeyRequest request = renewal.mediaDrm.getKeyRequest(renewal.sessionId,
+              /* schemeDatas= */ null, ExoMediaDrm.KEY_TYPE_STREAMING,
+              /* optionalParameters= */ null);
+      byte[] response = renewal.callback.executeKeyRequest(uuid, request);
+      synchronized (this) {
+        if (renewals.get(renewal.sessionKey) != renewal) {
+          // Closed while the request was in flight.
+          return;
+        }
+      }
+      renewal.mediaDrm.provideKeyResponse(renewal.sessionId, response);
+    } catch (Exception e) {
+      // Scheduled again below, at the latest just before expiry. The CDM asks for a renewal by
+      // itself if the license expires regardless.
+      Log.w(TAG, "License renewal failed", e);
+    }
+    synchronized (this) {
+      if (renewals.get(renewal.sessionKey) != renewal) {
+        return;
+      }
+    }
+    schedule(new Renewal(renewal.mediaDrm, renewal.sessionId, renewal.callback));
+  }
+
+  /** A scheduled renewal of one session. */
+  private static final class Renewal {
+
+    public final ExoMediaDrm mediaDrm;
+    public final byte[] sessionId;
+    public final String sessionKey;
+    public final MediaDrmCallback callback;
+    public long renewAtMs;
+    @Nullable public ScheduledFuture<?> future;
+
+    public Renewal(ExoMediaDrm mediaDrm, byte[] sessionId, MediaDrmCallback callback) {
+      this.mediaDrm = mediaDrm;
+      this.sessionId = sessionId;
+      this.sessionKey = Util.toHexString(sessionId);
+      this.callback = callback;
+    }
+
+    public void cancel() {
+      if (future != null) {
+        future.cancel(/* mayInterruptIfRunning= */ false);
+      }
+    }
+  }
+}
@@ -0,0 +1,230 @@
+package com.sigmadrm.drmpacker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.common.ParserException;
+import androidx.media3.common.util.UnstableApi;
+
+/**
+ * Extracts the license from a license server response while it is being read.
+ *
+ * <p>JSON responses of the form {@code {"license": "<base64>", ...}} are scanned for the {@code
+ * license} field, whose Base64 value is decoded straight into the output buffer without building
+ * an intermediate string or JSON tree. Responses with a binary content type, or whose body does
+ * not start with {@code '{'} when there is no content type, are returned as they are.
+ */
+@UnstableApi
+public final class LicenseResponseDecoder {
+
+  private static final int READ_BUFFER_SIZE = 4096;
+  private static final int DEFAULT_OUTPUT_SIZE = 4096;
+
+  private static final byte[] LICENSE_FIELD = {'"', 'l', 'i', 'c', 'e', 'n', 's', 'e', '"'};
+
+  private static final int BASE64_INVALID = -1;
+  private static final int BASE64_SKIP = -2;
+  private static final int BASE64_PADDING = -3;
+  private static final int[] BASE64_VALUES = buildBase64Values();
+
+  private static final int STATE_SNIFF = 0;
+  private static final int STATE_FIELD = 1;
+  private static final int STATE_COLON = 2;
+  private static final int STATE_OPENING_QUOTE = 3;
+  private static final int STATE_VALUE = 4;
+  private static final int STATE_ESCAPE = 5;
+  private static final int STATE_BINARY = 6;
+
+  private static final ThreadLocal<byte[]> readBuffers =
+          new ThreadLocal<byte[]>() {
+            @Override
+            protected byte[] initialValue() {
+              return new byte[READ_BUFFER_SIZE];
+            }
+          };
+
+  private LicenseResponseDecoder() {}
+
+  /**
+   * Reads {@code inputStream} to the end and returns the license it carries.
+   *
+   * @param inputStream   The response body.
+   * @param contentType   The response content type, or null if unknown.
+   * @param contentLength The response length in bytes, or {@link C#LENGTH_UNSET} if unknown.
+   * @return The license.
+   * @throws ParserException If the response is JSON without a valid {@code license} field.
+   * @throws IOException     If reading the response fails.
+   */
+  public static byte[] decode(InputStream inputStream, @Nullable String contentType,
+                              long contentLength) throws IOException {
+    int state;
+    if (contentType == null) {
+      state = STATE_SNIFF;
+    } else if (isJsonContentType(contentType)) {
+      state = STATE_FIELD;
+    } else {
+      state = STATE_BINARY;
+    }
+
+    byte[] output = new byte[initialOutputSize(state, contentLength)];
+    int outputLength = 0;
+    int fieldIndex = 0;
+    int bits = 0;
+    int bitCount = 0;
+    boolean padded = false;
+
+    byte[] readBuffer = readBuffers.get();
+    int bytesRead;
+    while ((bytesRead = inputStream.read(readBuffer, 0, readBuffer.length)) != C.RESULT_END_OF_INPUT) {
+      if (state == STATE_SNIFF) {
+        int i = 0;
+        while (i < bytesRead && isWhitespace(readBuffer[i])) {
+          i++;
+        }
+        if (i < bytesRead) {
+          state = readBuffer[i] == '{' ? STATE_FIELD : STATE_BINARY;
+        }
+        if (state == STATE_FIELD) {
+          // Whitespace before a JSON body is insignificant.
+          outputLength = 0;
+        }
+      }
+      if (state == STATE_BINARY || state == STATE_SNIFF) {
+        // Leading whitespace is kept while sniffing, since it may be the start of a binary body.
+        if (outputLength + bytesRead > output.length) {
+          output = Arrays.copyOf(output, Math.max(output.length * 2, outputLength + bytesRead));
+        }
+        System.arraycopy(readBuffer, 0, output, outputLength, bytesRead);
+        outputLength += bytesRead;
+        continue;
+      }
+      for (int i = 0; i < bytesRead; i++) {
+        byte b = readBuffer[i];
+        switch (state) {
+          case STATE_FIELD:
+            if (b == LICENSE_FIELD[fieldIndex]) {
+              fieldIndex++;
+              if (fieldIndex == LICENSE_FIELD.length) {
+                fieldIndex = 0;
+                state = STATE_COLON;
+              }
+            } else {
+              fieldIndex = b == '"' ? 1 : 0;
+            }
+            break;
+          case STATE_COLON:
+            if (b == ':') {
+              state = STATE_OPENING_QUOTE;
+            } else if (!isWhitespace(b)) {
+              // "license" was a value rather than a field name, keep searching.
+              state = STATE_FIELD;
+              fieldIndex = b == '"' ? 1 : 0;
+            }
+            break;
+          case STATE_OPENING_QUOTE:
+            if (b == '"') {
+              state = STATE_VALUE;
+            } else if (!isWhitespace(b)) {
+              throw ParserException.createForMalformedDataOfUnknownType(
+                      "License field is not a string", /* cause= */ null);
+            }
+            break;
+          case STATE_ESCAPE:
+            state = STATE_VALUE;
+            // Escaped line breaks may separate Base64 lines, anything else but '/' is invalid.
+            if (b == 'n' || b == 'r' || b == 't') {
+              break;
+            } else if (b != '/') {
+              throw ParserException.createForMalformedDataOfUnknownType(
+                      "Invalid escape in license", /* cause= */ null);
+            }
+            // Fall through to decode the escaped '/'.
+          case STATE_VALUE:
+            if (b == '"') {
+              return outputLength == output.length ? output : Arrays.copyOf(output, outputLength);
+            }
+            if (b == '\\') {
+              state = STATE_ESCAPE;
+              break;
+            }
+            int value = b < 0 ? BASE64_INVALID : BASE64_VALUES[b];
+            if (value == BASE64_SKIP) {
+              break;
+            } else if (value == BASE64_PADDING) {
+              padded = true;
+              break;
+            } else if (value == BASE64_INVALID || padded) {
+              throw ParserException.createForMalformedDataOfUnknownType(
+                      "Invalid Base64 in license", /* cause= */ null);
+            }
+            bits = (bits << 6) | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+              bitCount -= 8;
+              if (outputLength == output.length) {
+                output = Arrays.copyOf(output, output.length * 2);
+              }
+              output[outputLength++] = (byte) (bits >> bitCount);
+              bits &= (1 << bitCount) - 1;
+            }
+            break;
+          default:
+            throw new IllegalStateException();
+        }
+      }
+    }
+
+    if (state == STATE_BINARY || state == STATE_SNIFF) {
+      return outputLength == output.length ? output : Arrays.copyOf(output, outputLength);
+    }
+    throw ParserException.createForMalformedDataOfUnknownType(
+            state == STATE_FIELD ? "No license in response" : "Truncated license",
+            /* cause= */ null);
+  }
+
+  private static boolean isJsonContentType(String contentType) {
+    String mimeType = contentType.trim().toLowerCase(Locale.US);
+    return mimeType.startsWith("application/json")
+            || mimeType.startsWith("text/")
+            || mimeType.contains("+json");
+  }
+
+  private static int initialOutputSize(int state, long contentLength) {
+    if (contentLength == C.LENGTH_UNSET || contentLength <= 0 || contentLength > Integer.MAX_VALUE) {
+      return DEFAULT_OUTPUT_SIZE;
+    }
+    // A Base64 encoded license is at most 3/4 of the response size.
+    return state == STATE_BINARY ? (int) contentLength : (int) (contentLength * 3 / 4) + 3;
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+  }
+
+  private static int[] buildBase64Values() {
+    int[] values = new int[128];
+    Arrays.fill(values, BASE64_INVALID);
+    for (int i = 0; i < 26; i++) {
+      values['A' + i] = i;
+      values['a' + i] = 26 + i;
+    }
+    for (int i = 0; i < 10; i++) {
+      values['0' + i] = 52 + i;
+    }
+    values['+'] = 62;
+    values['/'] = 63;
+    // URL safe alphabet.
+    values['-'] = 62;
+    values['_'] = 63;
+    values['='] = BASE64_PADDING;
+    values[' '] = BASE64_SKIP;
+    values['\n'] = BASE64_SKIP;
+    values['\r'] = BASE64_SKIP;
+    values['\t'] = BASE64_SKIP;
+    return values;
+  }
+}
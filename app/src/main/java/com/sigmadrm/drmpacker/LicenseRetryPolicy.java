@@ -0,0 +1,199 @@
+package com.sigmadrm.drmpacker;
+
+import java.io.IOException;
+import java.util.Random;
+
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.common.ParserException;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.HttpDataSource;
+
+/**
+ * Decides whether and when a failed license or provisioning request is retried, and whether key
+ * requests are hedged against an alternate license server.
+ *
+ * <p>Network failures and HTTP 408, 429 and 5xx responses are retriable. Other HTTP responses,
+ * malformed responses and non-network errors are fatal. Retries back off exponentially with random
+ * jitter and never extend past the total deadline of the request.
+ */
+@UnstableApi
+public final class LicenseRetryPolicy {
+
+  /** A policy that never retries nor hedges. */
+  public static final LicenseRetryPolicy NO_RETRY = new Builder().setMaxAttempts(1).build();
+
+  /** Builder for {@link LicenseRetryPolicy} instances. */
+  public static final class Builder {
+
+    private int maxAttempts;
+    private long initialBackoffMs;
+    private long maxBackoffMs;
+    private float backoffMultiplier;
+    private float jitterFraction;
+    private long totalDeadlineMs;
+    @Nullable private String hedgeLicenseUrl;
+    private float hedgeLatencyPercentile;
+    private long minHedgeDelayMs;
+    private Random random;
+
+    /** Creates a builder with default values. */
+    public Builder() {
+      maxAttempts = 3;
+      initialBackoffMs = 250;
+      maxBackoffMs = 2_000;
+      backoffMultiplier = 2f;
+      jitterFraction = 0.5f;
+      totalDeadlineMs = 15_000;
+      hedgeLatencyPercentile = 0.95f;
+      minHedgeDelayMs = 500;
+      random = new Random();
+    }
+
+    /** Sets the maximum number of attempts per request, including the first one. */
+    public Builder setMaxAttempts(int maxAttempts) {
+      this.maxAttempts = maxAttempts;
+      return this;
+    }
+
+    /** Sets the backoff before the first retry, in milliseconds. */
+    public Builder setInitialBackoffMs(long initialBackoffMs) {
+      this.initialBackoffMs = initialBackoffMs;
+      return this;
+    }
+
+    /** Sets the maximum backoff between two attempts, in milliseconds. */
+    public Builder setMaxBackoffMs(long maxBackoffMs) {
+      this.maxBackoffMs = maxBackoffMs;
+      return this;
+    }
+
+    /** Sets the factor by which the backoff grows with each retry. */
+    public Builder setBackoffMultiplier(float backoffMultiplier) {
+      this.backoffMultiplier = backoffMultiplier;
+      return this;
+    }
+
+    /**
+     * Sets the fraction of each backoff that is randomized. A backoff of {@code b} becomes a value
+     * in {@code [b * (1 - jitterFraction), b]}.
+     */
+    public Builder setJitterFraction(float jitterFraction) {
+      this.jitterFraction = jitterFraction;
+      return this;
+    }
+
+    /** Sets the total time budget of a request including all retries, in milliseconds. */
+    public Builder setTotalDeadlineMs(long totalDeadlineMs) {
+      this.totalDeadlineMs = totalDeadlineMs;
+      return this;
+    }
+
+    /**
+     * Enables hedged key requests. When a key request has not completed after the given
+     * percentile of recent key request latencies, a second request is sent to {@code
+     * hedgeLicenseUrl} and the first response to arrive is used.
+     *
+     * @param hedgeLicenseUrl        The alternate license server URL, or null to disable hedging.
+     * @param hedgeLatencyPercentile The latency percentile after which to hedge, in (0, 1].
+     */
+    public Builder setHedging(@Nullable String hedgeLicenseUrl, float hedgeLatencyPercentile) {
+      this.hedgeLicenseUrl = hedgeLicenseUrl;
+      this.hedgeLatencyPercentile = hedgeLatencyPercentile;
+      return this;
+    }
+
+    /** Sets the minimum delay before a hedged request is sent, in milliseconds. */
+    public Builder setMinHedgeDelayMs(long minHedgeDelayMs) {
+      this.minHedgeDelayMs = minHedgeDelayMs;
+      return this;
+    }
+
+    /** Sets the source of randomness for jitter. */
+    public Builder setRandom(Random random) {
+      this.random = random;
+      return this;
+    }
+
+    /** Builds the policy. */
+    public LicenseRetryPolicy build() {
+      return new LicenseRetryPolicy(this);
+    }
+  }
+
+  private final int maxAttempts;
+  private final long initialBackoffMs;
+  private final long maxBackoffMs;
+  private final float backoffMultiplier;
+  private final float jitterFraction;
+  private final long totalDeadlineMs;
+  @Nullable private final String hedgeLicenseUrl;
+  private final float hedgeLatencyPercentile;
+  private final long minHedgeDelayMs;
+  private final Random random;
+
+  private LicenseRetryPolicy(Builder builder) {
+    maxAttempts = builder.maxAttempts;
+    initialBackoffMs = builder.initialBackoffMs;
+    maxBackoffMs = builder.maxBackoffMs;
+    backoffMultiplier = builder.backoffMultiplier;
+    jitterFraction = builder.jitterFraction;
+    totalDeadlineMs = builder.totalDeadlineMs;
+    hedgeLicenseUrl = builder.hedgeLicenseUrl;
+    hedgeLatencyPercentile = builder.hedgeLatencyPercentile;
+    minHedgeDelayMs = builder.minHedgeDelayMs;
+    random = builder.random;
+  }
+
+  /** Returns the total time budget of a request including all retries, in milliseconds. */
+  public long getTotalDeadlineMs() {
+    return totalDeadlineMs;
+  }
+
+  /** Returns the alternate license server URL for hedged key requests, or null. */
+  @Nullable
+  public String getHedgeLicenseUrl() {
+    return hedgeLicenseUrl;
+  }
+
+  /** Returns the latency percentile after which a key request is hedged. */
+  public float getHedgeLatencyPercentile() {
+    return hedgeLatencyPercentile;
+  }
+
+  /** Returns the minimum delay before a hedged request is sent, in milliseconds. */
+  public long getMinHedgeDelayMs() {
+    return minHedgeDelayMs;
+  }
+
+  /** Returns whether {@code error} may go away when the request is repeated. */
+  public static boolean isRetriable(Throwable error) {
+    if (error instanceof HttpDataSource.InvalidResponseCodeException) {
+      int responseCode = ((HttpDataSource.InvalidResponseCodeException) error).responseCode;
+      return responseCode == 408 || responseCode == 429 || responseCode >= 500;
+    }
+    if (error instanceof ParserException) {
+      return false;
+    }
+    return error instanceof IOException;
+  }
+
+  /**
+   * Returns the delay before the next attempt of a failed request, or {@link C#TIME_UNSET} if the
+   * request must fail.
+   *
+   * @param error               The error of the failed attempt.
+   * @param attemptCount        The number of attempts made so far.
+   * @param remainingDeadlineMs The time left of the request's total deadline, in milliseconds.
+   */
+  public long getRetryDelayMs(Throwable error, int attemptCount, long remainingDeadlineMs) {
+    if (attemptCount >= maxAttempts || !isRetriable(error)) {
+      return C.TIME_UNSET;
+    }
+    double backoffMs = initialBackoffMs * Math.pow(backoffMultiplier, attemptCount - 1);
+    backoffMs = Math.min(backoffMs, maxBackoffMs);
+    backoffMs -= backoffMs * jitterFraction * random.nextDouble();
+    long delayMs = (long) backoffMs;
+    return delayMs < remainingDeadlineMs ? delayMs : C.TIME_UNSET;
+  }
+}
@@ -0,0 +1,188 @@
+package com.sigmadrm.drmpacker;
+
+import android.app.ActivityManager;
+import android.content.Context;
+
+import androidx.media3.common.C;
+import androidx.media3.common.Format;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.exoplayer.DefaultLoadControl;
+import androidx.media3.exoplayer.Renderer;
+import androidx.media3.exoplayer.trackselection.ExoTrackSelection;
+import androidx.media3.exoplayer.upstream.DefaultAllocator;
+
+/**
+ * A {@link DefaultLoadControl} whose buffer durations and size come from the memory available to
+ * the app.
+ *
+ * <p>Buffered media lives on the Java heap, so the target buffer size is capped by a fraction of
+ * {@link ActivityManager#getMemoryClass()}, which players that buffer at the same time split between
+ * them. Within that cap it is sized to hold the maximum buffer duration at the highest bitrate of
+ * the selected tracks. Unused allocations can be released with {@link #trimMemory()} when the
+ * system is low on memory.
+ */
+@UnstableApi
+public final class MemoryAwareLoadControl extends DefaultLoadControl {
+
+  /** Buffer settings for a class of devices. */
+  public static final class Profile {
+
+    /** For low RAM devices and heaps of up to 128 MB. */
+    public static final Profile LOW =
+            new Profile(
+                    /* minBufferMs= */ 15_000,
+                    /* maxBufferMs= */ 30_000,
+                    /* backBufferDurationMs= */ 0,
+                    /* heapFraction= */ 0.25f,
+                    /* initialAllocationCount= */ 0);
+    /** For heaps of up to 256 MB. Uses the default buffer durations. */
+    public static final Profile MEDIUM =
+            new Profile(
+                    DEFAULT_MIN_BUFFER_MS,
+                    DEFAULT_MAX_BUFFER_MS,
+                    /* backBufferDurationMs= */ 0,
+                    /* heapFraction= */ 0.35f,
+                    /* initialAllocationCount= */ 0);
+    /** For larger heaps. Buffers further ahead and keeps a back buffer for fast seeks back. */
+    public static final Profile HIGH =
+            new Profile(
+                    /* minBufferMs= */ 50_000,
+                    /* maxBufferMs= */ 120_000,
+                    /* backBufferDurationMs= */ 30_000,
+                    /* heapFraction= */ 0.5f,
+                    /* initialAllocationCount= */ 256);
+
+    /** The minimum duration of media to buffer, in milliseconds. */
+    public final int minBufferMs;
+    /** The maximum duration of media to buffer, in milliseconds. */
+    public final int maxBufferMs;
+    /** The duration of media kept behind the playback position, in milliseconds. */
+    public final int backBufferDurationMs;
+    /** The fraction of the heap that buffered media may use. */
+    public final float heapFraction;
+    /** The number of allocations made up front, which are never released. */
+    public final int initialAllocationCount;
+
+    private Profile(int minBufferMs, int maxBufferMs, int backBufferDurationMs, float heapFraction,
+                    int initialAllocationCount) {
+      this.minBufferMs = minBufferMs;
+      this.maxBufferMs = maxBufferMs;
+      this.backBufferDurationMs = backBufferDurationMs;
+      this.heapFraction = heapFraction;
+      this.initialAllocationCount = initialAllocationCount;
+    }
+
+    /** Returns the profile for {@code memoryClassMb} and whether the device is a low RAM device. */
+    public static Profile forMemoryClass(int memoryClassMb, boolean isLowRamDevice) {
+      if (isLowRamDevice || memoryClassMb <= 128) {
+        return LOW;
+      } else if (memoryClassMb <= 256) {
+        return MEDIUM;
+      }
+      return HIGH;
+    }
+  }
+
+  /** The smallest target buffer size, in bytes. */
+  private static final int MIN_TARGET_BUFFER_BYTES = 32 * C.DEFAULT_BUFFER_SEGMENT_SIZE;
+  /** Headroom over the buffer size computed from bitrates, which are averages. */
+  private static final float BITRATE_HEADROOM = 1.25f;
+
+  private final DefaultAllocator allocator;
+  private final int maxBufferMs;
+  private final long memoryBudgetBytes;
+  private volatile int targetBufferBytes;
+
+  /** Returns a load control for the memory class of the device {@code context} runs on. */
+  public static MemoryAwareLoadControl create(Context context) {
+    return create(context, /* playerCount= */ 1);
+  }
+
+  /**
+   * Returns a load control for one of {@code playerCount} players that buffer at the same time on
+   * the device {@code context} runs on.
+   */
+  public static MemoryAwareLoadControl create(Context context, int playerCount) {
+    ActivityManager activityManager =
+            (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+    int memoryClassMb = activityManager.getMemoryClass();
+    Profile profile = Profile.forMemoryClass(memoryClassMb, activityManager.isLowRamDevice());
+    return new MemoryAwareLoadControl(profile, memoryClassMb, playerCount);
+  }
+
+  /**
+   * @param profile       The buffer settings.
+   * @param memoryClassMb The heap size of the app, in megabytes.
+   */
+  public MemoryAwareLoadControl(Profile profile, int memoryClassMb) {
+    this(profile, memoryClassMb, /* playerCount= */ 1);
+  }
+
+  /**
+   * @param profile       The buffer settings.
+   * @param memoryClassMb The heap size of the app, in megabytes.
+   * @param playerCount   The number of players that buffer at the same time, each with its own
+   *                      load control, and split the heap budget of {@code profile}.
+   */
+  public MemoryAwareLoadControl(Profile profile, int memoryClassMb, int playerCount) {
+    this(
+            profile,
+            (long) (memoryClassMb * 1024L * 1024L * profile.heapFraction) / playerCount,
+            new DefaultAllocator(
+                    /* trimOnReset= */ true,
+                    C.DEFAULT_BUFFER_SEGMENT_SIZE,
+                    profile.initialAllocationCount / playerCount));
+  }
+
+  private MemoryAwareLoadControl(Profile profile, long memoryBudgetBytes,
+                                 DefaultAllocator allocator) {
+    super(
+            allocator,
+            profile.minBufferMs,
+            profile.maxBufferMs,
+            DEFAULT_BUFFER_FOR_PLAYBACK_MS,
+            DEFAULT_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS,
+            DEFAULT_TARGET_BUFFER_BYTES,
+            DEFAULT_PRIORITIZE_TIME_OVER_SIZE_THRESHOLDS,
+            profile.backBufferDurationMs,
+            DEFAULT_RETAIN_BACK_BUFFER_FROM_KEYFRAME);
+    this.allocator = allocator;
+    this.maxBufferMs = profile.maxBufferMs;
+    this.memoryBudgetBytes = memoryBudgetBytes;
+  }
+
+  /**
+   * Releases the allocations that are not holding media. Can be called on any thread, typically
+   * from {@code onTrimMemory}.
+   */
+  public void trimMemory() {
+    allocator.setTargetBufferSize(0);
+    allocator.setTargetBufferSize(targetBufferBytes);
+  }
+
+  @Override
+  protected int calculateTargetBufferBytes(Renderer[] renderers,
+                                           ExoTrackSelection[] trackSelectionArray) {
+    long bitrateSum = 0;
+    boolean bitratesKnown = true;
+    for (ExoTrackSelection trackSelection : trackSelectionArray) {
+      if (trackSelection == null) {
+        continue;
+      }
+      int maxBitrate = Format.NO_VALUE;
+      for (int i = 0; i < trackSelection.length(); i++) {
+        maxBitrate = Math.max(maxBitrate, trackSelection.getFormat(i).bitrate);
+      }
+      if (maxBitrate == Format.NO_VALUE) {
+        bitratesKnown = false;
+      }
+      bitrateSum += Math.max(0, maxBitrate);
+    }
+    long targetBytes = bitratesKnown && bitrateSum > 0
+            ? (long) (bitrateSum / 8 * (maxBufferMs / 1000f) * BITRATE_HEADROOM)
+            : super.calculateTargetBufferBytes(renderers, trackSelectionArray);
+    targetBytes = Math.max(MIN_TARGET_BUFFER_BYTES, Math.min(memoryBudgetBytes, targetBytes));
+    targetBufferBytes = (int) Math.min(Integer.MAX_VALUE, targetBytes);
+    return targetBufferBytes;
+  }
+}
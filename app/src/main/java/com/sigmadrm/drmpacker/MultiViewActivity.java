@@ -0,0 +1,217 @@
+package com.sigmadrm.drmpacker;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+import android.widget.GridLayout;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import androidx.annotation.Nullable;
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.media3.common.C;
+import androidx.media3.common.MimeTypes;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.common.util.Util;
+import androidx.media3.exoplayer.dash.manifest.DashManifest;
+import androidx.media3.exoplayer.drm.MediaDrmCallback;
+import androidx.media3.exoplayer.upstream.ParsingLoadable;
+import androidx.media3.ui.PlayerView;
+
+/**
+ * Plays several streams at once in a grid of tiles that share one {@link MultiViewPipeline}.
+ * Clicking a tile, or selecting it with a remote control, moves audio to it.
+ */
+@UnstableApi
+public class MultiViewActivity extends AppCompatActivity {
+  /** A string array extra with the URIs of the DASH manifests to play, one per tile. */
+  public static final String EXTRA_URIS = "uris";
+
+  private static final String TAG = "MultiViewActivity";
+
+  /** The number of tiles shown when no URIs are given. */
+  private static final int DEFAULT_TILE_COUNT = 4;
+
+  private GridLayout grid;
+  private FrameLayout[] tileViews;
+  private PlayerView[] playerViews;
+  @Nullable private MultiViewPipeline pipeline;
+  private final List<MultiViewPipeline.Tile> tiles = new ArrayList<>();
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  // Queried once, off the main thread.
+  @Nullable private MultiViewPipeline.DecoderBudget decoderBudget;
+  private boolean decoderBudgetRequested;
+  private boolean playersRequested;
+  String[] uris;
+
+  @Override
+  protected void onCreate(Bundle savedInstanceState) {
+    super.onCreate(savedInstanceState);
+    uris = getIntent().getStringArrayExtra(EXTRA_URIS);
+    if (uris == null || uris.length == 0) {
+      uris = new String[DEFAULT_TILE_COUNT];
+      Arrays.fill(uris, PlayerActivity.DEFAULT_CONTENT_URI);
+    }
+
+    setContentView(R.layout.activity_multi_view);
+
+    grid = findViewById(R.id.grid);
+    int columnCount = (int) Math.ceil(Math.sqrt(uris.length));
+    grid.setColumnCount(columnCount);
+    grid.setRowCount((uris.length + columnCount - 1) / columnCount);
+    tileViews = new FrameLayout[uris.length];
+    playerViews = new PlayerView[uris.length];
+    for (int i = 0; i < uris.length; i++) {
+      // Player views without controls do not handle touches, which reach their parent instead.
+      FrameLayout tileView = new FrameLayout(this);
+      tileView.setFocusable(true);
+      PlayerView playerView = new PlayerView(this);
+      playerView.setUseController(false);
+      tileView.addView(playerView, new FrameLayout.LayoutParams(
+              ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+      GridLayout.LayoutParams layoutParams = new GridLayout.LayoutParams(
+              GridLayout.spec(GridLayout.UNDEFINED, 1f),
+              GridLayout.spec(GridLayout.UNDEFINED, 1f));
+      layoutParams.width = 0;
+      layoutParams.height = 0;
+      grid.addView(tileView, layoutParams);
+      tileViews[i] = tileView;
+      playerViews[i] = playerView;
+    }
+  }
+
+  @Override
+  public void onStart() {
+    super.onStart();
+    if (Util.SDK_INT > 23) {
+      initializePlayers();
+    }
+  }
+
+  @Override
+  public void onResume() {
+    super.onResume();
+    if (Util.SDK_INT <= 23 || pipeline == null) {
+      initializePlayers();
+    }
+  }
+
+  @Override
+  public void onPause() {
+    super.onPause();
+    if (Util.SDK_INT <= 23) {
+      releasePlayers();
+    }
+  }
+
+  @Override
+  public void onStop() {
+    super.onStop();
+    if (Util.SDK_INT > 23) {
+      releasePlayers();
+    }
+    ((ExoplayerApplication) getApplication()).exportPlaybackMetricsAsync();
+  }
+
+  @Override
+  protected void onDestroy() {
+    super.onDestroy();
+    mainHandler.removeCallbacksAndMessages(null);
+  }
+
+  private void initializePlayers() {
+    playersRequested = true;
+    if (pipeline != null) {
+      return;
+    }
+    if (decoderBudget == null) {
+      requestDecoderBudget();
+      return;
+    }
+    ExoplayerApplication application = (ExoplayerApplication) getApplication();
+    // Idle players hold decoders the tiles need.
+    application.getPlayerPool().trim();
+    MediaDrmCallback drmCallback = application.buildMediaDrmCallback(
+            PlayerActivity.LICENSE_URL, PlayerActivity.buildCustomData());
+    MultiViewPipeline pipeline =
+            application.buildMultiViewPipeline(drmCallback, decoderBudget, uris.length);
+    // The grid is laid out over the whole screen.
+    DisplayMetrics displayMetrics = getResources().getDisplayMetrics();
+    int tileWidth = displayMetrics.widthPixels / grid.getColumnCount();
+    int tileHeight = displayMetrics.heightPixels / grid.getRowCount();
+    for (int i = 0; i < uris.length; i++) {
+      MultiViewPipeline.Tile tile = pipeline.acquireTile(tileWidth, tileHeight);
+      tile.player.addAnalyticsListener(application.getPlaybackMetrics().createAnalyticsListener());
+      playerViews[i].setPlayer(tile.player);
+      tileViews[i].setOnClickListener(v -> pipeline.setAudioTile(tile));
+      tile.play(uris[i]);
+      tiles.add(tile);
+    }
+    this.pipeline = pipeline;
+  }
+
+  /**
+   * Queries the decoder budget for the video MIME types of the tiles' manifests on the background
+   * executor, since it loads the manifests and enumerates decoders when their capabilities are not
+   * cached yet, and initializes the players once it is known. The manifests are loaded through the
+   * manifest cache, which the tiles then reuse.
+   */
+  private void requestDecoderBudget() {
+    if (decoderBudgetRequested) {
+      return;
+    }
+    decoderBudgetRequested = true;
+    ExoplayerApplication application = (ExoplayerApplication) getApplication();
+    String[] uris = this.uris.clone();
+    application.getBackgroundExecutor().execute(() -> {
+      Set<String> mimeTypes = new LinkedHashSet<>();
+      for (String uri : new LinkedHashSet<>(Arrays.asList(uris))) {
+        try {
+          DashManifest manifest = ParsingLoadable.load(
+                  application.buildManifestDataSourceFactory().createDataSource(),
+                  application.buildManifestParser(), Uri.parse(uri), C.DATA_TYPE_MANIFEST);
+          mimeTypes.addAll(MultiViewPipeline.DecoderBudget.getVideoMimeTypes(manifest));
+        } catch (IOException e) {
+          // The tile fails on its own when it loads the manifest.
+          Log.w(TAG, "Failed to load manifest of " + uri, e);
+        }
+      }
+      if (mimeTypes.isEmpty()) {
+        mimeTypes.add(MimeTypes.VIDEO_H264);
+      }
+      MultiViewPipeline.DecoderBudget decoderBudget = MultiViewPipeline.DecoderBudget
+              .forMimeTypes(application.getMediaCodecSelector(), mimeTypes);
+      mainHandler.post(() -> {
+        this.decoderBudget = decoderBudget;
+        if (playersRequested) {
+          initializePlayers();
+        }
+      });
+    });
+  }
+
+  private void releasePlayers() {
+    playersRequested = false;
+    if (pipeline == null) {
+      return;
+    }
+    for (int i = 0; i < uris.length; i++) {
+      playerViews[i].setPlayer(null);
+      tileViews[i].setOnClickListener(null);
+    }
+    for (MultiViewPipeline.Tile tile : tiles) {
+      tile.release();
+    }
+    tiles.clear();
+    pipeline = null;
+  }
+}
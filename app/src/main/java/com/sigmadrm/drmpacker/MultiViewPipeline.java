@@ -0,0 +1,333 @@
+package com.sigmadrm.drmpacker;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.media3.common.C;
+import androidx.media3.common.Format;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.MimeTypes;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.exoplayer.ExoPlayer;
+import androidx.media3.exoplayer.dash.manifest.AdaptationSet;
+import androidx.media3.exoplayer.dash.manifest.DashManifest;
+import androidx.media3.exoplayer.dash.manifest.Representation;
+import androidx.media3.exoplayer.drm.DefaultDrmSessionManager;
+import androidx.media3.exoplayer.mediacodec.MediaCodecUtil;
+import androidx.media3.exoplayer.source.MediaSource;
+import androidx.media3.exoplayer.trackselection.AdaptiveTrackSelection;
+import androidx.media3.exoplayer.trackselection.DefaultTrackSelector;
+import androidx.media3.exoplayer.trackselection.TrackSelector;
+import androidx.media3.exoplayer.upstream.BandwidthMeter;
+
+/**
+ * Plays several DRM protected DASH streams at once, for a mosaic or picture-in-picture, with one
+ * player per {@link Tile}. The tiles share what the player of {@link PlayerActivity} builds for
+ * itself: the DRM session manager, the license callback it was built with, the bandwidth meter and
+ * the media source factory with its data sources.
+ *
+ * <p>Tiles whose content has the same keys share DRM sessions, so each license is requested once.
+ * The session manager is kept prepared while any tile is acquired, so that replacing a tile keeps
+ * the {@code MediaDrm} open. All players run on the shared playback looper, the only thread the
+ * session manager may be used on.
+ *
+ * <p>Track selection divides the decoder budget between the tiles. The largest frame of the video
+ * decoder is split evenly between {@code maxTiles} tiles, each tile is also capped to its
+ * viewport, and tiles beyond the number of decoder instances the device supports play without
+ * video. Every tile adapts to an equal share of the bandwidth estimate, which counts the transfers
+ * of all tiles. Only the {@link #setAudioTile audio tile} plays audio.
+ *
+ * <p>Must be used on the main thread.
+ */
+@UnstableApi
+public final class MultiViewPipeline {
+
+  /** Creates player builders. */
+  public interface PlayerBuilderFactory {
+
+    /**
+     * Returns a builder for a player that selects tracks with {@code trackSelector} and estimates
+     * bandwidth with {@code bandwidthMeter}. The player must run on the playback looper of the
+     * pipeline.
+     */
+    ExoPlayer.Builder createPlayerBuilder(TrackSelector trackSelector,
+                                          BandwidthMeter bandwidthMeter);
+  }
+
+  /** The budget of the video decoder shared by the tiles. */
+  public static final class DecoderBudget {
+
+    /** A budget for devices whose decoder capabilities are not known. */
+    public static final DecoderBudget UNKNOWN =
+            new DecoderBudget(Format.NO_VALUE, Format.NO_VALUE, Format.NO_VALUE);
+
+    /** The largest frame width of the decoder, or {@link Format#NO_VALUE}. */
+    public final int maxWidth;
+    /** The largest frame height of the decoder, or {@link Format#NO_VALUE}. */
+    public final int maxHeight;
+    /** The number of decoder instances the device supports, or {@link Format#NO_VALUE}. */
+    public final int maxInstances;
+
+    public DecoderBudget(int maxWidth, int maxHeight, int maxInstances) {
+      this.maxWidth = maxWidth;
+      this.maxHeight = maxHeight;
+      this.maxInstances = maxInstances;
+    }
+
+    /**
+     * Returns the tightest budget of the decoders used for protected video of {@code mimeTypes},
+     * those of the content of the tiles, or {@link #UNKNOWN} if there are none. Must not be called
+     * on the main thread.
+     */
+    public static DecoderBudget forMimeTypes(CachingMediaCodecSelector mediaCodecSelector,
+                                             Collection<String> mimeTypes) {
+      @Nullable DecoderBudget budget = null;
+      for (String mimeType : mimeTypes) {
+        DecoderBudget mimeTypeBudget = forMimeType(mediaCodecSelector, mimeType);
+        budget = budget == null ? mimeTypeBudget : budget.intersect(mimeTypeBudget);
+      }
+      return budget != null ? budget : UNKNOWN;
+    }
+
+    /**
+     * Returns the budget of the decoder used for protected {@code mimeType} video, the secure one
+     * if there is one. Answered from the decoder capabilities persisted by {@code
+     * mediaCodecSelector} once they are cached, otherwise blocks while decoders are enumerated.
+     * Must not be called on the main thread.
+     */
+    public static DecoderBudget forMimeType(CachingMediaCodecSelector mediaCodecSelector,
+                                            String mimeType) {
+      try {
+        @Nullable DecoderCapabilityCache.DecoderCapabilities decoder =
+                mediaCodecSelector.getPreferredDecoder(new DecoderCapabilityCache.Query(
+                        mimeType, /* secure= */ true, /* tunneling= */ false));
+        if (decoder == null) {
+          // Devices without a secure decoder decrypt into a regular one.
+          decoder = mediaCodecSelector.getPreferredDecoder(new DecoderCapabilityCache.Query(
+                  mimeType, /* secure= */ false, /* tunneling= */ false));
+        }
+        if (decoder == null) {
+          return UNKNOWN;
+        }
+        return new DecoderBudget(decoder.maxWidth, decoder.maxHeight, decoder.maxInstances);
+      } catch (MediaCodecUtil.DecoderQueryException e) {
+        Log.w(TAG, "Failed to query decoders for " + mimeType, e);
+        return UNKNOWN;
+      }
+    }
+
+    /** Returns the MIME types of the video representations of the first period of {@code manifest}. */
+    public static Set<String> getVideoMimeTypes(DashManifest manifest) {
+      Set<String> mimeTypes = new LinkedHashSet<>();
+      if (manifest.getPeriodCount() == 0) {
+        return mimeTypes;
+      }
+      for (AdaptationSet adaptationSet : manifest.getPeriod(0).adaptationSets) {
+        if (adaptationSet.type != C.TRACK_TYPE_VIDEO) {
+          continue;
+        }
+        for (Representation representation : adaptationSet.representations) {
+          @Nullable String mimeType = representation.format.sampleMimeType;
+          if (MimeTypes.isVideo(mimeType)) {
+            mimeTypes.add(mimeType);
+          }
+        }
+      }
+      return mimeTypes;
+    }
+
+    /** Returns the budget that fits both this budget and {@code other}. */
+    @VisibleForTesting
+    /* package */ DecoderBudget intersect(DecoderBudget other) {
+      return new DecoderBudget(min(maxWidth, other.maxWidth), min(maxHeight, other.maxHeight),
+              min(maxInstances, other.maxInstances));
+    }
+
+    private static int min(int first, int second) {
+      if (first == Format.NO_VALUE) {
+        return second;
+      }
+      return second == Format.NO_VALUE ? first : Math.min(first, second);
+    }
+  }
+
+  /** One player of the pipeline. */
+  public final class Tile {
+
+    /** The player of the tile. */
+    public final ExoPlayer player;
+
+    private final int index;
+    private final int viewportWidth;
+    private final int viewportHeight;
+    private boolean released;
+
+    private Tile(ExoPlayer player, int index, int viewportWidth, int viewportHeight) {
+      this.player = player;
+      this.index = index;
+      this.viewportWidth = viewportWidth;
+      this.viewportHeight = viewportHeight;
+    }
+
+    /** Plays the DASH manifest at {@code contentUri}. */
+    public void play(String contentUri) {
+      player.setMediaSource(mediaSourceFactory.createMediaSource(MediaItem.fromUri(contentUri)));
+      player.prepare();
+      player.play();
+    }
+
+    /** Releases the player. The pipeline is released with its last tile. */
+    public void release() {
+      if (released) {
+        return;
+      }
+      released = true;
+      tiles.set(index, null);
+      if (audioTile == this) {
+        audioTile = null;
+      }
+      player.release();
+      releaseReference();
+    }
+
+    private void updateTrackSelectionParameters() {
+      // Tiles beyond the decoder instances of the device would fail to get a decoder.
+      boolean videoDisabled =
+              decoderBudget.maxInstances != Format.NO_VALUE && index >= decoderBudget.maxInstances;
+      player.setTrackSelectionParameters(player.getTrackSelectionParameters().buildUpon()
+              .setMaxVideoSize(maxTileVideoSize[0], maxTileVideoSize[1])
+              .setViewportSize(viewportWidth, viewportHeight,
+                      /* viewportOrientationMayChange= */ false)
+              .setTrackTypeDisabled(C.TRACK_TYPE_VIDEO, videoDisabled)
+              .setTrackTypeDisabled(C.TRACK_TYPE_AUDIO, audioTile != this)
+              .build());
+    }
+  }
+
+  private static final String TAG = "MultiViewPipeline";
+
+  private final Context context;
+  private final DefaultDrmSessionManager drmSessionManager;
+  private final MediaSource.Factory mediaSourceFactory;
+  private final BandwidthMeter bandwidthMeter;
+  private final PlayerBuilderFactory playerBuilderFactory;
+  private final DecoderBudget decoderBudget;
+  private final int maxTiles;
+  private final int[] maxTileVideoSize;
+  private final Handler playbackHandler;
+  // By tile index. Released tiles are null.
+  private final List<Tile> tiles;
+
+  @Nullable private Tile audioTile;
+  private int referenceCount;
+
+  /**
+   * @param context              A context.
+   * @param drmSessionManager    The session manager shared by all tiles.
+   * @param mediaSourceFactory   A factory for media sources that use {@code drmSessionManager}.
+   * @param bandwidthMeter       The bandwidth meter shared by all tiles.
+   * @param playerBuilderFactory Creates the builders of the players of the tiles.
+   * @param playbackLooper       The playback looper of the players.
+   * @param decoderBudget        The budget of the video decoder shared by the tiles.
+   * @param maxTiles             The number of tiles that may play at the same time.
+   */
+  public MultiViewPipeline(Context context, DefaultDrmSessionManager drmSessionManager,
+                           MediaSource.Factory mediaSourceFactory, BandwidthMeter bandwidthMeter,
+                           PlayerBuilderFactory playerBuilderFactory, Looper playbackLooper,
+                           DecoderBudget decoderBudget, int maxTiles) {
+    this.context = context.getApplicationContext();
+    this.drmSessionManager = drmSessionManager;
+    this.mediaSourceFactory = mediaSourceFactory;
+    this.bandwidthMeter = bandwidthMeter;
+    this.playerBuilderFactory = playerBuilderFactory;
+    this.decoderBudget = decoderBudget;
+    this.maxTiles = maxTiles;
+    maxTileVideoSize =
+            getMaxTileVideoSize(decoderBudget.maxWidth, decoderBudget.maxHeight, maxTiles);
+    playbackHandler = new Handler(playbackLooper);
+    tiles = new ArrayList<>();
+  }
+
+  /**
+   * Acquires a tile whose player shows video of up to {@code viewportWidth} by {@code
+   * viewportHeight} pixels. The first tile acquired plays audio.
+   */
+  public Tile acquireTile(int viewportWidth, int viewportHeight) {
+    int index = tiles.indexOf(null);
+    if (index == -1) {
+      index = tiles.size();
+      tiles.add(null);
+    }
+    if (tiles.size() > maxTiles) {
+      Log.w(TAG, "Tile " + index + " is beyond the decoder budget of " + maxTiles + " tiles");
+    }
+    // Each tile adapts to its share of the bandwidth of all tiles.
+    DefaultTrackSelector trackSelector = new DefaultTrackSelector(context,
+            new AdaptiveTrackSelection.Factory(
+                    AdaptiveTrackSelection.DEFAULT_MIN_DURATION_FOR_QUALITY_INCREASE_MS,
+                    AdaptiveTrackSelection.DEFAULT_MAX_DURATION_FOR_QUALITY_DECREASE_MS,
+                    AdaptiveTrackSelection.DEFAULT_MIN_DURATION_TO_RETAIN_AFTER_DISCARD_MS,
+                    AdaptiveTrackSelection.DEFAULT_BANDWIDTH_FRACTION / maxTiles));
+    ExoPlayer player =
+            playerBuilderFactory.createPlayerBuilder(trackSelector, bandwidthMeter).build();
+    Tile tile = new Tile(player, index, viewportWidth, viewportHeight);
+    tiles.set(index, tile);
+    if (audioTile == null) {
+      audioTile = tile;
+    }
+    tile.updateTrackSelectionParameters();
+    acquireReference();
+    return tile;
+  }
+
+  /** Moves audio to {@code tile}. */
+  public void setAudioTile(Tile tile) {
+    if (tile.released || audioTile == tile) {
+      return;
+    }
+    @Nullable Tile previousAudioTile = audioTile;
+    audioTile = tile;
+    if (previousAudioTile != null) {
+      previousAudioTile.updateTrackSelectionParameters();
+    }
+    tile.updateTrackSelectionParameters();
+  }
+
+  /**
+   * Returns the largest video size, as width and height, each of {@code tileCount} tiles can play
+   * for the tiles together to decode no more pixels per frame than one {@code decoderMaxWidth} by
+   * {@code decoderMaxHeight} frame. The size has the aspect ratio of the decoder frame, and is
+   * unbounded if the decoder size is {@link Format#NO_VALUE}.
+   */
+  @VisibleForTesting
+  /* package */ static int[] getMaxTileVideoSize(int decoderMaxWidth, int decoderMaxHeight,
+                                                 int tileCount) {
+    if (decoderMaxWidth == Format.NO_VALUE || decoderMaxHeight == Format.NO_VALUE) {
+      return new int[] {Integer.MAX_VALUE, Integer.MAX_VALUE};
+    }
+    double scale = Math.sqrt(1.0 / Math.max(1, tileCount));
+    return new int[] {(int) (decoderMaxWidth * scale), (int) (decoderMaxHeight * scale)};
+  }
+
+  private void acquireReference() {
+    if (referenceCount++ == 0) {
+      // Keeps the MediaDrm and its sessions open between tiles.
+      playbackHandler.post(drmSessionManager::prepare);
+    }
+  }
+
+  private void releaseReference() {
+    if (--referenceCount == 0) {
+      playbackHandler.post(drmSessionManager::release);
+    }
+  }
+}
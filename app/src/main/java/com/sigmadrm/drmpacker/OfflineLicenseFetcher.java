@@ -0,0 +1,118 @@
+package com.sigmadrm.drmpacker;
+
+import android.net.Uri;
+import android.util.Pair;
+import java.io.IOException;
+
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.common.Format;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.exoplayer.dash.DashUtil;
+import androidx.media3.exoplayer.dash.manifest.DashManifest;
+import androidx.media3.exoplayer.drm.DefaultDrmSessionManager;
+import androidx.media3.exoplayer.drm.DrmSession;
+import androidx.media3.exoplayer.drm.DrmSessionEventListener;
+import androidx.media3.exoplayer.drm.ExoMediaDrm;
+import androidx.media3.exoplayer.drm.MediaDrmCallback;
+import androidx.media3.exoplayer.drm.OfflineLicenseHelper;
+import androidx.media3.exoplayer.upstream.ParsingLoadable;
+
+/**
+ * Acquires persistable Widevine licenses for DASH content and records them in an
+ * {@link OfflineLicenseStore}, and releases the licenses the store drops.
+ */
+@UnstableApi
+public final class OfflineLicenseFetcher {
+
+  private final DataSource.Factory manifestDataSourceFactory;
+  private final ParsingLoadable.Parser<DashManifest> manifestParser;
+  private final DataSource.Factory segmentDataSourceFactory;
+  private final ExoMediaDrm.Provider exoMediaDrmProvider;
+  private final MediaDrmCallback drmCallback;
+  private final OfflineLicenseStore licenseStore;
+  private final String merchantId;
+  private final String userId;
+
+  /**
+   * @param manifestDataSourceFactory A factory for the data sources used to load manifests.
+   * @param manifestParser            The parser of the manifests.
+   * @param segmentDataSourceFactory  A factory for the data sources used to load initialization
+   *                                  segments.
+   * @param exoMediaDrmProvider       The provider of the {@link ExoMediaDrm} that acquires and
+   *                                  releases licenses.
+   * @param drmCallback               The callback used to request licenses.
+   * @param licenseStore              The store in which acquired licenses are recorded.
+   * @param merchantId                The merchant the licenses are acquired for.
+   * @param userId                    The user the licenses are acquired for.
+   */
+  public OfflineLicenseFetcher(DataSource.Factory manifestDataSourceFactory,
+                               ParsingLoadable.Parser<DashManifest> manifestParser,
+                               DataSource.Factory segmentDataSourceFactory,
+                               ExoMediaDrm.Provider exoMediaDrmProvider,
+                               MediaDrmCallback drmCallback, OfflineLicenseStore licenseStore,
+                               String merchantId, String userId) {
+    this.manifestDataSourceFactory = manifestDataSourceFactory;
+    this.manifestParser = manifestParser;
+    this.segmentDataSourceFactory = segmentDataSourceFactory;
+    this.exoMediaDrmProvider = exoMediaDrmProvider;
+    this.drmCallback = drmCallback;
+    this.licenseStore = licenseStore;
+    this.merchantId = merchantId;
+    this.userId = userId;
+  }
+
+  /**
+   * Loads the manifest of {@code contentUri}, acquires an offline license for it and stores the
+   * resulting key set id. Must not be called on the main thread.
+   *
+   * @return The key set id, or null if the content is not Widevine protected.
+   */
+  @Nullable
+  public byte[] fetch(String contentUri) throws IOException, DrmSession.DrmSessionException {
+    DashManifest manifest = ParsingLoadable.load(manifestDataSourceFactory.createDataSource(),
+            manifestParser, Uri.parse(contentUri), C.DATA_TYPE_MANIFEST);
+    Format format = DashUtil.loadFormatWithDrmInitData(
+            segmentDataSourceFactory.createDataSource(), manifest.getPeriod(0));
+    if (format == null || format.drmInitData == null) {
+      return null;
+    }
+    String key = OfflineLicenseStore.buildKey(format.drmInitData, merchantId, userId);
+    if (key == null) {
+      return null;
+    }
+
+    OfflineLicenseHelper offlineLicenseHelper = buildOfflineLicenseHelper();
+    try {
+      byte[] keySetId = offlineLicenseHelper.downloadLicense(format);
+      Pair<Long, Long> remainingSec = offlineLicenseHelper.getLicenseDurationRemainingSec(keySetId);
+      licenseStore.put(key, contentUri, keySetId, remainingSec.first);
+      return keySetId;
+    } finally {
+      offlineLicenseHelper.release();
+    }
+  }
+
+  /**
+   * Releases the persistent license with {@code keySetId}, in the CDM and with the license server.
+   * Must not be called on the main thread.
+   */
+  public void release(byte[] keySetId) throws DrmSession.DrmSessionException {
+    OfflineLicenseHelper offlineLicenseHelper = buildOfflineLicenseHelper();
+    try {
+      offlineLicenseHelper.releaseLicense(keySetId);
+    } finally {
+      offlineLicenseHelper.release();
+    }
+  }
+
+  private OfflineLicenseHelper buildOfflineLicenseHelper() {
+    DefaultDrmSessionManager drmSessionManager =
+            new DefaultDrmSessionManager.Builder()
+                    .setUuidAndExoMediaDrmProvider(C.WIDEVINE_UUID, exoMediaDrmProvider)
+                    .build(drmCallback);
+    return new OfflineLicenseHelper(
+            drmSessionManager, new DrmSessionEventListener.EventDispatcher());
+  }
+}
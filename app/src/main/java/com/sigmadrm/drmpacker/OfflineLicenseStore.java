@@ -0,0 +1,323 @@
+package com.sigmadrm.drmpacker;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+import android.util.Log;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.common.DrmInitData;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.common.util.Util;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Persists offline Widevine key set ids so that repeat plays of a title can restore their keys
+ * through {@link androidx.media3.exoplayer.drm.DefaultDrmSessionManager#setMode} instead of making
+ * a license request.
+ *
+ * <p>Entries are keyed by the Widevine PSSH plus merchant and user, and carry the content URI they
+ * were acquired for so that a lookup can happen before the manifest is loaded. Entries expire with
+ * the license duration reported by the CDM and are evicted least recently used first. The licenses
+ * of {@link #setPinned pinned} content, such as downloaded titles, are never evicted. Licenses that
+ * are dropped for any reason are handed to a {@link LicenseReleaser} so that the CDM releases them
+ * too.
+ */
+@UnstableApi
+public final class OfflineLicenseStore {
+
+  /** Releases the persistent licenses dropped from the store. */
+  public interface LicenseReleaser {
+
+    /**
+     * Releases the license with {@code keySetId}. Called with the store locked, so it must not
+     * block.
+     */
+    void releaseLicense(byte[] keySetId);
+  }
+
+  /** The default maximum number of stored licenses. */
+  public static final int DEFAULT_MAX_ENTRIES = 64;
+
+  private static final String TAG = "OfflineLicenseStore";
+  private static final String PREFERENCES_NAME = "offline_licenses";
+  private static final String PINNED_PREFERENCES_NAME = "offline_licenses_pinned";
+  private static final String KEY_PINNED_CONTENT_URIS = "contentUris";
+
+  private static final String FIELD_CONTENT_URI = "contentUri";
+  private static final String FIELD_KEY_SET_ID = "keySetId";
+  private static final String FIELD_EXPIRES_AT_MS = "expiresAtMs";
+  private static final String FIELD_LAST_USED_MS = "lastUsedMs";
+
+  private final SharedPreferences preferences;
+  private final SharedPreferences pinnedPreferences;
+  private final int maxEntries;
+  private final LicenseReleaser licenseReleaser;
+  // Ordered from least to most recently used.
+  private final LinkedHashMap<String, Entry> entries;
+  private final Set<String> pinnedContentUris;
+
+  /**
+   * @param context         A context.
+   * @param maxEntries      The maximum number of licenses of content that is not pinned to keep
+   *                        before evicting the least recently used one.
+   * @param licenseReleaser Releases the licenses dropped from the store.
+   */
+  public OfflineLicenseStore(Context context, int maxEntries, LicenseReleaser licenseReleaser) {
+    Context applicationContext = context.getApplicationContext();
+    this.preferences =
+            applicationContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    this.pinnedPreferences =
+            applicationContext.getSharedPreferences(PINNED_PREFERENCES_NAME, Context.MODE_PRIVATE);
+    this.maxEntries = maxEntries;
+    this.licenseReleaser = licenseReleaser;
+    this.entries = new LinkedHashMap<>(/* initialCapacity= */ 16, /* loadFactor= */ 0.75f,
+            /* accessOrder= */ true);
+    // The set returned by the preferences must not be modified.
+    this.pinnedContentUris = new HashSet<>(
+            pinnedPreferences.getStringSet(KEY_PINNED_CONTENT_URIS, new HashSet<>()));
+    loadEntries();
+  }
+
+  /**
+   * Builds the store key for the Widevine scheme data in {@code drmInitData}.
+   *
+   * @return The key, or null if {@code drmInitData} has no Widevine scheme data.
+   */
+  @Nullable
+  public static String buildKey(DrmInitData drmInitData, String merchantId, String userId) {
+    for (int i = 0; i < drmInitData.schemeDataCount; i++) {
+      DrmInitData.SchemeData schemeData = drmInitData.get(i);
+      if (schemeData.matches(C.WIDEVINE_UUID) && schemeData.data != null) {
+        return sha256Hex(schemeData.data) + ":" + merchantId + ":" + userId;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the key set id of an unexpired license acquired for {@code contentUri}, or null if
+   * there is none. Expired licenses found on the way are removed.
+   */
+  @Nullable
+  public synchronized byte[] getKeySetId(String contentUri) {
+    long nowMs = System.currentTimeMillis();
+    SharedPreferences.Editor editor = preferences.edit();
+    byte[] keySetId = null;
+    String hitKey = null;
+    Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<String, Entry> mapEntry = iterator.next();
+      Entry entry = mapEntry.getValue();
+      if (entry.isExpired(nowMs)) {
+        iterator.remove();
+        editor.remove(mapEntry.getKey());
+        licenseReleaser.releaseLicense(entry.keySetId);
+      } else if (keySetId == null && entry.contentUri.equals(contentUri)) {
+        keySetId = entry.keySetId;
+        hitKey = mapEntry.getKey();
+      }
+    }
+    if (hitKey != null) {
+      // get() moves the entry to the most recently used position.
+      Entry entry = entries.get(hitKey);
+      entry.lastUsedMs = nowMs;
+      editor.putString(hitKey, entry.toJson());
+    }
+    editor.apply();
+    return keySetId;
+  }
+
+  /**
+   * Stores a license.
+   *
+   * @param key                The key built by {@link #buildKey}.
+   * @param contentUri         The content URI the license was acquired for.
+   * @param keySetId           The offline key set id.
+   * @param licenseDurationSec The remaining license duration in seconds, or {@link C#TIME_UNSET}
+   *                           if the license does not expire.
+   */
+  public synchronized void put(String key, String contentUri, byte[] keySetId,
+                               long licenseDurationSec) {
+    long nowMs = System.currentTimeMillis();
+    long expiresAtMs =
+            licenseDurationSec == C.TIME_UNSET || licenseDurationSec == Long.MAX_VALUE
+                    ? C.TIME_UNSET
+                    : nowMs + licenseDurationSec * 1000;
+    Entry entry = new Entry(contentUri, keySetId, expiresAtMs, nowMs);
+    SharedPreferences.Editor editor = preferences.edit();
+    // Drop any older license for the same content under a different key.
+    Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<String, Entry> mapEntry = iterator.next();
+      if (mapEntry.getValue().contentUri.equals(contentUri) && !mapEntry.getKey().equals(key)) {
+        iterator.remove();
+        editor.remove(mapEntry.getKey());
+        licenseReleaser.releaseLicense(mapEntry.getValue().keySetId);
+      }
+    }
+    @Nullable Entry replaced = entries.put(key, entry);
+    if (replaced != null && !Arrays.equals(replaced.keySetId, keySetId)) {
+      licenseReleaser.releaseLicense(replaced.keySetId);
+    }
+    editor.putString(key, entry.toJson());
+    evictIfNeeded(editor);
+    editor.apply();
+  }
+
+  /**
+   * Removes the license with {@code keySetId} stored for {@code contentUri}, for example after a
+   * session that restored it failed, unless the content is pinned.
+   *
+   * @return Whether the license was removed. False if another license is stored for the content
+   *     by now, or if the content is pinned and so must stay playable offline.
+   */
+  public synchronized boolean removeUnpinned(String contentUri, byte[] keySetId) {
+    if (pinnedContentUris.contains(contentUri)) {
+      return false;
+    }
+    Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<String, Entry> mapEntry = iterator.next();
+      Entry entry = mapEntry.getValue();
+      if (entry.contentUri.equals(contentUri) && Arrays.equals(entry.keySetId, keySetId)) {
+        iterator.remove();
+        preferences.edit().remove(mapEntry.getKey()).apply();
+        licenseReleaser.releaseLicense(entry.keySetId);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Sets whether the license of {@code contentUri} is pinned. Pinned licenses are kept however
+   * long ago they were used, for content that must stay playable offline. Content can be pinned
+   * before its license is stored.
+   */
+  public synchronized void setPinned(String contentUri, boolean pinned) {
+    boolean changed = pinned
+            ? pinnedContentUris.add(contentUri)
+            : pinnedContentUris.remove(contentUri);
+    if (!changed) {
+      return;
+    }
+    pinnedPreferences.edit()
+            .putStringSet(KEY_PINNED_CONTENT_URIS, new HashSet<>(pinnedContentUris))
+            .apply();
+    if (!pinned) {
+      SharedPreferences.Editor editor = preferences.edit();
+      evictIfNeeded(editor);
+      editor.apply();
+    }
+  }
+
+  private void evictIfNeeded(SharedPreferences.Editor editor) {
+    int unpinnedEntryCount = 0;
+    for (Entry entry : entries.values()) {
+      if (!pinnedContentUris.contains(entry.contentUri)) {
+        unpinnedEntryCount++;
+      }
+    }
+    Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+    while (unpinnedEntryCount > maxEntries && iterator.hasNext()) {
+      Map.Entry<String, Entry> mapEntry = iterator.next();
+      if (pinnedContentUris.contains(mapEntry.getValue().contentUri)) {
+        continue;
+      }
+      iterator.remove();
+      editor.remove(mapEntry.getKey());
+      licenseReleaser.releaseLicense(mapEntry.getValue().keySetId);
+      unpinnedEntryCount--;
+    }
+  }
+
+  private void loadEntries() {
+    List<Entry> loaded = new ArrayList<>();
+    List<String> loadedKeys = new ArrayList<>();
+    SharedPreferences.Editor editor = preferences.edit();
+    for (Map.Entry<String, ?> stored : preferences.getAll().entrySet()) {
+      try {
+        loaded.add(Entry.fromJson(String.valueOf(stored.getValue())));
+        loadedKeys.add(stored.getKey());
+      } catch (JSONException e) {
+        Log.w(TAG, "Dropping unreadable license entry " + stored.getKey(), e);
+        editor.remove(stored.getKey());
+      }
+    }
+    // Insert in last-used order so that the access ordered map starts out as an LRU list.
+    while (!loaded.isEmpty()) {
+      int oldest = 0;
+      for (int i = 1; i < loaded.size(); i++) {
+        if (loaded.get(i).lastUsedMs < loaded.get(oldest).lastUsedMs) {
+          oldest = i;
+        }
+      }
+      entries.put(loadedKeys.remove(oldest), loaded.remove(oldest));
+    }
+    evictIfNeeded(editor);
+    editor.apply();
+  }
+
+  private static String sha256Hex(byte[] data) {
+    try {
+      return Util.toHexString(MessageDigest.getInstance("SHA-256").digest(data));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static final class Entry {
+
+    public final String contentUri;
+    public final byte[] keySetId;
+    public final long expiresAtMs;
+    public long lastUsedMs;
+
+    public Entry(String contentUri, byte[] keySetId, long expiresAtMs, long lastUsedMs) {
+      this.contentUri = contentUri;
+      this.keySetId = keySetId;
+      this.expiresAtMs = expiresAtMs;
+      this.lastUsedMs = lastUsedMs;
+    }
+
+    public boolean isExpired(long nowMs) {
+      return expiresAtMs != C.TIME_UNSET && nowMs >= expiresAtMs;
+    }
+
+    public String toJson() {
+      try {
+        JSONObject json = new JSONObject();
+        json.put(FIELD_CONTENT_URI, contentUri);
+        json.put(FIELD_KEY_SET_ID, Base64.encodeToString(keySetId, Base64.NO_WRAP));
+        json.put(FIELD_EXPIRES_AT_MS, expiresAtMs);
+        json.put(FIELD_LAST_USED_MS, lastUsedMs);
+        return json.toString();
+      } catch (JSONException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    public static Entry fromJson(String value) throws JSONException {
+      JSONObject json = new JSONObject(value);
+      return new Entry(
+              json.getString(FIELD_CONTENT_URI),
+              Base64.decode(json.getString(FIELD_KEY_SET_ID), Base64.NO_WRAP),
+              json.getLong(FIELD_EXPIRES_AT_MS),
+              json.getLong(FIELD_LAST_USED_MS));
+    }
+  }
+}
@@ -0,0 +1,229 @@
+package com.sigmadrm.drmpacker;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.NonNull;
+import androidx.media3.common.C;
+import androidx.media3.common.Format;
+import androidx.media3.common.Player;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.exoplayer.analytics.AnalyticsListener;
+import androidx.media3.exoplayer.source.LoadEventInfo;
+import androidx.media3.exoplayer.source.MediaLoadData;
+
+/**
+ * Aggregates playback performance numbers of all players into histograms and counters.
+ *
+ * <p>Each player gets its own listener from {@link #createAnalyticsListener()}. The time to first
+ * frame is broken down into manifest load, license acquisition, first segment load and video decoder
+ * initialization. License request latencies are reported by {@link WidevineMediaDrmCallback}
+ * through {@link #onLicenseRequestCompleted}. Recording does not allocate.
+ */
+@UnstableApi
+public final class PlaybackMetrics implements WidevineMediaDrmCallback.LicenseRequestListener {
+
+  /** An immutable copy of the metrics at one point in time. */
+  public static final class Snapshot {
+
+    /** The wall clock time at which the snapshot was taken. */
+    public final long timestampMs;
+    /** The number of players that started loading. */
+    public final long playbackCount;
+    /** The number of rebuffers, not counting buffering after seeks. */
+    public final long rebufferCount;
+    /** The number of dropped video frames. */
+    public final long droppedFrameCount;
+    /** The number of video bitrate switches. */
+    public final long bitrateSwitchCount;
+    /** The time from the start of loading to the first rendered frame, in milliseconds. */
+    public final LatencyHistogram timeToFirstFrameMs;
+    /** The duration of the first manifest load, in milliseconds. */
+    public final LatencyHistogram manifestLoadMs;
+    /** The time from opening the first DRM session to its keys being loaded, in milliseconds. */
+    public final LatencyHistogram licenseAcquisitionMs;
+    /** The duration of the first media segment load, in milliseconds. */
+    public final LatencyHistogram firstSegmentLoadMs;
+    /** The duration of the first video decoder initialization, in milliseconds. */
+    public final LatencyHistogram decoderInitMs;
+    /** The duration of rebuffers, in milliseconds. */
+    public final LatencyHistogram rebufferDurationMs;
+    /** The latency of license requests, in milliseconds. */
+    public final LatencyHistogram licenseRequestMs;
+
+    private Snapshot(PlaybackMetrics metrics) {
+      timestampMs = System.currentTimeMillis();
+      playbackCount = metrics.playbackCount.get();
+      rebufferCount = metrics.rebufferCount.get();
+      droppedFrameCount = metrics.droppedFrameCount.get();
+      bitrateSwitchCount = metrics.bitrateSwitchCount.get();
+      timeToFirstFrameMs = metrics.timeToFirstFrameMs.copy();
+      manifestLoadMs = metrics.manifestLoadMs.copy();
+      licenseAcquisitionMs = metrics.licenseAcquisitionMs.copy();
+      firstSegmentLoadMs = metrics.firstSegmentLoadMs.copy();
+      decoderInitMs = metrics.decoderInitMs.copy();
+      rebufferDurationMs = metrics.rebufferDurationMs.copy();
+      licenseRequestMs = metrics.licenseRequestMs.copy();
+    }
+  }
+
+  private final AtomicLong playbackCount;
+  private final AtomicLong rebufferCount;
+  private final AtomicLong droppedFrameCount;
+  private final AtomicLong bitrateSwitchCount;
+  private final LatencyHistogram timeToFirstFrameMs;
+  private final LatencyHistogram manifestLoadMs;
+  private final LatencyHistogram licenseAcquisitionMs;
+  private final LatencyHistogram firstSegmentLoadMs;
+  private final LatencyHistogram decoderInitMs;
+  private final LatencyHistogram rebufferDurationMs;
+  private final LatencyHistogram licenseRequestMs;
+
+  public PlaybackMetrics() {
+    playbackCount = new AtomicLong();
+    rebufferCount = new AtomicLong();
+    droppedFrameCount = new AtomicLong();
+    bitrateSwitchCount = new AtomicLong();
+    timeToFirstFrameMs = new LatencyHistogram();
+    manifestLoadMs = new LatencyHistogram();
+    licenseAcquisitionMs = new LatencyHistogram();
+    firstSegmentLoadMs = new LatencyHistogram();
+    decoderInitMs = new LatencyHistogram();
+    rebufferDurationMs = new LatencyHistogram();
+    licenseRequestMs = new LatencyHistogram();
+  }
+
+  /** Returns a new listener that records the metrics of one player. */
+  public AnalyticsListener createAnalyticsListener() {
+    return new PlayerListener();
+  }
+
+  /** Returns a copy of the current metrics. */
+  public Snapshot getSnapshot() {
+    return new Snapshot(this);
+  }
+
+  @Override
+  public void onLicenseRequestCompleted(long latencyMs) {
+    licenseRequestMs.record(latencyMs);
+  }
+
+  private final class PlayerListener implements AnalyticsListener {
+
+    private long loadStartRealtimeMs;
+    private long drmSessionAcquiredRealtimeMs;
+    private long rebufferStartRealtimeMs;
+    private int lastVideoBitrate;
+    private boolean seeking;
+    private boolean ready;
+    private boolean manifestLoadRecorded;
+    private boolean firstSegmentLoadRecorded;
+    private boolean licenseAcquisitionRecorded;
+    private boolean decoderInitRecorded;
+    private boolean firstFrameRecorded;
+
+    public PlayerListener() {
+      loadStartRealtimeMs = C.TIME_UNSET;
+      drmSessionAcquiredRealtimeMs = C.TIME_UNSET;
+      rebufferStartRealtimeMs = C.TIME_UNSET;
+      lastVideoBitrate = Format.NO_VALUE;
+    }
+
+    @Override
+    public void onPlaybackStateChanged(@NonNull EventTime eventTime, int state) {
+      if (state == Player.STATE_BUFFERING) {
+        if (loadStartRealtimeMs == C.TIME_UNSET) {
+          loadStartRealtimeMs = eventTime.realtimeMs;
+          playbackCount.incrementAndGet();
+        } else if (ready && !seeking) {
+          rebufferStartRealtimeMs = eventTime.realtimeMs;
+        }
+      } else if (state == Player.STATE_READY) {
+        ready = true;
+        seeking = false;
+        if (rebufferStartRealtimeMs != C.TIME_UNSET) {
+          rebufferCount.incrementAndGet();
+          rebufferDurationMs.record(eventTime.realtimeMs - rebufferStartRealtimeMs);
+          rebufferStartRealtimeMs = C.TIME_UNSET;
+        }
+      } else {
+        rebufferStartRealtimeMs = C.TIME_UNSET;
+      }
+    }
+
+    @Override
+    public void onPositionDiscontinuity(@NonNull EventTime eventTime,
+                                        @NonNull Player.PositionInfo oldPosition,
+                                        @NonNull Player.PositionInfo newPosition, int reason) {
+      if (reason == Player.DISCONTINUITY_REASON_SEEK) {
+        // Buffering until the next ready state is caused by the seek, not a stall.
+        seeking = true;
+        rebufferStartRealtimeMs = C.TIME_UNSET;
+      }
+    }
+
+    @Override
+    public void onLoadCompleted(@NonNull EventTime eventTime, @NonNull LoadEventInfo loadEventInfo,
+                                @NonNull MediaLoadData mediaLoadData) {
+      if (mediaLoadData.dataType == C.DATA_TYPE_MANIFEST && !manifestLoadRecorded) {
+        manifestLoadRecorded = true;
+        manifestLoadMs.record(loadEventInfo.loadDurationMs);
+      } else if (mediaLoadData.dataType == C.DATA_TYPE_MEDIA && !firstSegmentLoadRecorded) {
+        firstSegmentLoadRecorded = true;
+        firstSegmentLoadMs.record(loadEventInfo.loadDurationMs);
+      }
+    }
+
+    @Override
+    public void onDrmSessionAcquired(@NonNull EventTime eventTime, int state) {
+      if (drmSessionAcquiredRealtimeMs == C.TIME_UNSET) {
+        drmSessionAcquiredRealtimeMs = eventTime.realtimeMs;
+      }
+    }
+
+    @Override
+    public void onDrmKeysLoaded(@NonNull EventTime eventTime) {
+      if (!licenseAcquisitionRecorded && drmSessionAcquiredRealtimeMs != C.TIME_UNSET) {
+        licenseAcquisitionRecorded = true;
+        licenseAcquisitionMs.record(eventTime.realtimeMs - drmSessionAcquiredRealtimeMs);
+      }
+    }
+
+    @Override
+    public void onVideoDecoderInitialized(@NonNull EventTime eventTime, @NonNull String decoderName,
+                                          long initializedTimestampMs,
+                                          long initializationDurationMs) {
+      if (!decoderInitRecorded) {
+        decoderInitRecorded = true;
+        decoderInitMs.record(initializationDurationMs);
+      }
+    }
+
+    @Override
+    public void onRenderedFirstFrame(@NonNull EventTime eventTime, @NonNull Object output,
+                                     long renderTimeMs) {
+      if (!firstFrameRecorded && loadStartRealtimeMs != C.TIME_UNSET) {
+        firstFrameRecorded = true;
+        timeToFirstFrameMs.record(eventTime.realtimeMs - loadStartRealtimeMs);
+      }
+    }
+
+    @Override
+    public void onDroppedVideoFrames(@NonNull EventTime eventTime, int droppedFrames,
+                                     long elapsedMs) {
+      droppedFrameCount.addAndGet(droppedFrames);
+    }
+
+    @Override
+    public void onDownstreamFormatChanged(@NonNull EventTime eventTime,
+                                          @NonNull MediaLoadData mediaLoadData) {
+      Format format = mediaLoadData.trackFormat;
+      if (mediaLoadData.trackType != C.TRACK_TYPE_VIDEO || format == null) {
+        return;
+      }
+      if (lastVideoBitrate != Format.NO_VALUE && format.bitrate != lastVideoBitrate) {
+        bitrateSwitchCount.incrementAndGet();
+      }
+      lastVideoBitrate = format.bitrate;
+    }
+  }
+}
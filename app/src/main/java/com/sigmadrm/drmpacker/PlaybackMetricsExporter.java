@@ -0,0 +1,176 @@
+package com.sigmadrm.drmpacker;
+
+import android.os.Build;
+import android.util.Log;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.common.util.Assertions;
+import androidx.media3.common.util.UnstableApi;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Writes {@link PlaybackMetrics.Snapshot snapshots} to JSON files in a local directory, together
+ * with the device and app version they were taken on.
+ *
+ * <p>Each exporter writes to one file, named after the time it was created, and replaces its
+ * contents on every export. Snapshots aggregate everything since the process started, so the file
+ * always holds the latest totals of one process. After each export, the files of earlier processes
+ * are deleted once they are older than the maximum age or beyond the maximum file count, newest
+ * first, so the directory does not grow with every launch. Must not be called on the main thread.
+ */
+@UnstableApi
+public final class PlaybackMetricsExporter {
+
+  /** The default number of files kept, including the file of the current process. */
+  public static final int DEFAULT_MAX_FILE_COUNT = 20;
+  /** The default age after which the files of earlier processes are deleted, in milliseconds. */
+  public static final long DEFAULT_MAX_FILE_AGE_MS = 30L * 24 * 60 * 60 * 1000;
+
+  private static final String TAG = "PlaybackMetricsExporter";
+  private static final String FILE_NAME_PREFIX = "playback-metrics-";
+  private static final double[] PERCENTILES = {0.5, 0.9, 0.99};
+
+  private final File directory;
+  private final String fileName;
+  private final int maxFileCount;
+  private final long maxFileAgeMs;
+
+  /** @param directory The directory in which the files are written. */
+  public PlaybackMetricsExporter(File directory) {
+    this(directory, DEFAULT_MAX_FILE_COUNT, DEFAULT_MAX_FILE_AGE_MS);
+  }
+
+  /**
+   * @param directory    The directory in which the files are written.
+   * @param maxFileCount The number of files kept, including the file of this exporter.
+   * @param maxFileAgeMs The time since their last export after which the files of other exporters
+   *                     are deleted, in milliseconds.
+   */
+  public PlaybackMetricsExporter(File directory, int maxFileCount, long maxFileAgeMs) {
+    Assertions.checkArgument(maxFileCount > 0);
+    this.directory = directory;
+    this.maxFileCount = maxFileCount;
+    this.maxFileAgeMs = maxFileAgeMs;
+    fileName = FILE_NAME_PREFIX + System.currentTimeMillis() + ".json";
+  }
+
+  /**
+   * Writes {@code snapshot} to the file of this exporter.
+   *
+   * @return The file.
+   * @throws IOException If the file could not be written.
+   */
+  public File export(PlaybackMetrics.Snapshot snapshot) throws IOException {
+    byte[] data;
+    try {
+      data = toJson(snapshot).toString(/* indentSpaces= */ 2).getBytes(StandardCharsets.UTF_8);
+    } catch (JSONException e) {
+      throw new IOException(e);
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Failed to create " + directory);
+    }
+    File file = new File(directory, fileName);
+    File tempFile = new File(directory, fileName + ".tmp");
+    try (OutputStream outputStream = new FileOutputStream(tempFile)) {
+      outputStream.write(data);
+    }
+    if (!tempFile.renameTo(file)) {
+      throw new IOException("Failed to rename " + tempFile);
+    }
+    deleteExpiredFiles();
+    return file;
+  }
+
+  /**
+   * Deletes the files of other exporters that were last written more than the maximum age ago or
+   * are beyond the maximum file count, and the temporary files that other exporters left behind.
+   */
+  private void deleteExpiredFiles() {
+    @Nullable File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    List<File> otherFiles = new ArrayList<>();
+    for (File file : files) {
+      String name = file.getName();
+      if (!name.startsWith(FILE_NAME_PREFIX) || name.startsWith(fileName)) {
+        continue;
+      }
+      if (name.endsWith(".json")) {
+        otherFiles.add(file);
+      } else {
+        // The process exited while it was writing.
+        delete(file);
+      }
+    }
+    // Newest first.
+    Collections.sort(otherFiles, (first, second) ->
+            Long.compare(second.lastModified(), first.lastModified()));
+    long minLastModifiedMs = System.currentTimeMillis() - maxFileAgeMs;
+    for (int i = 0; i < otherFiles.size(); i++) {
+      File file = otherFiles.get(i);
+      // The file of this exporter takes one of the slots.
+      if (i + 1 >= maxFileCount || file.lastModified() < minLastModifiedMs) {
+        delete(file);
+      }
+    }
+  }
+
+  private static void delete(File file) {
+    if (!file.delete()) {
+      Log.w(TAG, "Failed to delete " + file);
+    }
+  }
+
+  private static JSONObject toJson(PlaybackMetrics.Snapshot snapshot) throws JSONException {
+    JSONObject device = new JSONObject()
+            .put("manufacturer", Build.MANUFACTURER)
+            .put("model", Build.MODEL)
+            .put("sdkInt", Build.VERSION.SDK_INT)
+            .put("fingerprint", Build.FINGERPRINT);
+    JSONObject app = new JSONObject()
+            .put("versionName", BuildConfig.VERSION_NAME)
+            .put("versionCode", BuildConfig.VERSION_CODE);
+    return new JSONObject()
+            .put("timestampMs", snapshot.timestampMs)
+            .put("device", device)
+            .put("app", app)
+            .put("playbackCount", snapshot.playbackCount)
+            .put("rebufferCount", snapshot.rebufferCount)
+            .put("droppedFrameCount", snapshot.droppedFrameCount)
+            .put("bitrateSwitchCount", snapshot.bitrateSwitchCount)
+            .put("timeToFirstFrameMs", toJson(snapshot.timeToFirstFrameMs))
+            .put("manifestLoadMs", toJson(snapshot.manifestLoadMs))
+            .put("licenseAcquisitionMs", toJson(snapshot.licenseAcquisitionMs))
+            .put("firstSegmentLoadMs", toJson(snapshot.firstSegmentLoadMs))
+            .put("decoderInitMs", toJson(snapshot.decoderInitMs))
+            .put("rebufferDurationMs", toJson(snapshot.rebufferDurationMs))
+            .put("licenseRequestMs", toJson(snapshot.licenseRequestMs));
+  }
+
+  private static JSONObject toJson(LatencyHistogram histogram) throws JSONException {
+    JSONObject json = new JSONObject()
+            .put("count", histogram.getCount())
+            .put("sum", histogram.getSum())
+            .put("max", histogram.getMax());
+    for (double percentile : PERCENTILES) {
+      long value = histogram.getPercentile(percentile);
+      if (value != C.TIME_UNSET) {
+        json.put("p" + Math.round(percentile * 100), value);
+      }
+    }
+    return json;
+  }
+}
@@ -1,50 +1,96 @@
 package com.sigmadrm.drmpacker;
 
+import android.Manifest;
+import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Trace;
+import android.text.TextUtils;
+import android.util.Log;
 import android.util.Pair;
 import android.view.View;
 import android.widget.Button;
 import android.widget.Toast;
-import java.util.UUID;
+import java.io.IOException;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.media3.common.ErrorMessageProvider;
 import androidx.media3.common.MediaItem;
+import androidx.media3.common.MimeTypes;
 import androidx.media3.common.PlaybackException;
-import androidx.media3.common.util.Assertions;
+import androidx.media3.common.Player;
 import androidx.media3.common.util.UnstableApi;
 import androidx.media3.common.util.Util;
-import androidx.media3.datasource.HttpDataSource;
 import androidx.media3.exoplayer.ExoPlayer;
+import androidx.media3.exoplayer.analytics.AnalyticsListener;
 import androidx.media3.exoplayer.drm.DefaultDrmSessionManager;
 import androidx.media3.exoplayer.drm.DrmSessionManager;
 import androidx.media3.exoplayer.drm.MediaDrmCallback;
 import androidx.media3.exoplayer.mediacodec.MediaCodecRenderer;
 import androidx.media3.exoplayer.mediacodec.MediaCodecUtil;
-import androidx.media3.exoplayer.source.DefaultMediaSourceFactory;
-import androidx.media3.exoplayer.source.MediaSource;
+import androidx.media3.exoplayer.offline.DownloadHelper;
+import androidx.media3.exoplayer.offline.DownloadRequest;
+import androidx.media3.exoplayer.offline.DownloadService;
 import androidx.media3.exoplayer.trackselection.DefaultTrackSelector;
 import androidx.media3.exoplayer.util.EventLogger;
 import androidx.media3.ui.PlayerControlView;
 import androidx.media3.ui.PlayerView;
 
-import com.sigma.packer.SigmaMediaDrm;
-
 @UnstableApi
 public class PlayerActivity extends AppCompatActivity implements View.OnClickListener, PlayerControlView.VisibilityListener {
+  /** A string array extra with the URIs of DASH manifests to play in order. */
+  public static final String EXTRA_PLAYLIST = "playlist";
+
+  private static final String TAG = "PlayerActivity";
+  private static final int REQUEST_CODE_POST_NOTIFICATIONS = 1;
+
+  /* package */ static final String DEFAULT_CONTENT_URI =
+          "https://sdrm-test.gviet.vn:9080/static/vod_staging/the_box/manifest.mpd";
+  /* package */ static final String LICENSE_URL =
+          "https://license-staging.sigmadrm.com/license/verify/widevine";
+
   private PlayerView playerView;
   private ExoPlayer player;
   private DefaultTrackSelector trackSelector;
+  @Nullable private PlayerPool.PooledPlayer pooledPlayer;
+  private LicensePreacquirer licensePreacquirer;
+  @Nullable private DownloadHelper downloadHelper;
+  private Handler mainHandler;
+  // The key set id of the persisted license of a single item, looked up in the background.
+  @Nullable private byte[] offlineKeySetId;
+  private boolean offlineKeySetIdResolved;
+  private boolean initializePlayerPending;
   String drmLicenseUrl;
   String videoPath;
+  String[] playlist;
+  // Players are only reused for the same playlist, not for another one with the same first item.
+  String playerPoolKey;
+  SigmaCustomData customData;
   Button playBtn = null;
+  Button downloadBtn = null;
+  Button multiViewBtn = null;
 
   protected void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
     initStream();
+    // Warm up the license server connection before the first key request needs it.
+    ((ExoplayerApplication) getApplication()).getLicenseTransport().preconnect(drmLicenseUrl);
+    ExoplayerApplication application = (ExoplayerApplication) getApplication();
+    licensePreacquirer = new LicensePreacquirer(
+            application.buildManifestDataSourceFactory(),
+            application.buildManifestParser(),
+            application.buildDataSourceFactory(),
+            this::buildDrmSessionManager,
+            application.getPlaybackLooper());
+    mainHandler = new Handler(Looper.getMainLooper());
+    // Start the license request while the UI is still being set up, unless a pooled player of a
+    // previous visit holds the sessions already or the keys are restored from a persisted license.
+    resolveOfflineKeySetId();
 
     setContentView(R.layout.activity_player);
 
@@ -54,15 +100,154 @@ public class PlayerActivity extends AppCompatActivity implements View.OnClickLis
     playerView.requestFocus();
 
     playBtn = findViewById(R.id.play);
-    playBtn.setOnClickListener(v -> {
+    playBtn.setOnFocusChangeListener((view, hasFocus) -> {
+      if (hasFocus) {
+        preacquireLicense();
+      }
+    });
+    playBtn.setOnClickListener(v -> restartPlayer());
+    downloadBtn = findViewById(R.id.download);
+    downloadBtn.setOnClickListener(v -> {
+      if (Util.SDK_INT >= 33
+              && checkSelfPermission(Manifest.permission.POST_NOTIFICATIONS)
+                      != PackageManager.PERMISSION_GRANTED) {
+        // The download progress notification needs the permission, the download itself does not.
+        requestPermissions(new String[] {Manifest.permission.POST_NOTIFICATIONS},
+                REQUEST_CODE_POST_NOTIFICATIONS);
+      } else {
+        startDownload();
+      }
+    });
+    multiViewBtn = findViewById(R.id.multi_view);
+    multiViewBtn.setOnClickListener(v -> {
+      // The tiles need the decoders of this player, which would otherwise be parked in the pool.
       releasePlayer();
-      initializePlayer();
+      ((ExoplayerApplication) getApplication()).getPlayerPool().trim();
+      startActivity(new Intent(this, MultiViewActivity.class));
     });
   }
 
+  /**
+   * Downloads the tracks of the title that the default download track selection picks for this
+   * device, and acquires its persistable license alongside, so that playing it afterwards needs no
+   * network.
+   */
+  private void startDownload() {
+    if (downloadHelper != null) {
+      // Still preparing the previous download.
+      return;
+    }
+    ExoplayerApplication application = (ExoplayerApplication) getApplication();
+    MediaItem mediaItem = new MediaItem.Builder()
+            .setUri(videoPath)
+            .setMimeType(MimeTypes.APPLICATION_MPD)
+            .build();
+    // The session manager tells the track selection which protected tracks the device can decrypt.
+    // It opens no session, as the helper only loads the manifest.
+    DrmSessionManager drmSessionManager = application.buildDrmSessionManager(
+            application.getDrmProvisioningManager().getExoMediaDrmProvider(),
+            buildMediaDrmCallback(), /* multiSession= */ false);
+    downloadHelper = DownloadHelper.forMediaItem(
+            mediaItem,
+            DownloadHelper.getDefaultTrackSelectorParameters(this),
+            application.buildRenderersFactory(/* preferExtensionRenderer= */ false),
+            application.buildManifestDataSourceFactory(),
+            drmSessionManager);
+    downloadHelper.prepare(new DownloadHelper.Callback() {
+      @Override
+      public void onPrepared(@NonNull DownloadHelper helper) {
+        // Only the stream keys of the selected representations are downloaded.
+        DownloadRequest downloadRequest =
+                helper.getDownloadRequest(/* id= */ videoPath, /* data= */ null);
+        releaseDownloadHelper();
+        DownloadService.sendAddDownload(PlayerActivity.this, DrmDownloadService.class,
+                downloadRequest, /* foreground= */ false);
+        application.fetchOfflineLicenseAsync(videoPath, /* downloaded= */ true);
+        showToast(R.string.download_started);
+      }
+
+      @Override
+      public void onPrepareError(@NonNull DownloadHelper helper, @NonNull IOException e) {
+        Log.w(TAG, "Failed to prepare the download of " + videoPath, e);
+        releaseDownloadHelper();
+        showToast(R.string.download_failed);
+      }
+    });
+  }
+
+  private void releaseDownloadHelper() {
+    if (downloadHelper != null) {
+      downloadHelper.release();
+      downloadHelper = null;
+    }
+  }
+
+  /**
+   * Looks up the persisted license of a single item on the background executor, where the license
+   * store may still be loading, and then pre-acquires the license or builds a player that was
+   * waiting for the lookup.
+   */
+  private void resolveOfflineKeySetId() {
+    if (playlist.length > 1) {
+      // Shared by all items of the playlist, so the session manager cannot be limited to the
+      // offline keys of one.
+      onOfflineKeySetIdResolved(/* keySetId= */ null);
+      return;
+    }
+    ExoplayerApplication application = (ExoplayerApplication) getApplication();
+    String contentUri = videoPath;
+    application.getBackgroundExecutor().execute(() -> {
+      byte[] keySetId = application.getOfflineLicenseStore().getKeySetId(contentUri);
+      mainHandler.post(() -> onOfflineKeySetIdResolved(keySetId));
+    });
+  }
+
+  private void onOfflineKeySetIdResolved(@Nullable byte[] keySetId) {
+    if (isDestroyed()) {
+      return;
+    }
+    offlineKeySetId = keySetId;
+    offlineKeySetIdResolved = true;
+    preacquireLicense();
+    if (initializePlayerPending) {
+      initializePlayerPending = false;
+      initializePlayer();
+    }
+  }
+
+  /**
+   * Pre-acquires the license of the content, unless its player is playing or parked in the pool
+   * and so holds its sessions already, or its keys are restored from a persisted license.
+   */
+  private void preacquireLicense() {
+    if (!offlineKeySetIdResolved || offlineKeySetId != null || player != null
+            || ((ExoplayerApplication) getApplication()).getPlayerPool().contains(playerPoolKey)) {
+      return;
+    }
+    licensePreacquirer.preacquire(videoPath);
+  }
+
   private void initStream() {
-    videoPath = "https://sdrm-test.gviet.vn:9080/static/vod_staging/the_box/manifest.mpd";
-    drmLicenseUrl = "https://license-staging.sigmadrm.com/license/verify/widevine";
+    videoPath = DEFAULT_CONTENT_URI;
+    playlist = getIntent().getStringArrayExtra(EXTRA_PLAYLIST);
+    if (playlist != null && playlist.length > 0) {
+      videoPath = playlist[0];
+    } else {
+      playlist = new String[] {videoPath};
+    }
+    playerPoolKey = TextUtils.join("\n", playlist);
+    drmLicenseUrl = LICENSE_URL;
+    customData = buildCustomData();
+  }
+
+  /** Returns the custom data sent with key requests. */
+  /* package */ static SigmaCustomData buildCustomData() {
+    return new SigmaCustomData.Builder()
+            .setMerchantId("sctv")
+            .setAppId("RedTV")
+            .setUserId("media3_userId_12346")
+            .setSessionId("media3_sessionId_12355")
+            .build();
   }
 
   @Override
@@ -107,15 +292,42 @@ public class PlayerActivity extends AppCompatActivity implements View.OnClickLis
       }
       releasePlayer();
     }
+    ((ExoplayerApplication) getApplication()).exportPlaybackMetricsAsync();
+  }
+
+  /**
+   * Plays the content from the start. A player that is playing keeps its decoders and DRM sessions,
+   * while a player that failed is replaced by a new one, as the pool does not park failed players.
+   */
+  private void restartPlayer() {
+    if (player != null && player.getPlayerError() == null) {
+      player.seekToDefaultPosition(/* mediaItemIndex= */ 0);
+      player.play();
+      return;
+    }
+    releasePlayer();
+    initializePlayer();
   }
 
   private void releasePlayer() {
+    initializePlayerPending = false;
     if (player != null) {
-      player.release();
+      // Park the player instead of releasing it, so that coming back to the same item keeps its
+      // decoders and DRM sessions.
+      playerView.setPlayer(null);
+      ((ExoplayerApplication) getApplication()).getPlayerPool().release(pooledPlayer);
+      pooledPlayer = null;
       player = null;
     }
   }
 
+  @Override
+  protected void onDestroy() {
+    super.onDestroy();
+    licensePreacquirer.release();
+    releaseDownloadHelper();
+  }
+
   @Override
   public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions,
                                          @NonNull int[] grantResults) {
@@ -125,6 +337,11 @@ public class PlayerActivity extends AppCompatActivity implements View.OnClickLis
       // pending and can be safely ignored in this case.
       return;
     }
+    if (requestCode == REQUEST_CODE_POST_NOTIFICATIONS) {
+      // Downloads without a notification if the permission was denied.
+      startDownload();
+      return;
+    }
     if (grantResults[0] == PackageManager.PERMISSION_GRANTED) {
       initializePlayer();
     } else {
@@ -139,47 +356,96 @@ public class PlayerActivity extends AppCompatActivity implements View.OnClickLis
   }
 
   private void initializePlayer() {
+    Trace.beginSection("PlayerActivity.initializePlayer");
+    try {
+      initializePlayerInternal();
+    } finally {
+      Trace.endSection();
+    }
+  }
+
+  private void initializePlayerInternal() {
+    ExoplayerApplication application = (ExoplayerApplication) getApplication();
+    pooledPlayer = application.getPlayerPool().acquire(playerPoolKey);
+    if (pooledPlayer != null) {
+      player = pooledPlayer.player;
+      trackSelector = pooledPlayer.trackSelector;
+      if (player.getPlaybackState() == Player.STATE_IDLE) {
+        player.prepare();
+      } else if (player.getPlaybackState() == Player.STATE_ENDED) {
+        player.seekToDefaultPosition();
+      }
+      player.play();
+      playerView.setPlayer(player);
+      return;
+    }
+    if (!offlineKeySetIdResolved) {
+      // Built once the lookup is done, as the session manager must know whether to restore keys.
+      initializePlayerPending = true;
+      return;
+    }
+
+    LicensePreacquirer.Preacquisition preacquisition = null;
     DrmSessionManager drmSessionManager;
     if (Util.SDK_INT >= 18) {
-      UUID drmSchemeUuid = Assertions.checkNotNull(Util.getDrmUuid("widevine"));
-      MediaDrmCallback drmCallback = createMediaDrmCallback(drmLicenseUrl, null);
-      drmSessionManager =
-              new DefaultDrmSessionManager.Builder()
-                      .setMultiSession(true)
-                      .setUuidAndExoMediaDrmProvider(drmSchemeUuid, SigmaMediaDrm.DEFAULT_PROVIDER)
-                      .build(drmCallback);
+      preacquisition = licensePreacquirer.take(videoPath);
+      drmSessionManager = preacquisition != null
+              ? preacquisition.drmSessionManager
+              : buildDrmSessionManager(videoPath);
     } else {
       drmSessionManager = DrmSessionManager.DRM_UNSUPPORTED;
     }
 
-    MediaItem mediaItem = MediaItem.fromUri(Uri.parse(videoPath));
-    MediaSource.Factory mediaSourceFactory =
-            new DefaultMediaSourceFactory(getApplicationContext())
-                    .setDrmSessionManagerProvider(mi -> drmSessionManager);
-    MediaSource mediaSource = mediaSourceFactory.createMediaSource(mediaItem);
-
-    trackSelector = new DefaultTrackSelector(/* context= */ this);
-    DefaultTrackSelector.Parameters trackSelectionParameters =
-            new DefaultTrackSelector.ParametersBuilder(/* context= */ this)
-                    .setAllowVideoMixedMimeTypeAdaptiveness(true)
-                    .setAllowVideoNonSeamlessAdaptiveness(true)
-                    .build();
-    player = new ExoPlayer.Builder(getApplicationContext())
-            .setTrackSelector(trackSelector)
-            .build();
-    player.setTrackSelectionParameters(trackSelectionParameters);
-    player.setMediaSource(mediaSource);
-    player.prepare();
+    ExoplayerApplication.PlaylistPlayer playlistPlayer =
+            application.buildPlaylistPlayer(playlist, drmSessionManager);
+    player = playlistPlayer.player;
+    trackSelector = playlistPlayer.trackSelector;
     player.play();
     playerView.setPlayer(player);
-    player.addAnalyticsListener(new EventLogger(trackSelector));
+    if (BuildConfig.DEBUG) {
+      player.addAnalyticsListener(new EventLogger(trackSelector));
+    }
+    if (offlineKeySetId != null) {
+      player.addListener(
+              new OfflineLicenseErrorListener(application, videoPath, offlineKeySetId));
+    } else if (playlist.length == 1 && application.isOfflineLicensePrefetchEnabled()) {
+      player.addAnalyticsListener(new OfflineLicensePrefetcher(application, videoPath));
+    }
+    player.addListener(new FirstFrameListener(application.getStartupWarmup()));
+    // The pre-acquired sessions live as long as the player, which may outlive this activity.
+    LicensePreacquirer.Preacquisition finalPreacquisition = preacquisition;
+    @Nullable PlaylistPreloader playlistPreloader = playlistPlayer.playlistPreloader;
+    pooledPlayer = new PlayerPool.PooledPlayer(playerPoolKey, player, trackSelector, () -> {
+      if (playlistPreloader != null) {
+        playlistPreloader.release();
+      }
+      if (finalPreacquisition != null) {
+        finalPreacquisition.release();
+      }
+    });
+  }
+
+  private DefaultDrmSessionManager buildDrmSessionManager(String contentUri) {
+    ExoplayerApplication application = (ExoplayerApplication) getApplication();
+    MediaDrmCallback drmCallback = buildMediaDrmCallback();
+    // A session whose init data lists the key ids of several tracks is shared by these tracks.
+    DefaultDrmSessionManager drmSessionManager = application.buildDrmSessionManager(
+            application.getDrmProvisioningManager().getExoMediaDrmProvider(), drmCallback,
+            /* multiSession= */ true);
+    if (offlineKeySetId != null && contentUri.equals(videoPath)) {
+      // Restore the persisted keys instead of requesting a license.
+      drmSessionManager.setMode(DefaultDrmSessionManager.MODE_PLAYBACK, offlineKeySetId);
+    }
+    return drmSessionManager;
+  }
+
+  private MediaDrmCallback buildMediaDrmCallback() {
+    return createMediaDrmCallback(drmLicenseUrl, null);
   }
 
   private WidevineMediaDrmCallback createMediaDrmCallback(String licenseUrl, String[] keyRequestPropertiesArray) {
-    HttpDataSource.Factory licenseDataSourceFactory =
-            ((ExoplayerApplication) getApplication()).buildHttpDataSourceFactory();
     WidevineMediaDrmCallback drmCallback =
-            new WidevineMediaDrmCallback(licenseUrl, licenseDataSourceFactory);
+            ((ExoplayerApplication) getApplication()).buildMediaDrmCallback(licenseUrl, customData);
     if (keyRequestPropertiesArray != null) {
       for (int i = 0; i < keyRequestPropertiesArray.length - 1; i += 2) {
         drmCallback.setKeyRequestProperty(keyRequestPropertiesArray[i],
@@ -225,6 +491,79 @@ public class PlayerActivity extends AppCompatActivity implements View.OnClickLis
     }
   }
 
+  /**
+   * Drops the persisted license whose keys the player restored when its playback failed with a
+   * DRM error, so that the next play requests a fresh license. The licenses of downloaded titles
+   * are kept, as dropping them would make the title unplayable offline.
+   */
+  private static final class OfflineLicenseErrorListener implements Player.Listener {
+
+    private final ExoplayerApplication application;
+    private final String contentUri;
+    private final byte[] keySetId;
+
+    public OfflineLicenseErrorListener(ExoplayerApplication application, String contentUri,
+                                       byte[] keySetId) {
+      this.application = application;
+      this.contentUri = contentUri;
+      this.keySetId = keySetId;
+    }
+
+    @Override
+    public void onPlayerError(@NonNull PlaybackException error) {
+      if (error.errorCode < PlaybackException.ERROR_CODE_DRM_UNSPECIFIED
+              || error.errorCode >= PlaybackException.ERROR_CODE_DRM_UNSPECIFIED + 1000) {
+        return;
+      }
+      application.getBackgroundExecutor().execute(() -> {
+        if (!application.getOfflineLicenseStore().removeUnpinned(contentUri, keySetId)) {
+          Log.w(TAG, "Keeping the persisted license of " + contentUri + " after a DRM error "
+                  + error.getErrorCodeName() + ", as the title is downloaded or has a newer one");
+        }
+      });
+    }
+  }
+
+  /**
+   * Acquires a persistable license for the content once the streaming keys of the player are
+   * loaded, so that the next play is a cache hit without competing with the license request of
+   * this one. Only used if {@link ExoplayerApplication#isOfflineLicensePrefetchEnabled() enabled}.
+   */
+  private static final class OfflineLicensePrefetcher implements AnalyticsListener {
+
+    private final ExoplayerApplication application;
+    private final String contentUri;
+    private boolean fetched;
+
+    public OfflineLicensePrefetcher(ExoplayerApplication application, String contentUri) {
+      this.application = application;
+      this.contentUri = contentUri;
+    }
+
+    @Override
+    public void onDrmKeysLoaded(@NonNull EventTime eventTime) {
+      if (!fetched) {
+        fetched = true;
+        application.fetchOfflineLicenseAsync(contentUri, /* downloaded= */ false);
+      }
+    }
+  }
+
+  /** Reports the first rendered frame to the startup warm-up, which traces the cold start. */
+  private static final class FirstFrameListener implements Player.Listener {
+
+    private final StartupWarmup startupWarmup;
+
+    public FirstFrameListener(StartupWarmup startupWarmup) {
+      this.startupWarmup = startupWarmup;
+    }
+
+    @Override
+    public void onRenderedFirstFrame() {
+      startupWarmup.onFirstFrameRendered();
+    }
+  }
+
   private void showToast(int messageId) {
     showToast(getString(messageId));
   }
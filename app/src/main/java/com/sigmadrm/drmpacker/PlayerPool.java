@@ -0,0 +1,159 @@
+package com.sigmadrm.drmpacker;
+
+import android.os.Handler;
+import android.os.Looper;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import androidx.annotation.Nullable;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.exoplayer.ExoPlayer;
+import androidx.media3.exoplayer.trackselection.DefaultTrackSelector;
+
+/**
+ * Keeps prepared players alive after their screen goes away, so that returning to the same item
+ * reuses the player together with its decoders and open DRM sessions.
+ *
+ * <p>Idle players are released after an idle timeout, when more than the maximum number of idle
+ * players are parked, or when {@link #trim()} is called under memory pressure. All methods must be
+ * called on the main thread.
+ */
+@UnstableApi
+public final class PlayerPool {
+
+  /** The default time after which an idle player is released, in milliseconds. */
+  public static final long DEFAULT_IDLE_TIMEOUT_MS = 60_000;
+  /** The default maximum number of idle players. */
+  public static final int DEFAULT_MAX_IDLE_PLAYERS = 1;
+
+  /** A player together with the components that must live and die with it. */
+  public static final class PooledPlayer {
+
+    /** Identifies the content the player is prepared with, such as its URI or its playlist. */
+    public final String key;
+    /** The player. */
+    public final ExoPlayer player;
+    /** The track selector of the player. */
+    public final DefaultTrackSelector trackSelector;
+
+    @Nullable private final Runnable onRelease;
+    @Nullable private Runnable idleTimeout;
+
+    /**
+     * @param key           Identifies the content the player is prepared with, such as its URI or
+     *                      its playlist. Only a player with the same key is reused.
+     * @param player        The player.
+     * @param trackSelector The track selector of the player.
+     * @param onRelease     Run after the player is released, or null.
+     */
+    public PooledPlayer(String key, ExoPlayer player, DefaultTrackSelector trackSelector,
+                        @Nullable Runnable onRelease) {
+      this.key = key;
+      this.player = player;
+      this.trackSelector = trackSelector;
+      this.onRelease = onRelease;
+    }
+
+    private void release() {
+      player.release();
+      if (onRelease != null) {
+        onRelease.run();
+      }
+    }
+  }
+
+  private final Handler handler;
+  // Ordered from least to most recently parked.
+  private final LinkedHashMap<String, PooledPlayer> idlePlayers;
+  private long idleTimeoutMs;
+  private int maxIdlePlayers;
+
+  public PlayerPool() {
+    handler = new Handler(Looper.getMainLooper());
+    idlePlayers = new LinkedHashMap<>();
+    idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+    maxIdlePlayers = DEFAULT_MAX_IDLE_PLAYERS;
+  }
+
+  /** Sets the time after which an idle player is released, in milliseconds. */
+  public void setIdleTimeoutMs(long idleTimeoutMs) {
+    this.idleTimeoutMs = idleTimeoutMs;
+  }
+
+  /** Sets the maximum number of idle players. Zero disables pooling. */
+  public void setMaxIdlePlayers(int maxIdlePlayers) {
+    this.maxIdlePlayers = maxIdlePlayers;
+    evictIfNeeded();
+  }
+
+  /**
+   * Takes the idle player with {@code key} out of the pool.
+   *
+   * @return The player, or null if there is none.
+   */
+  @Nullable
+  public PooledPlayer acquire(String key) {
+    PooledPlayer pooledPlayer = idlePlayers.remove(key);
+    if (pooledPlayer != null && pooledPlayer.idleTimeout != null) {
+      handler.removeCallbacks(pooledPlayer.idleTimeout);
+      pooledPlayer.idleTimeout = null;
+    }
+    return pooledPlayer;
+  }
+
+  /** Returns whether an idle player with {@code key} is in the pool. */
+  public boolean contains(String key) {
+    return idlePlayers.containsKey(key);
+  }
+
+  /**
+   * Pauses {@code pooledPlayer} and parks it in the pool until it is acquired again or evicted. A
+   * player that failed is released instead, so that the next player opens new DRM sessions rather
+   * than preparing again with the ones that failed.
+   */
+  public void release(PooledPlayer pooledPlayer) {
+    if (pooledPlayer.player.getPlayerError() != null) {
+      pooledPlayer.release();
+      return;
+    }
+    pooledPlayer.player.pause();
+    PooledPlayer replaced = idlePlayers.remove(pooledPlayer.key);
+    if (replaced != null && replaced != pooledPlayer) {
+      releaseIdlePlayer(replaced);
+    }
+    idlePlayers.put(pooledPlayer.key, pooledPlayer);
+    pooledPlayer.idleTimeout = () -> {
+      if (idlePlayers.get(pooledPlayer.key) == pooledPlayer) {
+        idlePlayers.remove(pooledPlayer.key);
+        pooledPlayer.idleTimeout = null;
+        pooledPlayer.release();
+      }
+    };
+    handler.postDelayed(pooledPlayer.idleTimeout, idleTimeoutMs);
+    evictIfNeeded();
+  }
+
+  /** Releases all idle players. */
+  public void trim() {
+    for (PooledPlayer pooledPlayer : idlePlayers.values()) {
+      releaseIdlePlayer(pooledPlayer);
+    }
+    idlePlayers.clear();
+  }
+
+  private void evictIfNeeded() {
+    Iterator<PooledPlayer> iterator = idlePlayers.values().iterator();
+    while (idlePlayers.size() > maxIdlePlayers && iterator.hasNext()) {
+      releaseIdlePlayer(iterator.next());
+      iterator.remove();
+    }
+  }
+
+  private void releaseIdlePlayer(PooledPlayer pooledPlayer) {
+    if (pooledPlayer.idleTimeout != null) {
+      handler.removeCallbacks(pooledPlayer.idleTimeout);
+      pooledPlayer.idleTimeout = null;
+    }
+    pooledPlayer.release();
+  }
+}
@@ -0,0 +1,282 @@
+package com.sigmadrm.drmpacker;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.util.Log;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.common.Format;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.Player;
+import androidx.media3.common.Timeline;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.DataSourceUtil;
+import androidx.media3.datasource.DataSpec;
+import androidx.media3.exoplayer.ExoPlayer;
+import androidx.media3.exoplayer.dash.DashSegmentIndex;
+import androidx.media3.exoplayer.dash.DashUtil;
+import androidx.media3.exoplayer.dash.manifest.AdaptationSet;
+import androidx.media3.exoplayer.dash.manifest.DashManifest;
+import androidx.media3.exoplayer.dash.manifest.Period;
+import androidx.media3.exoplayer.dash.manifest.RangedUri;
+import androidx.media3.exoplayer.dash.manifest.Representation;
+import androidx.media3.exoplayer.drm.DefaultDrmSessionManager;
+import androidx.media3.exoplayer.drm.DrmSession;
+import androidx.media3.exoplayer.upstream.BandwidthMeter;
+import androidx.media3.exoplayer.upstream.ParsingLoadable;
+
+/**
+ * Prepares the items after the current one of a DASH playlist while the current item plays, so
+ * that transitions do not wait for the manifest, the first segments or the license.
+ *
+ * <p>For each of the next {@code maxLookAheadItems} items, the manifest is loaded through the
+ * player's manifest data source and parser, the initialization segments and the first {@code
+ * prefetchSegmentCount} media segments of the representations the player is likely to start with
+ * are read into the segment cache, and a DRM session is opened on the player's shared {@link
+ * DefaultDrmSessionManager}. The player then finds the open session when it reaches the item. A
+ * preloaded session is released once playback has moved past its item.
+ *
+ * <p>Must be added as a listener of the player before the playlist is set, and {@link #release()
+ * released} together with the player.
+ */
+@UnstableApi
+public final class PlaylistPreloader implements Player.Listener {
+
+  private static final String TAG = "PlaylistPreloader";
+  /** The fraction of the bandwidth estimate the player is expected to start with. */
+  private static final float BANDWIDTH_FRACTION = 0.7f;
+
+  private final ExoPlayer player;
+  private final DataSource.Factory manifestDataSourceFactory;
+  private final ParsingLoadable.Parser<DashManifest> manifestParser;
+  private final DataSource.Factory segmentDataSourceFactory;
+  private final DefaultDrmSessionManager drmSessionManager;
+  private final BandwidthMeter bandwidthMeter;
+  private final int maxLookAheadItems;
+  private final int prefetchSegmentCount;
+  private final Handler playbackHandler;
+  private final ExecutorService loadExecutor;
+  // By content URI. Accessed on the application thread of the player only.
+  private final Map<String, Preload> preloads;
+
+  /**
+   * @param player                    The player, which must play the items with {@code
+   *                                  drmSessionManager} and {@code manifestParser}.
+   * @param manifestDataSourceFactory A factory for the data sources used to load manifests.
+   * @param manifestParser            The manifest parser of the player.
+   * @param segmentDataSourceFactory  A factory for data sources that write to the segment cache.
+   * @param drmSessionManager         The session manager shared by all items of the playlist.
+   * @param bandwidthMeter            The bandwidth meter of the player.
+   * @param maxLookAheadItems         The number of items after the current one to preload.
+   * @param prefetchSegmentCount      The number of media segments to prefetch per track.
+   */
+  public PlaylistPreloader(ExoPlayer player, DataSource.Factory manifestDataSourceFactory,
+                           ParsingLoadable.Parser<DashManifest> manifestParser,
+                           DataSource.Factory segmentDataSourceFactory,
+                           DefaultDrmSessionManager drmSessionManager, BandwidthMeter bandwidthMeter,
+                           int maxLookAheadItems, int prefetchSegmentCount) {
+    this.player = player;
+    this.manifestDataSourceFactory = manifestDataSourceFactory;
+    this.manifestParser = manifestParser;
+    this.segmentDataSourceFactory = segmentDataSourceFactory;
+    this.drmSessionManager = drmSessionManager;
+    this.bandwidthMeter = bandwidthMeter;
+    this.maxLookAheadItems = maxLookAheadItems;
+    this.prefetchSegmentCount = prefetchSegmentCount;
+    playbackHandler = new Handler(player.getPlaybackLooper());
+    loadExecutor = Executors.newSingleThreadExecutor();
+    preloads = new HashMap<>();
+  }
+
+  @Override
+  public void onPlaybackStateChanged(int playbackState) {
+    updatePreloads();
+  }
+
+  @Override
+  public void onMediaItemTransition(@Nullable MediaItem mediaItem, int reason) {
+    updatePreloads();
+  }
+
+  @Override
+  public void onTimelineChanged(@NonNull Timeline timeline, int reason) {
+    updatePreloads();
+  }
+
+  /** Cancels all loads and releases the preloaded sessions. */
+  public void release() {
+    player.removeListener(this);
+    for (Preload preload : preloads.values()) {
+      preload.release();
+    }
+    preloads.clear();
+    loadExecutor.shutdownNow();
+  }
+
+  private void updatePreloads() {
+    // Preloading starts once the player has prepared the session manager for its playback thread.
+    if (player.getPlaybackState() == Player.STATE_IDLE) {
+      return;
+    }
+    // The preload of the current item is kept, as the player may not have acquired its session
+    // yet, but the current item itself is loaded by the player.
+    Set<String> contentUris = new HashSet<>();
+    List<String> nextContentUris = new ArrayList<>();
+    int currentIndex = player.getCurrentMediaItemIndex();
+    int lastIndex = Math.min(player.getMediaItemCount() - 1, currentIndex + maxLookAheadItems);
+    for (int i = currentIndex; i <= lastIndex; i++) {
+      @Nullable MediaItem.LocalConfiguration localConfiguration =
+              player.getMediaItemAt(i).localConfiguration;
+      if (localConfiguration != null) {
+        String contentUri = localConfiguration.uri.toString();
+        contentUris.add(contentUri);
+        if (i > currentIndex) {
+          nextContentUris.add(contentUri);
+        }
+      }
+    }
+    Iterator<Map.Entry<String, Preload>> iterator = preloads.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<String, Preload> entry = iterator.next();
+      if (!contentUris.contains(entry.getKey())) {
+        entry.getValue().release();
+        iterator.remove();
+      }
+    }
+    for (String contentUri : nextContentUris) {
+      if (!preloads.containsKey(contentUri)) {
+        Preload preload = new Preload();
+        preloads.put(contentUri, preload);
+        preload.loadFuture = loadExecutor.submit(() -> preload.load(contentUri));
+      }
+    }
+  }
+
+  @Nullable
+  private static Representation selectRepresentation(List<Representation> representations,
+                                                     long maxBitrate) {
+    @Nullable Representation selected = null;
+    for (Representation representation : representations) {
+      int bitrate = representation.format.bitrate;
+      if (selected == null
+              || (bitrate <= maxBitrate && bitrate > selected.format.bitrate)
+              || (selected.format.bitrate > maxBitrate && bitrate < selected.format.bitrate)) {
+        selected = representation;
+      }
+    }
+    return selected;
+  }
+
+  private static void readToEnd(DataSource dataSource, DataSpec dataSpec) throws IOException {
+    byte[] buffer = new byte[16 * 1024];
+    try {
+      dataSource.open(dataSpec);
+      while (dataSource.read(buffer, 0, buffer.length) != C.RESULT_END_OF_INPUT) {
+        if (Thread.currentThread().isInterrupted()) {
+          throw new InterruptedIOException();
+        }
+      }
+    } finally {
+      DataSourceUtil.closeQuietly(dataSource);
+    }
+  }
+
+  /** The preloading of one item. */
+  private final class Preload {
+
+    @Nullable private volatile Future<?> loadFuture;
+    // Accessed on the playback thread only.
+    @Nullable private DrmSession drmSession;
+    private boolean released;
+
+    private void load(String contentUri) {
+      try {
+        DashManifest manifest = ParsingLoadable.load(
+                manifestDataSourceFactory.createDataSource(), manifestParser,
+                Uri.parse(contentUri), C.DATA_TYPE_MANIFEST);
+        Period period = manifest.getPeriod(0);
+        DataSource segmentDataSource = segmentDataSourceFactory.createDataSource();
+        @Nullable Format format = DashUtil.loadFormatWithDrmInitData(segmentDataSource, period);
+        if (format != null && format.drmInitData != null) {
+          playbackHandler.post(() -> acquire(format));
+        }
+        if (!manifest.dynamic) {
+          // The first segments of live streams are not where playback starts.
+          prefetchSegments(segmentDataSource, period);
+        }
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to preload " + contentUri, e);
+      }
+    }
+
+    private void prefetchSegments(DataSource dataSource, Period period) throws IOException {
+      long maxBitrate = (long) (bandwidthMeter.getBitrateEstimate() * BANDWIDTH_FRACTION);
+      for (AdaptationSet adaptationSet : period.adaptationSets) {
+        if (adaptationSet.type != C.TRACK_TYPE_VIDEO && adaptationSet.type != C.TRACK_TYPE_AUDIO) {
+          continue;
+        }
+        @Nullable Representation representation =
+                selectRepresentation(adaptationSet.representations, maxBitrate);
+        // Representations without an index in the manifest are indexed by the player.
+        @Nullable DashSegmentIndex index = representation != null ? representation.getIndex() : null;
+        if (index == null) {
+          continue;
+        }
+        String baseUrl = representation.baseUrls.get(0).url;
+        @Nullable RangedUri initializationUri = representation.getInitializationUri();
+        if (initializationUri != null) {
+          readToEnd(dataSource,
+                  DashUtil.buildDataSpec(representation, baseUrl, initializationUri, 0));
+        }
+        long firstSegmentNum = index.getFirstSegmentNum();
+        long segmentCount = index.getSegmentCount(C.TIME_UNSET);
+        for (int i = 0; i < prefetchSegmentCount; i++) {
+          if (segmentCount != DashSegmentIndex.INDEX_UNBOUNDED && i >= segmentCount) {
+            break;
+          }
+          readToEnd(dataSource, DashUtil.buildDataSpec(representation, baseUrl,
+                  index.getSegmentUrl(firstSegmentNum + i), 0));
+        }
+      }
+    }
+
+    private void acquire(Format format) {
+      if (released) {
+        return;
+      }
+      drmSessionManager.prepare();
+      drmSession = drmSessionManager.acquireSession(/* eventDispatcher= */ null, format);
+    }
+
+    /** Releases the preloaded session. The player keeps its own reference to the session. */
+    private void release() {
+      Future<?> loadFuture = this.loadFuture;
+      if (loadFuture != null) {
+        loadFuture.cancel(/* mayInterruptIfRunning= */ true);
+      }
+      playbackHandler.post(() -> {
+        released = true;
+        if (drmSession != null) {
+          drmSession.release(/* eventDispatcher= */ null);
+          drmSession = null;
+          drmSessionManager.release();
+        }
+      });
+    }
+  }
+}
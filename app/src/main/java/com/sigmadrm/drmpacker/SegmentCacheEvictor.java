@@ -0,0 +1,216 @@
+package com.sigmadrm.drmpacker;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.media3.common.C;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.cache.Cache;
+import androidx.media3.datasource.cache.CacheEvictor;
+import androidx.media3.datasource.cache.CacheSpan;
+
+/**
+ * Evicts least recently used content once the cache exceeds its size budget, keeping the segments
+ * needed to start a title until there is nothing else left to evict.
+ *
+ * <p>The initialization segment and the first segments of each representation in the cache are
+ * prioritized. Representations are identified by the cache key without its last path component,
+ * which is how DASH segment URLs are laid out, and the position of a segment by the last number in
+ * its file name, so that the priority does not depend on the order in which the cache index is
+ * read after a restart.
+ */
+@UnstableApi
+public final class SegmentCacheEvictor implements CacheEvictor {
+
+  /** The default number of prioritized segments per representation. */
+  public static final int DEFAULT_PRIORITIZED_SEGMENTS_PER_REPRESENTATION = 3;
+
+  private final long maxBytes;
+  private final int prioritizedSegmentsPerRepresentation;
+  private final TreeSet<CacheSpan> leastRecentlyUsed;
+  // The span counts of the segment positions in the cache, by representation.
+  private final Map<String, TreeMap<Long, Integer>> spanCountsByRepresentation;
+
+  private long currentSize;
+
+  /**
+   * @param maxBytes                             The size budget of the cache, in bytes.
+   * @param prioritizedSegmentsPerRepresentation The number of segments, including the
+   *                                             initialization segment, that are prioritized for
+   *                                             each representation.
+   */
+  public SegmentCacheEvictor(long maxBytes, int prioritizedSegmentsPerRepresentation) {
+    this.maxBytes = maxBytes;
+    this.prioritizedSegmentsPerRepresentation = prioritizedSegmentsPerRepresentation;
+    leastRecentlyUsed = new TreeSet<>(SegmentCacheEvictor::compare);
+    spanCountsByRepresentation = new HashMap<>();
+  }
+
+  /**
+   * Returns a size budget for a cache in {@code directory}.
+   *
+   * @param directory         The cache directory.
+   * @param maxBytes          The absolute budget in bytes, or {@link C#LENGTH_UNSET} to only use
+   *                          {@code freeSpaceFraction}.
+   * @param freeSpaceFraction The fraction of the currently usable space of the volume that may be
+   *                          used, or 0 to only use {@code maxBytes}.
+   * @return The smaller of the two budgets that are set.
+   */
+  public static long computeBudgetBytes(File directory, long maxBytes, float freeSpaceFraction) {
+    long budgetBytes = maxBytes == C.LENGTH_UNSET ? Long.MAX_VALUE : maxBytes;
+    if (freeSpaceFraction > 0) {
+      File volume = directory.exists() ? directory : directory.getParentFile();
+      long usableBytes = volume != null ? volume.getUsableSpace() : 0;
+      budgetBytes = Math.min(budgetBytes, (long) (usableBytes * freeSpaceFraction));
+    }
+    return budgetBytes;
+  }
+
+  @Override
+  public boolean requiresCacheSpanTouches() {
+    return true;
+  }
+
+  @Override
+  public void onCacheInitialized() {
+    // Do nothing.
+  }
+
+  @Override
+  public void onStartFile(Cache cache, String key, long position, long length) {
+    if (length != C.LENGTH_UNSET) {
+      evictCache(cache, length);
+    }
+  }
+
+  @Override
+  public void onSpanAdded(Cache cache, CacheSpan span) {
+    leastRecentlyUsed.add(span);
+    String representation = getRepresentation(span.key);
+    @Nullable TreeMap<Long, Integer> spanCounts = spanCountsByRepresentation.get(representation);
+    if (spanCounts == null) {
+      spanCounts = new TreeMap<>();
+      spanCountsByRepresentation.put(representation, spanCounts);
+    }
+    long position = getSegmentPosition(span.key);
+    @Nullable Integer spanCount = spanCounts.get(position);
+    spanCounts.put(position, spanCount == null ? 1 : spanCount + 1);
+    currentSize += span.length;
+    evictCache(cache, 0);
+  }
+
+  @Override
+  public void onSpanRemoved(Cache cache, CacheSpan span) {
+    leastRecentlyUsed.remove(span);
+    String representation = getRepresentation(span.key);
+    @Nullable TreeMap<Long, Integer> spanCounts = spanCountsByRepresentation.get(representation);
+    if (spanCounts != null) {
+      long position = getSegmentPosition(span.key);
+      @Nullable Integer spanCount = spanCounts.get(position);
+      if (spanCount == null || spanCount <= 1) {
+        spanCounts.remove(position);
+      } else {
+        spanCounts.put(position, spanCount - 1);
+      }
+      if (spanCounts.isEmpty()) {
+        spanCountsByRepresentation.remove(representation);
+      }
+    }
+    currentSize -= span.length;
+  }
+
+  @Override
+  public void onSpanTouched(Cache cache, CacheSpan oldSpan, CacheSpan newSpan) {
+    onSpanRemoved(cache, oldSpan);
+    onSpanAdded(cache, newSpan);
+  }
+
+  /**
+   * Returns the position of the segment with cache key {@code key} in its representation: the last
+   * number in the file name without extension, or -1 for initialization segments and file names
+   * without a number, which sorts them first.
+   */
+  @VisibleForTesting
+  /* package */ static long getSegmentPosition(String key) {
+    int nameStart = key.lastIndexOf('/') + 1;
+    int nameEnd = key.indexOf('?', nameStart);
+    if (nameEnd == -1) {
+      nameEnd = key.length();
+    }
+    int extensionStart = key.lastIndexOf('.', nameEnd - 1);
+    if (extensionStart > nameStart) {
+      nameEnd = extensionStart;
+    }
+    String name = key.substring(nameStart, nameEnd);
+    if (name.toLowerCase(Locale.US).contains("init")) {
+      return -1;
+    }
+    int digitsEnd = name.length();
+    while (digitsEnd > 0 && !Character.isDigit(name.charAt(digitsEnd - 1))) {
+      digitsEnd--;
+    }
+    int digitsStart = digitsEnd;
+    while (digitsStart > 0 && Character.isDigit(name.charAt(digitsStart - 1))) {
+      digitsStart--;
+    }
+    // Longer numbers are not segment numbers or times of any practical title.
+    if (digitsStart == digitsEnd || digitsEnd - digitsStart > 18) {
+      return -1;
+    }
+    return Long.parseLong(name.substring(digitsStart, digitsEnd));
+  }
+
+  private static String getRepresentation(String key) {
+    int lastSlash = key.lastIndexOf('/');
+    return lastSlash > 0 ? key.substring(0, lastSlash) : key;
+  }
+
+  private boolean isPrioritized(CacheSpan span) {
+    @Nullable TreeMap<Long, Integer> spanCounts =
+            spanCountsByRepresentation.get(getRepresentation(span.key));
+    if (spanCounts == null) {
+      return false;
+    }
+    long position = getSegmentPosition(span.key);
+    int lowerPositions = 0;
+    for (long cachedPosition : spanCounts.keySet()) {
+      if (lowerPositions == prioritizedSegmentsPerRepresentation) {
+        return false;
+      }
+      if (cachedPosition == position) {
+        return true;
+      }
+      lowerPositions++;
+    }
+    return false;
+  }
+
+  private void evictCache(Cache cache, long requiredSpace) {
+    while (currentSize + requiredSpace > maxBytes && !leastRecentlyUsed.isEmpty()) {
+      @Nullable CacheSpan spanToEvict = null;
+      for (CacheSpan span : leastRecentlyUsed) {
+        if (!isPrioritized(span)) {
+          spanToEvict = span;
+          break;
+        }
+      }
+      // Prioritized segments go last.
+      cache.removeSpan(spanToEvict != null ? spanToEvict : leastRecentlyUsed.first());
+    }
+  }
+
+  private static int compare(CacheSpan lhs, CacheSpan rhs) {
+    long lastTouchTimestampDelta = lhs.lastTouchTimestamp - rhs.lastTouchTimestamp;
+    if (lastTouchTimestampDelta == 0) {
+      // Use the standard compareTo method as a tie-break.
+      return lhs.compareTo(rhs);
+    }
+    return lhs.lastTouchTimestamp < rhs.lastTouchTimestamp ? -1 : 1;
+  }
+}
@@ -0,0 +1,95 @@
+package com.sigmadrm.drmpacker;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.NonNull;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.DataSpec;
+import androidx.media3.datasource.TransferListener;
+import androidx.media3.datasource.cache.CacheDataSource;
+
+/**
+ * Counts how much media is served from the segment cache and how much from the network.
+ *
+ * <p>Register it as the {@link CacheDataSource.EventListener} of the caching data sources and as
+ * the {@link TransferListener} of their upstream data sources.
+ */
+@UnstableApi
+public final class SegmentCacheStats implements CacheDataSource.EventListener, TransferListener {
+
+  private final AtomicLong hitCount;
+  private final AtomicLong missCount;
+  private final AtomicLong cachedBytesRead;
+  private final AtomicLong upstreamBytesRead;
+
+  public SegmentCacheStats() {
+    hitCount = new AtomicLong();
+    missCount = new AtomicLong();
+    cachedBytesRead = new AtomicLong();
+    upstreamBytesRead = new AtomicLong();
+  }
+
+  /** Returns the number of reads that were served from the cache. */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /** Returns the number of reads that went to the network. */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /** Returns the number of bytes read from the cache. */
+  public long getCachedBytesRead() {
+    return cachedBytesRead.get();
+  }
+
+  /** Returns the number of bytes read from the network. */
+  public long getUpstreamBytesRead() {
+    return upstreamBytesRead.get();
+  }
+
+  // CacheDataSource.EventListener implementation.
+
+  @Override
+  public void onCachedBytesRead(long cacheSizeBytes, long cachedBytesRead) {
+    hitCount.incrementAndGet();
+    this.cachedBytesRead.addAndGet(cachedBytesRead);
+  }
+
+  @Override
+  public void onCacheIgnored(int reason) {
+    // Do nothing. Reads that ignore the cache are counted as misses by the upstream listener.
+  }
+
+  // TransferListener implementation.
+
+  @Override
+  public void onTransferInitializing(@NonNull DataSource source, @NonNull DataSpec dataSpec,
+                                     boolean isNetwork) {
+    // Do nothing.
+  }
+
+  @Override
+  public void onTransferStart(@NonNull DataSource source, @NonNull DataSpec dataSpec,
+                              boolean isNetwork) {
+    if (isNetwork) {
+      missCount.incrementAndGet();
+    }
+  }
+
+  @Override
+  public void onBytesTransferred(@NonNull DataSource source, @NonNull DataSpec dataSpec,
+                                 boolean isNetwork, int bytesTransferred) {
+    if (isNetwork) {
+      upstreamBytesRead.addAndGet(bytesTransferred);
+    }
+  }
+
+  @Override
+  public void onTransferEnd(@NonNull DataSource source, @NonNull DataSpec dataSpec,
+                            boolean isNetwork) {
+    // Do nothing.
+  }
+}
@@ -0,0 +1,120 @@
+package com.sigmadrm.drmpacker;
+
+import android.util.Base64;
+import java.nio.charset.StandardCharsets;
+
+import androidx.media3.common.util.Assertions;
+import androidx.media3.common.util.UnstableApi;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.sigma.packer.RequestInfo;
+
+/**
+ * Encodes the {@code custom-data} header sent with Sigma DRM key requests.
+ *
+ * <p>The merchant, app, user and session fields do not change during a playback session, so they
+ * are serialized once when the instance is built. Each key request only splices its own request id
+ * and device info into the precomputed JSON before Base64 encoding it.
+ */
+@UnstableApi
+public final class SigmaCustomData {
+
+  /** Builder for {@link SigmaCustomData} instances. */
+  public static final class Builder {
+
+    private String merchantId;
+    private String appId;
+    private String userId;
+    private String sessionId;
+
+    /** Sets the merchant id. */
+    public Builder setMerchantId(String merchantId) {
+      this.merchantId = merchantId;
+      return this;
+    }
+
+    /** Sets the app id. */
+    public Builder setAppId(String appId) {
+      this.appId = appId;
+      return this;
+    }
+
+    /** Sets the user id. */
+    public Builder setUserId(String userId) {
+      this.userId = userId;
+      return this;
+    }
+
+    /** Sets the session id. */
+    public Builder setSessionId(String sessionId) {
+      this.sessionId = sessionId;
+      return this;
+    }
+
+    /** Builds the custom data, serializing its static fields. */
+    public SigmaCustomData build() {
+      return new SigmaCustomData(this);
+    }
+  }
+
+  private final String merchantId;
+  private final String userId;
+  // The static fields as a JSON object without its closing brace.
+  private final String staticJsonPrefix;
+
+  private SigmaCustomData(Builder builder) {
+    merchantId = Assertions.checkNotNull(builder.merchantId);
+    userId = Assertions.checkNotNull(builder.userId);
+    JSONObject staticFields = new JSONObject();
+    try {
+      staticFields.put("merchantId", merchantId);
+      staticFields.put("appId", Assertions.checkNotNull(builder.appId));
+      staticFields.put("userId", userId);
+      staticFields.put("sessionId", Assertions.checkNotNull(builder.sessionId));
+    } catch (JSONException e) {
+      throw new IllegalStateException(e);
+    }
+    String json = staticFields.toString();
+    staticJsonPrefix = json.substring(0, json.length() - 1) + ",";
+  }
+
+  /** Returns the merchant id. */
+  public String getMerchantId() {
+    return merchantId;
+  }
+
+  /** Returns the user id. */
+  public String getUserId() {
+    return userId;
+  }
+
+  /**
+   * Returns the Base64 encoded custom data for a key request.
+   *
+   * @param requestInfo The request info obtained from the key request data.
+   */
+  public String encode(RequestInfo requestInfo) {
+    return encode(requestInfo.requestId, requestInfo.deviceInfo);
+  }
+
+  /**
+   * Returns the Base64 encoded custom data for a key request.
+   *
+   * @param requestId  The request id of the key request.
+   * @param deviceInfo The device info of the key request.
+   */
+  public String encode(String requestId, String deviceInfo) {
+    requestId = JSONObject.quote(requestId);
+    deviceInfo = JSONObject.quote(deviceInfo);
+    String json = new StringBuilder(
+            staticJsonPrefix.length() + requestId.length() + deviceInfo.length() + 23)
+            .append(staticJsonPrefix)
+            .append("\"reqId\":").append(requestId)
+            .append(",\"deviceInfo\":").append(deviceInfo)
+            .append('}')
+            .toString();
+    return Base64.encodeToString(json.getBytes(StandardCharsets.UTF_8), Base64.NO_WRAP);
+  }
+}
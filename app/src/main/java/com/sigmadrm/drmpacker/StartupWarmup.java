@@ -0,0 +1,120 @@
+package com.sigmadrm.drmpacker;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.DataSource;
+
+/**
+ * Runs the expensive parts of application startup, such as opening caches and databases, on a
+ * background executor and hands out {@link Future Futures} for their results.
+ *
+ * <p>Every task is wrapped in a {@link Trace} section named after it, so that the cold start can be
+ * inspected with system tracing. The time from process start to the first rendered frame is traced
+ * and logged once per process by {@link #onFirstFrameRendered()}.
+ */
+@UnstableApi
+public final class StartupWarmup {
+
+  private static final String TAG = "StartupWarmup";
+
+  private final Executor executor;
+  private final long processStartRealtimeMs;
+  private boolean firstFrameRendered;
+
+  /** @param executor The executor on which warm-up tasks run. */
+  public StartupWarmup(Executor executor) {
+    this.executor = executor;
+    processStartRealtimeMs = Build.VERSION.SDK_INT >= 24
+            ? Process.getStartElapsedRealtime()
+            : SystemClock.elapsedRealtime();
+  }
+
+  /**
+   * Runs {@code task} on the warm-up executor.
+   *
+   * @param sectionName The name of the task, used for its trace section and log messages.
+   * @param task        The task.
+   * @return A future for the result of the task.
+   */
+  public <T> Future<T> submit(String sectionName, Callable<T> task) {
+    FutureTask<T> futureTask = new FutureTask<>(() -> {
+      Trace.beginSection(sectionName);
+      try {
+        return task.call();
+      } finally {
+        Trace.endSection();
+        Log.d(TAG, sectionName + " done at +" + getTimeSinceProcessStartMs() + "ms");
+      }
+    });
+    executor.execute(futureTask);
+    return futureTask;
+  }
+
+  /**
+   * Returns the result of a task, blocking only if it is still running. Failures of the task are
+   * rethrown as {@link IllegalStateException}.
+   */
+  public static <T> T await(Future<T> future) {
+    if (!future.isDone()) {
+      long startTimeMs = SystemClock.elapsedRealtime();
+      Log.w(TAG, "Waiting for warm-up on " + Thread.currentThread().getName());
+      getUninterruptibly(future);
+      Log.w(TAG, "Waited " + (SystemClock.elapsedRealtime() - startTimeMs) + "ms for warm-up");
+    }
+    return getUninterruptibly(future);
+  }
+
+  /**
+   * Returns a {@link DataSource.Factory} that waits for {@code factoryFuture} when its first data
+   * source is created rather than when the factory is built. Data sources are created on loading
+   * threads, so the main thread never waits for the factory.
+   */
+  public static DataSource.Factory deferDataSourceFactory(
+          Future<? extends DataSource.Factory> factoryFuture) {
+    return () -> await(factoryFuture).createDataSource();
+  }
+
+  /** Traces and logs the time from process start to the first rendered frame, once per process. */
+  public synchronized void onFirstFrameRendered() {
+    if (firstFrameRendered) {
+      return;
+    }
+    firstFrameRendered = true;
+    Trace.beginSection("FirstFrameRendered");
+    Trace.endSection();
+    Log.i(TAG, "Cold start to first frame: " + getTimeSinceProcessStartMs() + "ms");
+  }
+
+  private long getTimeSinceProcessStartMs() {
+    return SystemClock.elapsedRealtime() - processStartRealtimeMs;
+  }
+
+  private static <T> T getUninterruptibly(Future<T> future) {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return future.get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          throw new IllegalStateException(e.getCause());
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package com.sigmadrm.drmpacker;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.DataSpec;
+import androidx.media3.datasource.TransferListener;
+
+/**
+ * A {@link DataSource} that limits the rate at which bytes are read from an upstream data source.
+ *
+ * <p>All data sources created by the same {@link Factory} share one budget, so the limit applies
+ * to their combined rate however many of them read in parallel.
+ */
+@UnstableApi
+public final class ThrottlingDataSource implements DataSource {
+
+  /** A factory for data sources sharing one rate limit. */
+  public static final class Factory implements DataSource.Factory {
+
+    private final DataSource.Factory upstreamFactory;
+    private final TokenBucket tokenBucket;
+
+    /**
+     * @param upstreamFactory    The factory of the throttled data sources.
+     * @param maxBytesPerSecond  The combined rate limit, or 0 for no limit.
+     */
+    public Factory(DataSource.Factory upstreamFactory, long maxBytesPerSecond) {
+      this.upstreamFactory = upstreamFactory;
+      tokenBucket = new TokenBucket(maxBytesPerSecond);
+    }
+
+    /** Sets the combined rate limit, or 0 for no limit. Applies to data sources already open. */
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+      tokenBucket.setRate(maxBytesPerSecond);
+    }
+
+    @NonNull
+    @Override
+    public ThrottlingDataSource createDataSource() {
+      return new ThrottlingDataSource(upstreamFactory.createDataSource(), tokenBucket);
+    }
+  }
+
+  private final DataSource upstream;
+  private final TokenBucket tokenBucket;
+
+  private ThrottlingDataSource(DataSource upstream, TokenBucket tokenBucket) {
+    this.upstream = upstream;
+    this.tokenBucket = tokenBucket;
+  }
+
+  @Override
+  public void addTransferListener(@NonNull TransferListener transferListener) {
+    upstream.addTransferListener(transferListener);
+  }
+
+  @Override
+  public long open(@NonNull DataSpec dataSpec) throws IOException {
+    return upstream.open(dataSpec);
+  }
+
+  @Override
+  public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+    int bytesRead = upstream.read(buffer, offset, length);
+    if (bytesRead != C.RESULT_END_OF_INPUT) {
+      tokenBucket.consume(bytesRead);
+    }
+    return bytesRead;
+  }
+
+  @Nullable
+  @Override
+  public Uri getUri() {
+    return upstream.getUri();
+  }
+
+  @NonNull
+  @Override
+  public Map<String, List<String>> getResponseHeaders() {
+    return upstream.getResponseHeaders();
+  }
+
+  @Override
+  public void close() throws IOException {
+    upstream.close();
+  }
+
+  /** A token bucket holding at most one second worth of bytes. */
+  private static final class TokenBucket {
+
+    private long bytesPerSecond;
+    private double availableBytes;
+    private long lastRefillTimeMs;
+
+    public TokenBucket(long bytesPerSecond) {
+      this.bytesPerSecond = bytesPerSecond;
+      lastRefillTimeMs = SystemClock.elapsedRealtime();
+    }
+
+    public synchronized void setRate(long bytesPerSecond) {
+      this.bytesPerSecond = bytesPerSecond;
+      notifyAll();
+    }
+
+    /**
+     * Takes {@code byteCount} bytes from the bucket, blocking until the bucket is no longer in
+     * debt. Reads are never split, so a large read may overdraw the bucket and is paid for by the
+     * following ones.
+     */
+    public synchronized void consume(int byteCount) throws InterruptedIOException {
+      refill();
+      availableBytes -= byteCount;
+      while (bytesPerSecond > 0 && availableBytes < 0) {
+        long waitMs = (long) Math.ceil(-availableBytes * 1000 / bytesPerSecond);
+        try {
+          wait(Math.max(1, waitMs));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+        refill();
+      }
+    }
+
+    private void refill() {
+      long nowMs = SystemClock.elapsedRealtime();
+      if (bytesPerSecond <= 0) {
+        availableBytes = 0;
+      } else {
+        double refilledBytes = (nowMs - lastRefillTimeMs) * bytesPerSecond / 1000.0;
+        availableBytes = Math.min(bytesPerSecond, availableBytes + refilledBytes);
+      }
+      lastRefillTimeMs = nowMs;
+    }
+  }
+}
@@ -2,15 +2,29 @@ package com.sigmadrm.drmpacker;
 
 import android.annotation.TargetApi;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.text.TextUtils;
-import android.util.Base64;
 import android.util.Log;
-import org.json.JSONObject;
+import java.io.InterruptedIOException;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import androidx.media3.common.C;
 import androidx.media3.common.util.Assertions;
 import androidx.media3.common.util.UnstableApi;
@@ -33,18 +47,58 @@ import com.sigma.packer.SigmaDrmPacker;
 @TargetApi(18)
 public final class WidevineMediaDrmCallback implements MediaDrmCallback {
 
+  /** Receives the latency of every completed key request. */
+  public interface LicenseRequestListener {
+
+    /**
+     * Called on the thread that made the request when a key request completed successfully.
+     *
+     * @param latencyMs The time taken by the request, including retries and hedging.
+     */
+    void onLicenseRequestCompleted(long latencyMs);
+  }
+
+  /** Produces the custom data header of a key request from its request data. */
+  interface CustomDataProvider {
+
+    String getCustomData(byte[] keyRequestData) throws Exception;
+  }
+
+  /** The default maximum number of threads of a {@link #newRequestExecutor request executor}. */
+  public static final int DEFAULT_MAX_REQUEST_THREADS = 8;
+
+  // Kept within 23 characters so that it can be used with Log.isLoggable.
+  private static final String TAG = "WidevineDrmCallback";
+  private static final long REQUEST_THREAD_KEEP_ALIVE_MS = 60_000;
+  private static final int MAX_QUEUED_REQUESTS_PER_THREAD = 4;
+
+  // Shared by the callbacks that are not given a request executor.
+  @Nullable private static ExecutorService defaultRequestExecutor;
+
   private final HttpDataSource.Factory dataSourceFactory;
   private final String defaultLicenseUrl;
   private final boolean forceDefaultLicenseUrl;
-  private final Map<String, String> keyRequestProperties;
+  private final SigmaCustomData customData;
+  private final Object keyRequestPropertiesLock;
+  // Immutable snapshot, replaced on every change so that key requests can read it without locking.
+  private volatile Map<String, String> keyRequestProperties;
+  private final LicenseLatencyTracker latencyTracker;
+
+  private volatile LicenseRetryPolicy retryPolicy;
+  @Nullable private volatile ExecutorService requestExecutor;
+  @Nullable private volatile LicenseRequestListener licenseRequestListener;
+  @Nullable private volatile DrmSessionTracker sessionTracker;
+  private CustomDataProvider customDataProvider;
 
   /**
    * @param defaultLicenseUrl The default license URL. Used for key requests that do not specify
    *                          their own license URL.
    * @param dataSourceFactory A factory from which to obtain {@link HttpDataSource} instances.
+   * @param customData        The custom data sent with key requests.
    */
-  public WidevineMediaDrmCallback(String defaultLicenseUrl, HttpDataSource.Factory dataSourceFactory) {
-    this(defaultLicenseUrl, false, dataSourceFactory);
+  public WidevineMediaDrmCallback(String defaultLicenseUrl, HttpDataSource.Factory dataSourceFactory,
+                                  SigmaCustomData customData) {
+    this(defaultLicenseUrl, false, dataSourceFactory, customData);
   }
 
   /**
@@ -54,13 +108,87 @@ public final class WidevineMediaDrmCallback implements MediaDrmCallback {
    * @param forceDefaultLicenseUrl Whether to use {@code defaultLicenseUrl} for key requests that
    *                               include their own license URL.
    * @param dataSourceFactory      A factory from which to obtain {@link HttpDataSource} instances.
+   * @param customData             The custom data sent with key requests.
    */
   public WidevineMediaDrmCallback(String defaultLicenseUrl, boolean forceDefaultLicenseUrl,
-                                  HttpDataSource.Factory dataSourceFactory) {
+                                  HttpDataSource.Factory dataSourceFactory,
+                                  SigmaCustomData customData) {
     this.dataSourceFactory = dataSourceFactory;
     this.defaultLicenseUrl = defaultLicenseUrl;
     this.forceDefaultLicenseUrl = forceDefaultLicenseUrl;
-    this.keyRequestProperties = new HashMap<>();
+    this.customData = customData;
+    this.keyRequestPropertiesLock = new Object();
+    this.keyRequestProperties = Collections.emptyMap();
+    this.latencyTracker = new LicenseLatencyTracker(/* capacity= */ 64);
+    this.retryPolicy = new LicenseRetryPolicy.Builder().build();
+    this.customDataProvider = this::getCustomData;
+  }
+
+  /**
+   * Replaces how the custom data header is produced, which otherwise needs the native request info
+   * parser. Used to run the callback on the host JVM.
+   */
+  @VisibleForTesting
+  /* package */ void setCustomDataProvider(CustomDataProvider customDataProvider) {
+    this.customDataProvider = customDataProvider;
+  }
+
+  /**
+   * Sets the policy for retrying failed requests and hedging slow key requests.
+   *
+   * @param retryPolicy The policy.
+   */
+  public void setRetryPolicy(LicenseRetryPolicy retryPolicy) {
+    this.retryPolicy = Assertions.checkNotNull(retryPolicy);
+  }
+
+  /**
+   * Sets a listener for the latency of key requests.
+   *
+   * @param licenseRequestListener The listener, or null to remove it.
+   */
+  public void setLicenseRequestListener(@Nullable LicenseRequestListener licenseRequestListener) {
+    this.licenseRequestListener = licenseRequestListener;
+  }
+
+  /**
+   * Sets the executor on which requests are posted, which is usually shared by all callbacks. A
+   * key request uses up to three of its threads while hedging. Callbacks without one share a
+   * default executor.
+   *
+   * @param requestExecutor An executor returned by {@link #newRequestExecutor}.
+   */
+  public void setRequestExecutor(ExecutorService requestExecutor) {
+    this.requestExecutor = Assertions.checkNotNull(requestExecutor);
+  }
+
+  /**
+   * Returns an executor for the requests of any number of callbacks, with at most {@code
+   * maxThreads} threads. Idle threads are stopped after a minute. When all threads are busy,
+   * requests wait in a bounded queue, still under the deadline of their key request and
+   * cancellable. Beyond the queue, key requests fail right away with a {@link
+   * MediaDrmCallbackException} that the session retries, and hedges are not sent.
+   */
+  public static ExecutorService newRequestExecutor(int maxThreads) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(/* corePoolSize= */ maxThreads,
+            maxThreads, REQUEST_THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(maxThreads * MAX_QUEUED_REQUESTS_PER_THREAD),
+            new ThreadPoolExecutor.AbortPolicy());
+    // A bounded queue only gets more threads than the core pool once it is full.
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Sets the tracker of the sessions key requests are made for. Key requests of a session are then
+   * cancelled when the session is closed or makes a newer key request, and their responses are
+   * dropped without being parsed.
+   *
+   * @param sessionTracker The tracker, which must track the {@code ExoMediaDrm} of the sessions, or
+   *                       null to never cancel key requests.
+   */
+  public void setSessionTracker(@Nullable DrmSessionTracker sessionTracker) {
+    this.sessionTracker = sessionTracker;
   }
 
   /**
@@ -72,8 +200,10 @@ public final class WidevineMediaDrmCallback implements MediaDrmCallback {
   public void setKeyRequestProperty(String name, String value) {
     Assertions.checkNotNull(name);
     Assertions.checkNotNull(value);
-    synchronized (keyRequestProperties) {
-      keyRequestProperties.put(name, value);
+    synchronized (keyRequestPropertiesLock) {
+      Map<String, String> properties = new HashMap<>(keyRequestProperties);
+      properties.put(name, value);
+      keyRequestProperties = Collections.unmodifiableMap(properties);
     }
   }
 
@@ -84,8 +214,10 @@ public final class WidevineMediaDrmCallback implements MediaDrmCallback {
    */
   public void clearKeyRequestProperty(String name) {
     Assertions.checkNotNull(name);
-    synchronized (keyRequestProperties) {
-      keyRequestProperties.remove(name);
+    synchronized (keyRequestPropertiesLock) {
+      Map<String, String> properties = new HashMap<>(keyRequestProperties);
+      properties.remove(name);
+      keyRequestProperties = Collections.unmodifiableMap(properties);
     }
   }
 
@@ -93,17 +225,21 @@ public final class WidevineMediaDrmCallback implements MediaDrmCallback {
    * Clears all headers for key requests made by the callback.
    */
   public void clearAllKeyRequestProperties() {
-    synchronized (keyRequestProperties) {
-      keyRequestProperties.clear();
+    synchronized (keyRequestPropertiesLock) {
+      keyRequestProperties = Collections.emptyMap();
     }
   }
 
   @NonNull
   @Override
   public byte[] executeProvisionRequest(@NonNull UUID uuid, ProvisionRequest request) throws MediaDrmCallbackException {
-    String url =
-            request.getDefaultUrl() + "&signedRequest=" + Util.fromUtf8Bytes(request.getData());
-    return executePost(dataSourceFactory, url, Util.EMPTY_BYTE_ARRAY, null);
+    // The signed request is not URL safe, so it is encoded as a query parameter.
+    String url = Uri.parse(request.getDefaultUrl()).buildUpon()
+            .appendQueryParameter("signedRequest", Util.fromUtf8Bytes(request.getData()))
+            .build()
+            .toString();
+    return executePost(dataSourceFactory, url, Util.EMPTY_BYTE_ARRAY, null, retryPolicy,
+            /* decodeLicense= */ false);
   }
 
   @NonNull
@@ -114,27 +250,173 @@ public final class WidevineMediaDrmCallback implements MediaDrmCallback {
       if (forceDefaultLicenseUrl || TextUtils.isEmpty(url)) {
         url = defaultLicenseUrl;
       }
-      Map<String, String> requestProperties = new HashMap<>();
+      Map<String, String> additionalRequestProperties = keyRequestProperties;
+      Map<String, String> requestProperties =
+              new HashMap<>(/* initialCapacity= */ additionalRequestProperties.size() + 4);
       // Add standard request properties for supported schemes.
       String contentType = "application/octet-stream";
       requestProperties.put("Content-Type", contentType);
-      requestProperties.put("custom-data", getCustomData(request));
+      requestProperties.put("custom-data", customDataProvider.getCustomData(request.getData()));
 
       // Add additional request properties.
-      synchronized (keyRequestProperties) {
-        requestProperties.putAll(keyRequestProperties);
-      }
-      byte[] bytes = executePost(dataSourceFactory, url, request.getData(), requestProperties);
-      JSONObject jsonObject = new JSONObject(new String(bytes));
-      String licenseEncrypted = jsonObject.getString("license");
-      return Base64.decode(licenseEncrypted, Base64.DEFAULT);
+      requestProperties.putAll(additionalRequestProperties);
+      return executeKeyRequestPost(request, url, requestProperties);
+    } catch (MediaDrmCallbackException e) {
+      throw e;
     } catch (Exception e) {
       throw new RuntimeException("Error while parsing response", e);
     }
   }
 
-  private static byte[] executePost(HttpDataSource.Factory dataSourceFactory, String url,
-                                    byte[] data, Map<String, String> requestProperties) throws MediaDrmCallbackException {
+  /**
+   * Posts a key request on the request executor and waits for the response for at most the total
+   * deadline of the retry policy. The post is interrupted when the deadline passes or when the
+   * {@link #setSessionTracker session tracker} cancels the request.
+   */
+  private byte[] executeKeyRequestPost(KeyRequest request, String url,
+                                       Map<String, String> requestProperties) throws MediaDrmCallbackException {
+    LicenseRetryPolicy retryPolicy = this.retryPolicy;
+    long startTimeMs = SystemClock.elapsedRealtime();
+    byte[] data = request.getData();
+    String hedgeLicenseUrl = retryPolicy.getHedgeLicenseUrl();
+    Future<byte[]> future;
+    try {
+      future = getRequestExecutor().submit(() -> hedgeLicenseUrl == null
+              ? executePost(dataSourceFactory, url, data, requestProperties, retryPolicy,
+                      /* decodeLicense= */ true)
+              : executeHedgedPost(url, hedgeLicenseUrl, data, requestProperties, retryPolicy));
+    } catch (RejectedExecutionException e) {
+      // Running the request here would put it outside the deadline and the session tracker. The
+      // session retries the request after a delay instead.
+      Log.w(TAG, "Key request rejected, all request threads and the queue are busy");
+      throw newMediaDrmCallbackException(url, e);
+    }
+    DrmSessionTracker sessionTracker = this.sessionTracker;
+    @Nullable DrmSessionTracker.Registration registration = sessionTracker != null
+            ? sessionTracker.registerKeyRequest(
+                    request, () -> future.cancel(/* mayInterruptIfRunning= */ true))
+            : null;
+    byte[] response;
+    try {
+      response = future.get(retryPolicy.getTotalDeadlineMs(), TimeUnit.MILLISECONDS);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof MediaDrmCallbackException) {
+        throw (MediaDrmCallbackException) e.getCause();
+      }
+      throw newMediaDrmCallbackException(url, e.getCause());
+    } catch (CancellationException e) {
+      Log.i(TAG, "Key request cancelled after " + (SystemClock.elapsedRealtime() - startTimeMs)
+              + "ms");
+      throw newMediaDrmCallbackException(url, e);
+    } catch (TimeoutException e) {
+      future.cancel(/* mayInterruptIfRunning= */ true);
+      throw newMediaDrmCallbackException(url, e);
+    } catch (InterruptedException e) {
+      future.cancel(/* mayInterruptIfRunning= */ true);
+      Thread.currentThread().interrupt();
+      throw newMediaDrmCallbackException(url, e);
+    } finally {
+      if (registration != null) {
+        registration.unregister();
+      }
+    }
+    long latencyMs = SystemClock.elapsedRealtime() - startTimeMs;
+    latencyTracker.addLatency(latencyMs);
+    LicenseRequestListener licenseRequestListener = this.licenseRequestListener;
+    if (licenseRequestListener != null) {
+      licenseRequestListener.onLicenseRequestCompleted(latencyMs);
+    }
+    return response;
+  }
+
+  /**
+   * Posts to {@code url} and, if no response arrived within the hedge delay or the request failed,
+   * also to {@code hedgeLicenseUrl}. Returns the first successful response.
+   */
+  private byte[] executeHedgedPost(String url, String hedgeLicenseUrl, byte[] data,
+                                   Map<String, String> requestProperties,
+                                   LicenseRetryPolicy retryPolicy) throws MediaDrmCallbackException {
+    long percentileMs = latencyTracker.getPercentileMs(retryPolicy.getHedgeLatencyPercentile());
+    long hedgeDelayMs = percentileMs == C.TIME_UNSET
+            ? retryPolicy.getMinHedgeDelayMs()
+            : Math.max(retryPolicy.getMinHedgeDelayMs(), percentileMs);
+    ExecutorCompletionService<byte[]> completionService =
+            new ExecutorCompletionService<>(getRequestExecutor());
+    Future<byte[]> primary = completionService.submit(
+            () -> executePost(dataSourceFactory, url, data, requestProperties, retryPolicy,
+                    /* decodeLicense= */ true));
+    Future<byte[]> hedge = null;
+    boolean hedgeRejected = false;
+    int outstanding = 1;
+    Throwable lastError = null;
+    try {
+      while (outstanding > 0) {
+        Future<byte[]> completed = hedge == null && !hedgeRejected
+                ? completionService.poll(hedgeDelayMs, TimeUnit.MILLISECONDS)
+                : completionService.take();
+        if (completed != null) {
+          outstanding--;
+          try {
+            return completed.get();
+          } catch (ExecutionException e) {
+            lastError = e.getCause();
+          }
+        }
+        if (hedge == null && !hedgeRejected) {
+          try {
+            hedge = completionService.submit(() ->
+                    executePost(dataSourceFactory, hedgeLicenseUrl, data, requestProperties,
+                            retryPolicy, /* decodeLicense= */ true));
+            outstanding++;
+          } catch (RejectedExecutionException e) {
+            // The executor is saturated, so a hedge would only add load. Keep waiting for the
+            // primary request.
+            hedgeRejected = true;
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      lastError = e;
+    } finally {
+      primary.cancel(/* mayInterruptIfRunning= */ true);
+      if (hedge != null) {
+        hedge.cancel(/* mayInterruptIfRunning= */ true);
+      }
+    }
+    if (lastError instanceof MediaDrmCallbackException) {
+      throw (MediaDrmCallbackException) lastError;
+    }
+    throw newMediaDrmCallbackException(url, lastError);
+  }
+
+  private static MediaDrmCallbackException newMediaDrmCallbackException(String url,
+                                                                        @Nullable Throwable cause) {
+    return new MediaDrmCallbackException(
+            new DataSpec.Builder().setUri(url).build(),
+            Uri.parse(url),
+            Collections.emptyMap(),
+            /* bytesLoaded= */ 0,
+            cause);
+  }
+
+  private ExecutorService getRequestExecutor() {
+    @Nullable ExecutorService requestExecutor = this.requestExecutor;
+    return requestExecutor != null ? requestExecutor : getDefaultRequestExecutor();
+  }
+
+  private static synchronized ExecutorService getDefaultRequestExecutor() {
+    if (defaultRequestExecutor == null) {
+      defaultRequestExecutor = newRequestExecutor(DEFAULT_MAX_REQUEST_THREADS);
+    }
+    return defaultRequestExecutor;
+  }
+
+  @VisibleForTesting
+  /* package */ static byte[] executePost(HttpDataSource.Factory dataSourceFactory, String url,
+                                          byte[] data, Map<String, String> requestProperties,
+                                          LicenseRetryPolicy retryPolicy,
+                                          boolean decodeLicense) throws MediaDrmCallbackException {
     HttpDataSource dataSource = dataSourceFactory.createDataSource();
     if (requestProperties != null) {
       for (Map.Entry<String, String> requestProperty : requestProperties.entrySet()) {
@@ -142,6 +424,8 @@ public final class WidevineMediaDrmCallback implements MediaDrmCallback {
       }
     }
 
+    long deadlineMs = SystemClock.elapsedRealtime() + retryPolicy.getTotalDeadlineMs();
+    int attemptCount = 0;
     while (true) {
       DataSpec dataSpec =
               new DataSpec(
@@ -153,35 +437,73 @@ public final class WidevineMediaDrmCallback implements MediaDrmCallback {
                       /* key= */ null,
                       DataSpec.FLAG_ALLOW_GZIP);
       DataSourceInputStream inputStream = new DataSourceInputStream(dataSource, dataSpec);
+      long retryDelayMs;
       try {
-        return Util.toByteArray(inputStream);
+        if (!decodeLicense) {
+          return Util.toByteArray(inputStream);
+        }
+        // Open first so that the response headers are available to pick the decoding.
+        inputStream.open();
+        if (Thread.currentThread().isInterrupted()) {
+          // The request was cancelled or timed out, so nobody waits for the license anymore.
+          throw new InterruptedIOException();
+        }
+        Map<String, List<String>> responseHeaders = dataSource.getResponseHeaders();
+        String contentLength = getResponseHeader(responseHeaders, "Content-Length");
+        // A compressed length says nothing about the decoded license size.
+        long length =
+                contentLength != null && getResponseHeader(responseHeaders, "Content-Encoding") == null
+                        ? Long.parseLong(contentLength.trim())
+                        : C.LENGTH_UNSET;
+        return LicenseResponseDecoder.decode(
+                inputStream, getResponseHeader(responseHeaders, "Content-Type"), length);
       } catch (Exception e) {
-        throw new MediaDrmCallbackException(
-                dataSpec,
-                Uri.parse(url),
-                dataSource.getResponseHeaders(),
-                inputStream.bytesRead(),
-                e);
+        if (Thread.currentThread().isInterrupted()) {
+          throw new MediaDrmCallbackException(dataSpec, Uri.parse(url),
+                  Collections.emptyMap(), inputStream.bytesRead(), e);
+        }
+        attemptCount++;
+        retryDelayMs = retryPolicy.getRetryDelayMs(
+                e, attemptCount, deadlineMs - SystemClock.elapsedRealtime());
+        if (retryDelayMs == C.TIME_UNSET) {
+          throw new MediaDrmCallbackException(
+                  dataSpec,
+                  Uri.parse(url),
+                  dataSource.getResponseHeaders(),
+                  inputStream.bytesRead(),
+                  e);
+        }
+        Log.w(TAG, "License request attempt " + attemptCount + " failed, retrying in "
+                + retryDelayMs + "ms", e);
       } finally {
         Util.closeQuietly(inputStream);
       }
+      try {
+        Thread.sleep(retryDelayMs);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new MediaDrmCallbackException(
+                dataSpec, Uri.parse(url), Collections.emptyMap(), /* bytesLoaded= */ 0, e);
+      }
     }
   }
 
-  private String getCustomData(KeyRequest keyRequest) throws Exception {
-    JSONObject customData = new JSONObject();
-
-    customData.put("merchantId", "sctv");
-    customData.put("appId", "RedTV");
-    customData.put("userId", "media3_userId_12346");
-    customData.put("sessionId", "media3_sessionId_12355");
-
-    RequestInfo requestInfo = SigmaDrmPacker.requestInfo(keyRequest.getData());
-    customData.put("reqId", requestInfo.requestId);
-    customData.put("deviceInfo", requestInfo.deviceInfo);
+  @Nullable
+  private static String getResponseHeader(Map<String, List<String>> responseHeaders, String name) {
+    for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+      if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+        return header.getValue().get(0);
+      }
+    }
+    return null;
+  }
 
-    String customHeader = Base64.encodeToString(customData.toString().getBytes(), Base64.NO_WRAP);
-    Log.e("Custom Data: ", customHeader);
+  private String getCustomData(byte[] keyRequestData) throws Exception {
+    RequestInfo requestInfo = SigmaDrmPacker.requestInfo(keyRequestData);
+    String customHeader = customData.encode(requestInfo);
+    if (Log.isLoggable(TAG, Log.VERBOSE)) {
+      Log.v(TAG, "Custom data: " + customHeader);
+    }
     return customHeader;
   }
 }
@@ -0,0 +1,38 @@
+package com.sigmadrm.drmpacker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the decay of {@link BandwidthEstimateStore} estimates.
+ */
+public class BandwidthEstimateStoreTest {
+
+  private static final long HALF_LIFE_MS = BandwidthEstimateStore.DEFAULT_HALF_LIFE_MS;
+
+  @Test
+  public void freshEstimate_isUsedAsIs() {
+    assertEquals(8_000_000, BandwidthEstimateStore.decay(8_000_000, 1_000_000, 0, HALF_LIFE_MS));
+  }
+
+  @Test
+  public void estimate_countsHalfAfterHalfLife() {
+    assertEquals(4_500_000,
+        BandwidthEstimateStore.decay(8_000_000, 1_000_000, HALF_LIFE_MS, HALF_LIFE_MS));
+    assertEquals(2_750_000,
+        BandwidthEstimateStore.decay(8_000_000, 1_000_000, 2 * HALF_LIFE_MS, HALF_LIFE_MS));
+  }
+
+  @Test
+  public void lowEstimate_decaysUpTowardsDefault() {
+    assertEquals(3_000_000,
+        BandwidthEstimateStore.decay(1_000_000, 5_000_000, HALF_LIFE_MS, HALF_LIFE_MS));
+  }
+
+  @Test
+  public void expiredEstimate_isIgnored() {
+    assertEquals(1_000_000, BandwidthEstimateStore.decay(
+        8_000_000, 1_000_000, BandwidthEstimateStore.MAX_AGE_MS + 1, HALF_LIFE_MS));
+  }
+}
@@ -0,0 +1,93 @@
+package com.sigmadrm.drmpacker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+/**
+ * An in-process server for the DASH fixtures checked in under {@code startup/} in the test
+ * resources, with optional injected latency.
+ *
+ * <p>The fixtures are served below any number of leading path segments, so that every run can use
+ * URLs that are not in the caches of earlier runs.
+ */
+final class DashFixtureServer implements Closeable {
+
+  private static final String RESOURCE_DIRECTORY = "startup/";
+  private static final String[] FIXTURES =
+      {"manifest.mpd", "init.mp4", "seg-1.m4s", "seg-2.m4s", "seg-3.m4s", "seg-4.m4s"};
+
+  private final MockWebServer server;
+  private final Map<String, byte[]> fixtures;
+
+  private volatile long latencyMs;
+
+  public DashFixtureServer() throws IOException {
+    fixtures = new HashMap<>();
+    for (String name : FIXTURES) {
+      fixtures.put(name, readResource(RESOURCE_DIRECTORY + name));
+    }
+    server = new MockWebServer();
+    server.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        return serve(request.getRequestUrl().pathSegments());
+      }
+    });
+    server.start();
+  }
+
+  /** Delays every response by {@code latencyMs}. */
+  public void setLatency(long latencyMs) {
+    this.latencyMs = latencyMs;
+  }
+
+  /** Returns the URL of the manifest, below the path segment {@code runId}. */
+  public String getManifestUrl(String runId) {
+    return server.url("/" + runId + "/manifest.mpd").toString();
+  }
+
+  @Override
+  public void close() throws IOException {
+    server.shutdown();
+  }
+
+  private MockResponse serve(List<String> pathSegments) {
+    byte[] fixture = pathSegments.isEmpty()
+        ? null
+        : fixtures.get(pathSegments.get(pathSegments.size() - 1));
+    MockResponse response = fixture == null
+        ? new MockResponse().setResponseCode(404)
+        : new MockResponse().setBody(new Buffer().write(fixture));
+    return response.setHeadersDelay(latencyMs, TimeUnit.MILLISECONDS);
+  }
+
+  private static byte[] readResource(String name) throws IOException {
+    InputStream inputStream = DashFixtureServer.class.getClassLoader().getResourceAsStream(name);
+    if (inputStream == null) {
+      throw new IOException("Missing test resource " + name);
+    }
+    try {
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int bytesRead;
+      while ((bytesRead = inputStream.read(buffer)) != -1) {
+        outputStream.write(buffer, 0, bytesRead);
+      }
+      return outputStream.toByteArray();
+    } finally {
+      inputStream.close();
+    }
+  }
+}
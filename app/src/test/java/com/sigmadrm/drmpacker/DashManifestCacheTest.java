@@ -0,0 +1,184 @@
+package com.sigmadrm.drmpacker;
+
+import android.net.Uri;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import androidx.media3.common.C;
+import androidx.media3.common.util.Util;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.DefaultHttpDataSource;
+import androidx.media3.datasource.HttpDataSource;
+import androidx.media3.exoplayer.dash.manifest.DashManifest;
+import androidx.media3.exoplayer.upstream.ParsingLoadable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the revalidation and fallbacks of {@link DashManifestCache} against a
+ * {@link MockWebServer}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DashManifestCacheTest {
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private MockWebServer server;
+  private DashManifestCache cache;
+  private DataSource.Factory dataSourceFactory;
+  private Uri manifestUri;
+  private byte[] manifestData;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new MockWebServer();
+    server.start();
+    manifestUri = Uri.parse(server.url("/title/manifest.mpd").toString());
+    cache = new DashManifestCache(temporaryFolder.newFolder("manifests"));
+    dataSourceFactory = cache.createDataSourceFactory(new DefaultHttpDataSource.Factory());
+    try (InputStream inputStream =
+        getClass().getClassLoader().getResourceAsStream("startup/manifest.mpd")) {
+      manifestData = Util.toByteArray(inputStream);
+    }
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.shutdown();
+  }
+
+  @Test
+  public void notModified_replaysStoredManifestWithoutParsing() throws Exception {
+    server.enqueue(buildManifestResponse().setHeader("ETag", "\"v1\""));
+    server.enqueue(new MockResponse().setResponseCode(304));
+
+    DashManifest manifest = load();
+    DashManifest revalidatedManifest = load();
+
+    server.takeRequest();
+    assertEquals("\"v1\"", server.takeRequest().getHeader("If-None-Match"));
+    assertSame(manifest, revalidatedManifest);
+  }
+
+  @Test
+  public void changedETag_parsesAndStoresNewManifest() throws Exception {
+    server.enqueue(buildManifestResponse().setHeader("ETag", "\"v1\""));
+    server.enqueue(buildManifestResponse().setHeader("ETag", "\"v2\""));
+    server.enqueue(new MockResponse().setResponseCode(304));
+
+    DashManifest manifest = load();
+    DashManifest changedManifest = load();
+    DashManifest revalidatedManifest = load();
+
+    server.takeRequest();
+    assertEquals("\"v1\"", server.takeRequest().getHeader("If-None-Match"));
+    assertEquals("\"v2\"", server.takeRequest().getHeader("If-None-Match"));
+    assertNotSame(manifest, changedManifest);
+    assertSame(changedManifest, revalidatedManifest);
+  }
+
+  @Test
+  public void lastModified_isSentAsIfModifiedSince() throws Exception {
+    String lastModified = "Wed, 21 Oct 2026 07:28:00 GMT";
+    server.enqueue(buildManifestResponse().setHeader("Last-Modified", lastModified));
+    server.enqueue(new MockResponse().setResponseCode(304));
+
+    DashManifest manifest = load();
+    DashManifest revalidatedManifest = load();
+
+    server.takeRequest();
+    assertEquals(lastModified, server.takeRequest().getHeader("If-Modified-Since"));
+    assertSame(manifest, revalidatedManifest);
+  }
+
+  @Test
+  public void responseWithoutValidator_isNotStored() throws Exception {
+    server.enqueue(buildManifestResponse());
+    server.enqueue(buildManifestResponse());
+
+    DashManifest manifest = load();
+    DashManifest reloadedManifest = load();
+
+    server.takeRequest();
+    assertNull(server.takeRequest().getHeader("If-None-Match"));
+    assertNotSame(manifest, reloadedManifest);
+  }
+
+  @Test
+  public void serverError_servesStoredManifest() throws Exception {
+    server.enqueue(buildManifestResponse().setHeader("ETag", "\"v1\""));
+    server.enqueue(new MockResponse().setResponseCode(503));
+
+    DashManifest manifest = load();
+
+    assertSame(manifest, load());
+  }
+
+  @Test
+  public void unreachableServer_servesStoredManifest() throws Exception {
+    server.enqueue(buildManifestResponse().setHeader("ETag", "\"v1\""));
+    DashManifest manifest = load();
+
+    server.shutdown();
+
+    assertSame(manifest, load());
+  }
+
+  @Test
+  public void warmUp_parsesStoredManifestsForNextProcess() throws Exception {
+    server.enqueue(buildManifestResponse().setHeader("ETag", "\"v1\""));
+    server.enqueue(new MockResponse().setResponseCode(304));
+    server.enqueue(new MockResponse().setResponseCode(304));
+    load();
+
+    cache = new DashManifestCache(new File(temporaryFolder.getRoot(), "manifests"));
+    dataSourceFactory = cache.createDataSourceFactory(new DefaultHttpDataSource.Factory());
+
+    assertEquals(1, cache.warmUp());
+    DashManifest manifest = load();
+    server.takeRequest();
+    assertEquals("\"v1\"", server.takeRequest().getHeader("If-None-Match"));
+    assertSame(manifest, load());
+  }
+
+  @Test
+  public void warmUp_withoutStoredManifests_parsesNothing() {
+    assertEquals(0, cache.warmUp());
+  }
+
+  @Test
+  public void notFound_isPassedOn() throws Exception {
+    server.enqueue(buildManifestResponse().setHeader("ETag", "\"v1\""));
+    server.enqueue(new MockResponse().setResponseCode(404));
+    load();
+
+    try {
+      load();
+      fail();
+    } catch (HttpDataSource.InvalidResponseCodeException e) {
+      assertEquals(404, e.responseCode);
+    }
+  }
+
+  private MockResponse buildManifestResponse() {
+    return new MockResponse().setBody(new Buffer().write(manifestData));
+  }
+
+  private DashManifest load() throws IOException {
+    return ParsingLoadable.load(dataSourceFactory.createDataSource(), cache.getManifestParser(),
+        manifestUri, C.DATA_TYPE_MANIFEST);
+  }
+}
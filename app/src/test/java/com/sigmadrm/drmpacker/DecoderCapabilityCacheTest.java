@@ -0,0 +1,108 @@
+package com.sigmadrm.drmpacker;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import androidx.media3.common.Format;
+import androidx.media3.common.MimeTypes;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link DecoderCapabilityCache}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DecoderCapabilityCacheTest {
+
+  private static final String FINGERPRINT = "vendor/device/device:14/UP1A/1:user/release-keys";
+  private static final DecoderCapabilityCache.Query SECURE_H264 =
+      new DecoderCapabilityCache.Query(MimeTypes.VIDEO_H264, /* secure= */ true,
+          /* tunneling= */ false);
+  private static final DecoderCapabilityCache.Query SECURE_H265 =
+      new DecoderCapabilityCache.Query(MimeTypes.VIDEO_H265, /* secure= */ true,
+          /* tunneling= */ false);
+  private static final DecoderCapabilityCache.DecoderCapabilities SECURE_H264_DECODER =
+      new DecoderCapabilityCache.DecoderCapabilities("c2.vendor.avc.decoder.secure",
+          MimeTypes.VIDEO_H264, /* hardwareAccelerated= */ true, /* secure= */ true,
+          /* tunneling= */ false, /* maxWidth= */ 4096, /* maxHeight= */ 2176,
+          /* profiles= */ new int[] {1, 2, 8}, /* maxInstances= */ 4);
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private File file;
+
+  @Before
+  public void setUp() {
+    file = new File(temporaryFolder.getRoot(), "decoder_capabilities.json");
+  }
+
+  @Test
+  public void saveAndLoad_roundTripsCapabilities() throws Exception {
+    DecoderCapabilityCache cache = new DecoderCapabilityCache(file, FINGERPRINT);
+    cache.put(SECURE_H264, Collections.singletonList(SECURE_H264_DECODER));
+    cache.put(SECURE_H265, Collections.emptyList());
+    cache.save();
+
+    DecoderCapabilityCache loadedCache = new DecoderCapabilityCache(file, FINGERPRINT);
+    loadedCache.load();
+
+    List<DecoderCapabilityCache.DecoderCapabilities> decoders = loadedCache.get(SECURE_H264);
+    assertEquals(Collections.singletonList(SECURE_H264_DECODER), decoders);
+    assertEquals(4096, decoders.get(0).maxWidth);
+    assertEquals(2176, decoders.get(0).maxHeight);
+    assertArrayEquals(new int[] {1, 2, 8}, decoders.get(0).profiles);
+    assertEquals(4, decoders.get(0).maxInstances);
+    // A query that found no decoder is remembered too.
+    assertEquals(Collections.emptyList(), loadedCache.get(SECURE_H265));
+  }
+
+  @Test
+  public void load_discardsCacheOfOtherFingerprint() throws Exception {
+    DecoderCapabilityCache cache = new DecoderCapabilityCache(file, FINGERPRINT);
+    cache.put(SECURE_H264, Collections.singletonList(SECURE_H264_DECODER));
+    cache.save();
+
+    DecoderCapabilityCache updatedCache =
+        new DecoderCapabilityCache(file, FINGERPRINT.replace("UP1A", "UP1B"));
+    updatedCache.load();
+
+    assertNull(updatedCache.get(SECURE_H264));
+    assertTrue(updatedCache.getQueries().isEmpty());
+  }
+
+  @Test
+  public void put_reportsWhetherResultsChanged() {
+    DecoderCapabilityCache cache = new DecoderCapabilityCache(file, FINGERPRINT);
+
+    assertTrue(cache.put(SECURE_H264, Collections.singletonList(SECURE_H264_DECODER)));
+    assertFalse(cache.put(SECURE_H264, Collections.singletonList(SECURE_H264_DECODER)));
+    assertTrue(cache.put(SECURE_H264, Collections.emptyList()));
+  }
+
+  @Test
+  public void load_withoutMaxInstances_readsUnknownInstances() throws Exception {
+    // As written before the number of instances was persisted.
+    String json = "{\"fingerprint\":\"" + FINGERPRINT + "\",\"queries\":[{\"mimeType\":\""
+        + MimeTypes.VIDEO_H264 + "\",\"secure\":true,\"tunneling\":false,\"decoders\":[{"
+        + "\"name\":\"c2.vendor.avc.decoder.secure\",\"codecMimeType\":\"" + MimeTypes.VIDEO_H264
+        + "\",\"hardwareAccelerated\":true,\"secure\":true,\"tunneling\":false,"
+        + "\"maxWidth\":1920,\"maxHeight\":1088,\"profiles\":[1]}]}]}";
+    Files.write(file.toPath(), json.getBytes(StandardCharsets.UTF_8));
+
+    DecoderCapabilityCache cache = new DecoderCapabilityCache(file, FINGERPRINT);
+    cache.load();
+
+    assertEquals(Format.NO_VALUE, cache.get(SECURE_H264).get(0).maxInstances);
+    assertEquals(1920, cache.get(SECURE_H264).get(0).maxWidth);
+  }
+}
@@ -0,0 +1,228 @@
+package com.sigmadrm.drmpacker;
+
+import android.content.Context;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.media3.common.C;
+import androidx.media3.exoplayer.drm.ExoMediaDrm;
+import androidx.media3.exoplayer.drm.MediaDrmCallback;
+import androidx.media3.test.utils.FakeExoMediaDrm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link DrmProvisioningManager}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DrmProvisioningManagerTest {
+
+  private static final byte[] RESPONSE = {4, 5, 6};
+  private static final ExoMediaDrm.ProvisionRequest PROVISION_REQUEST =
+      new ExoMediaDrm.ProvisionRequest(new byte[] {7, 8, 9}, "https://provisioning.test");
+
+  private final AtomicInteger acquireCount = new AtomicInteger();
+  private final CountDownLatch acquireAllowed = new CountDownLatch(1);
+
+  private Context context;
+  private ExecutorService executor;
+  private ExecutorService requestExecutor;
+
+  @Before
+  public void setUp() {
+    context = RuntimeEnvironment.getApplication();
+    executor = Executors.newSingleThreadExecutor();
+    // One thread per session that provisions at the same time.
+    requestExecutor = Executors.newFixedThreadPool(2);
+  }
+
+  @After
+  public void tearDown() {
+    acquireAllowed.countDown();
+    executor.shutdownNow();
+    requestExecutor.shutdownNow();
+  }
+
+  @Test
+  public void concurrentProvision_sharesOneAttempt() throws Exception {
+    DrmProvisioningManager manager = createManager();
+
+    Future<Boolean> first = manager.provision();
+    Future<Boolean> second = manager.provision();
+    acquireAllowed.countDown();
+
+    assertSame(first, second);
+    assertTrue(first.get(5, TimeUnit.SECONDS));
+    assertEquals(1, acquireCount.get());
+  }
+
+  @Test
+  public void provision_afterSuccessInEarlierProcess_skipsProvider() throws Exception {
+    acquireAllowed.countDown();
+    assertTrue(createManager().provision().get(5, TimeUnit.SECONDS));
+
+    DrmProvisioningManager manager = createManager();
+
+    assertTrue(manager.isProvisioned());
+    assertTrue(manager.provision().get(5, TimeUnit.SECONDS));
+    assertEquals(1, acquireCount.get());
+  }
+
+  @Test
+  public void provision_afterInvalidate_probesAgain() throws Exception {
+    acquireAllowed.countDown();
+    DrmProvisioningManager manager = createManager();
+    assertTrue(manager.provision().get(5, TimeUnit.SECONDS));
+
+    manager.invalidate();
+
+    assertFalse(manager.isProvisioned());
+    assertTrue(manager.provision().get(5, TimeUnit.SECONDS));
+    assertEquals(2, acquireCount.get());
+  }
+
+  @Test
+  public void wrappedCallback_waitsForProvisioningInProgress() throws Exception {
+    DrmProvisioningManager manager = createManager();
+    Future<Boolean> provisioning = manager.provision();
+    MediaDrmCallback callback = manager.wrap(new MediaDrmCallback() {
+      @Override
+      public byte[] executeProvisionRequest(UUID uuid, ExoMediaDrm.ProvisionRequest request) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public byte[] executeKeyRequest(UUID uuid, ExoMediaDrm.KeyRequest request) {
+        assertTrue(provisioning.isDone());
+        return RESPONSE.clone();
+      }
+    });
+
+    Future<byte[]> response = requestExecutor.submit(() -> callback.executeKeyRequest(
+        C.WIDEVINE_UUID, new ExoMediaDrm.KeyRequest(new byte[] {1, 2, 3}, "")));
+    Thread.sleep(100);
+    assertFalse(response.isDone());
+    acquireAllowed.countDown();
+
+    assertArrayEquals(RESPONSE, response.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void wrappedCallback_withoutProvisioning_doesNotWait() throws Exception {
+    DrmProvisioningManager manager = createManager();
+    MediaDrmCallback callback = manager.wrap(new MediaDrmCallback() {
+      @Override
+      public byte[] executeProvisionRequest(UUID uuid, ExoMediaDrm.ProvisionRequest request) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public byte[] executeKeyRequest(UUID uuid, ExoMediaDrm.KeyRequest request) {
+        return RESPONSE.clone();
+      }
+    });
+
+    assertArrayEquals(RESPONSE, callback.executeKeyRequest(
+        C.WIDEVINE_UUID, new ExoMediaDrm.KeyRequest(new byte[] {1, 2, 3}, "")));
+    assertEquals(0, acquireCount.get());
+  }
+
+  @Test
+  public void sessionsProvisioningDuringAttempt_skipStaleRequests() throws Exception {
+    CountDownLatch attemptStarted = new CountDownLatch(1);
+    List<byte[]> providedResponses = Collections.synchronizedList(new ArrayList<>());
+    DrmProvisioningManager manager = new DrmProvisioningManager(context, uuid -> {
+      if (attemptStarted.getCount() > 0) {
+        attemptStarted.countDown();
+        return acquireExoMediaDrm(uuid);
+      }
+      return createRecordingMediaDrm(providedResponses);
+    }, C.WIDEVINE_UUID, /* callback= */ null, executor);
+    AtomicInteger sentRequestCount = new AtomicInteger();
+    MediaDrmCallback callback = manager.wrap(new MediaDrmCallback() {
+      @Override
+      public byte[] executeProvisionRequest(UUID uuid, ExoMediaDrm.ProvisionRequest request) {
+        sentRequestCount.incrementAndGet();
+        return RESPONSE.clone();
+      }
+
+      @Override
+      public byte[] executeKeyRequest(UUID uuid, ExoMediaDrm.KeyRequest request) {
+        throw new UnsupportedOperationException();
+      }
+    });
+    manager.provision();
+    assertTrue(attemptStarted.await(5, TimeUnit.SECONDS));
+
+    // Two sessions found the device not provisioned while the attempt is in progress.
+    List<Future<?>> sessions = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      ExoMediaDrm mediaDrm = manager.getExoMediaDrmProvider().acquireExoMediaDrm(C.WIDEVINE_UUID);
+      sessions.add(requestExecutor.submit(() -> {
+        mediaDrm.provideProvisionResponse(
+            callback.executeProvisionRequest(C.WIDEVINE_UUID, PROVISION_REQUEST));
+        return null;
+      }));
+    }
+    Thread.sleep(100);
+    assertFalse(sessions.get(0).isDone());
+    acquireAllowed.countDown();
+    for (Future<?> session : sessions) {
+      session.get(5, TimeUnit.SECONDS);
+    }
+
+    assertEquals(0, sentRequestCount.get());
+    assertTrue(providedResponses.isEmpty());
+
+    // Once the attempt is done, a session that needs provisioning is provisioned normally.
+    manager.getExoMediaDrmProvider().acquireExoMediaDrm(C.WIDEVINE_UUID).provideProvisionResponse(
+        callback.executeProvisionRequest(C.WIDEVINE_UUID, PROVISION_REQUEST));
+    assertEquals(1, sentRequestCount.get());
+    assertEquals(1, providedResponses.size());
+    assertArrayEquals(RESPONSE, providedResponses.get(0));
+  }
+
+  private DrmProvisioningManager createManager() {
+    return new DrmProvisioningManager(context, this::acquireExoMediaDrm, C.WIDEVINE_UUID,
+        /* callback= */ null, executor);
+  }
+
+  /** Returns a DRM that records the provisioning responses it is given. */
+  private static ExoMediaDrm createRecordingMediaDrm(List<byte[]> providedResponses) {
+    return (ExoMediaDrm) Proxy.newProxyInstance(ExoMediaDrm.class.getClassLoader(),
+        new Class<?>[] {ExoMediaDrm.class}, (proxy, method, args) -> {
+          if (!method.getName().equals("provideProvisionResponse")) {
+            throw new UnsupportedOperationException(method.getName());
+          }
+          providedResponses.add((byte[]) args[0]);
+          return null;
+        });
+  }
+
+  /** Blocks until {@link #acquireAllowed}, like a DRM that takes a while to provision. */
+  private ExoMediaDrm acquireExoMediaDrm(UUID uuid) {
+    acquireCount.incrementAndGet();
+    try {
+      assertTrue(acquireAllowed.await(5, TimeUnit.SECONDS));
+    } catch (InterruptedException e) {
+      throw new IllegalStateException(e);
+    }
+    return new FakeExoMediaDrm.Builder().build();
+  }
+}
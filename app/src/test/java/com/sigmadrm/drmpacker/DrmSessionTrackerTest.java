@@ -0,0 +1,138 @@
+package com.sigmadrm.drmpacker;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.media3.common.C;
+import androidx.media3.common.DrmInitData;
+import androidx.media3.common.MimeTypes;
+import androidx.media3.exoplayer.drm.ExoMediaDrm;
+import androidx.media3.test.utils.FakeExoMediaDrm;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the cancellation of key requests by {@link DrmSessionTracker}, with a
+ * {@link FakeExoMediaDrm} as CDM.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DrmSessionTrackerTest {
+
+  private static final List<DrmInitData.SchemeData> SCHEME_DATAS = Collections.singletonList(
+      new DrmInitData.SchemeData(C.WIDEVINE_UUID, MimeTypes.VIDEO_MP4, new byte[] {1, 2, 3}));
+
+  private DrmSessionTracker tracker;
+  private ExoMediaDrm mediaDrm;
+
+  @Before
+  public void setUp() throws Exception {
+    tracker = new DrmSessionTracker();
+    mediaDrm = tracker.wrap(uuid -> new FakeExoMediaDrm.Builder().build())
+        .acquireExoMediaDrm(C.WIDEVINE_UUID);
+  }
+
+  @Test
+  public void closeSession_cancelsInFlightKeyRequest() throws Exception {
+    byte[] sessionId = mediaDrm.openSession();
+    AtomicInteger cancelCount = new AtomicInteger();
+    tracker.registerKeyRequest(getKeyRequest(sessionId), cancelCount::incrementAndGet);
+
+    mediaDrm.closeSession(sessionId);
+
+    assertEquals(1, cancelCount.get());
+  }
+
+  @Test
+  public void closeSession_doesNotCancelCompletedKeyRequest() throws Exception {
+    byte[] sessionId = mediaDrm.openSession();
+    AtomicInteger cancelCount = new AtomicInteger();
+    tracker.registerKeyRequest(getKeyRequest(sessionId), cancelCount::incrementAndGet)
+        .unregister();
+
+    mediaDrm.closeSession(sessionId);
+
+    assertEquals(0, cancelCount.get());
+  }
+
+  @Test
+  public void closeSession_onlyCancelsKeyRequestsOfThatSession() throws Exception {
+    byte[] sessionId = mediaDrm.openSession();
+    byte[] otherSessionId = mediaDrm.openSession();
+    AtomicInteger cancelCount = new AtomicInteger();
+    AtomicInteger otherCancelCount = new AtomicInteger();
+    tracker.registerKeyRequest(getKeyRequest(sessionId), cancelCount::incrementAndGet);
+    tracker.registerKeyRequest(getKeyRequest(otherSessionId), otherCancelCount::incrementAndGet);
+
+    mediaDrm.closeSession(sessionId);
+
+    assertEquals(1, cancelCount.get());
+    assertEquals(0, otherCancelCount.get());
+  }
+
+  @Test
+  public void newerKeyRequest_supersedesOlderKeyRequestOfSameSession() throws Exception {
+    byte[] sessionId = mediaDrm.openSession();
+    AtomicInteger olderCancelCount = new AtomicInteger();
+    AtomicInteger newerCancelCount = new AtomicInteger();
+    tracker.registerKeyRequest(getKeyRequest(sessionId), olderCancelCount::incrementAndGet);
+
+    ExoMediaDrm.KeyRequest newerRequest = getKeyRequest(sessionId);
+    tracker.registerKeyRequest(newerRequest, newerCancelCount::incrementAndGet);
+
+    assertEquals(1, olderCancelCount.get());
+    assertEquals(0, newerCancelCount.get());
+    mediaDrm.closeSession(sessionId);
+    assertEquals(1, olderCancelCount.get());
+    assertEquals(1, newerCancelCount.get());
+  }
+
+  @Test
+  public void registerAfterSessionClosed_cancelsRightAway() throws Exception {
+    byte[] sessionId = mediaDrm.openSession();
+    ExoMediaDrm.KeyRequest request = getKeyRequest(sessionId);
+    mediaDrm.closeSession(sessionId);
+    AtomicInteger cancelCount = new AtomicInteger();
+
+    tracker.registerKeyRequest(request, cancelCount::incrementAndGet);
+
+    assertEquals(1, cancelCount.get());
+  }
+
+  @Test
+  public void registerAfterSuperseded_cancelsRightAway() throws Exception {
+    byte[] sessionId = mediaDrm.openSession();
+    ExoMediaDrm.KeyRequest olderRequest = getKeyRequest(sessionId);
+    getKeyRequest(sessionId);
+    AtomicInteger cancelCount = new AtomicInteger();
+
+    tracker.registerKeyRequest(olderRequest, cancelCount::incrementAndGet);
+
+    assertEquals(1, cancelCount.get());
+  }
+
+  @Test
+  public void untrackedKeyRequest_isNeverCancelled() throws Exception {
+    ExoMediaDrm untrackedMediaDrm = new FakeExoMediaDrm.Builder().build();
+    byte[] sessionId = untrackedMediaDrm.openSession();
+    AtomicInteger cancelCount = new AtomicInteger();
+    tracker.registerKeyRequest(
+        untrackedMediaDrm.getKeyRequest(
+            sessionId, SCHEME_DATAS, ExoMediaDrm.KEY_TYPE_STREAMING, /* optionalParameters= */ null),
+        cancelCount::incrementAndGet);
+
+    untrackedMediaDrm.closeSession(sessionId);
+
+    assertEquals(0, cancelCount.get());
+  }
+
+  private ExoMediaDrm.KeyRequest getKeyRequest(byte[] sessionId) throws Exception {
+    return mediaDrm.getKeyRequest(
+        sessionId, SCHEME_DATAS, ExoMediaDrm.KEY_TYPE_STREAMING, /* optionalParameters= */ null);
+  }
+}
@@ -0,0 +1,184 @@
+package com.sigmadrm.drmpacker;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+
+import androidx.media3.common.C;
+import androidx.media3.common.DrmInitData;
+import androidx.media3.common.Format;
+import androidx.media3.common.MimeTypes;
+import androidx.media3.exoplayer.drm.DrmSession;
+import androidx.media3.exoplayer.drm.DrmSessionManager;
+import androidx.media3.extractor.mp4.PsshAtomUtil;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link KeyIdSessionCoalescer}.
+ */
+public class KeyIdSessionCoalescerTest {
+
+  private static final UUID VIDEO_KEY_ID = UUID.fromString("10000000-0000-0000-0000-000000000001");
+  private static final UUID AUDIO_KEY_ID = UUID.fromString("20000000-0000-0000-0000-000000000002");
+
+  private KeyIdSessionCoalescer coalescer;
+  private final List<FakeSession> openedSessions = new ArrayList<>();
+
+  @Before
+  public void setUp() {
+    coalescer = new KeyIdSessionCoalescer(C.WIDEVINE_UUID);
+  }
+
+  @Test
+  public void sameKeyIdsOfOtherManager_shareOpenSession() {
+    DrmSessionManager first = coalescer.wrap(createManager());
+    DrmSessionManager second = coalescer.wrap(createManager());
+
+    DrmSession session = first.acquireSession(null, buildFormat(widevinePssh(VIDEO_KEY_ID)));
+    // The same key id in a PSSH box of another version.
+    DrmSession sharedSession = second.acquireSession(null, buildFormat(
+        PsshAtomUtil.buildPsshAtom(C.WIDEVINE_UUID, new UUID[] {VIDEO_KEY_ID}, null)));
+
+    assertSame(session, sharedSession);
+    assertEquals(1, openedSessions.size());
+    assertEquals(2, openedSessions.get(0).referenceCount);
+    assertEquals(1, coalescer.getOpenedSessionCount());
+    assertEquals(1, coalescer.getSharedSessionCount());
+  }
+
+  @Test
+  public void keyIdsOfMultiKeySession_areShared() {
+    DrmSessionManager manager = coalescer.wrap(createManager());
+
+    DrmSession session =
+        manager.acquireSession(null, buildFormat(widevinePssh(VIDEO_KEY_ID, AUDIO_KEY_ID)));
+
+    assertSame(session, manager.acquireSession(null, buildFormat(widevinePssh(AUDIO_KEY_ID))));
+    assertEquals(1, openedSessions.size());
+  }
+
+  @Test
+  public void otherKeyIds_openOwnSession() {
+    DrmSessionManager manager = coalescer.wrap(createManager());
+
+    DrmSession videoSession = manager.acquireSession(null, buildFormat(widevinePssh(VIDEO_KEY_ID)));
+    DrmSession session =
+        manager.acquireSession(null, buildFormat(widevinePssh(VIDEO_KEY_ID, AUDIO_KEY_ID)));
+
+    assertNotSame(videoSession, session);
+    assertEquals(2, coalescer.getOpenedSessionCount());
+    assertEquals(0, coalescer.getSharedSessionCount());
+  }
+
+  @Test
+  public void releasedSession_isNotShared() {
+    DrmSessionManager manager = coalescer.wrap(createManager());
+    DrmSession session = manager.acquireSession(null, buildFormat(widevinePssh(VIDEO_KEY_ID)));
+
+    session.release(null);
+
+    assertNotSame(session, manager.acquireSession(null, buildFormat(widevinePssh(VIDEO_KEY_ID))));
+    assertEquals(2, openedSessions.size());
+  }
+
+  @Test
+  public void keyIds_areReadFromHeaderAndWidevineData() {
+    DrmInitData drmInitData = new DrmInitData(
+        new DrmInitData.SchemeData(C.WIDEVINE_UUID, MimeTypes.VIDEO_MP4,
+            widevinePssh(VIDEO_KEY_ID)),
+        new DrmInitData.SchemeData(C.WIDEVINE_UUID, MimeTypes.VIDEO_MP4,
+            PsshAtomUtil.buildPsshAtom(C.WIDEVINE_UUID, new UUID[] {AUDIO_KEY_ID}, null)),
+        new DrmInitData.SchemeData(C.PLAYREADY_UUID, MimeTypes.VIDEO_MP4,
+            PsshAtomUtil.buildPsshAtom(C.PLAYREADY_UUID, new UUID[] {UUID.randomUUID()}, null)));
+
+    assertEquals(new HashSet<>(Arrays.asList(VIDEO_KEY_ID, AUDIO_KEY_ID)),
+        KeyIdSessionCoalescer.getKeyIds(drmInitData, C.WIDEVINE_UUID));
+  }
+
+  @Test
+  public void malformedPssh_hasNoKeyIds() {
+    byte[] pssh = widevinePssh(VIDEO_KEY_ID);
+    DrmInitData drmInitData = new DrmInitData(new DrmInitData.SchemeData(
+        C.WIDEVINE_UUID, MimeTypes.VIDEO_MP4, Arrays.copyOf(pssh, pssh.length - 3)));
+
+    assertTrue(KeyIdSessionCoalescer.getKeyIds(drmInitData, C.WIDEVINE_UUID).isEmpty());
+  }
+
+  private static Format buildFormat(byte[] pssh) {
+    return new Format.Builder()
+        .setSampleMimeType(MimeTypes.VIDEO_H264)
+        .setDrmInitData(new DrmInitData(
+            new DrmInitData.SchemeData(C.WIDEVINE_UUID, MimeTypes.VIDEO_MP4, pssh)))
+        .build();
+  }
+
+  /** Returns a version 0 PSSH box whose Widevine data lists {@code keyIds}. */
+  private static byte[] widevinePssh(UUID... keyIds) {
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    for (UUID keyId : keyIds) {
+      data.write(0x12);
+      data.write(16);
+      byte[] bytes = ByteBuffer.allocate(16)
+          .putLong(keyId.getMostSignificantBits())
+          .putLong(keyId.getLeastSignificantBits())
+          .array();
+      data.write(bytes, 0, bytes.length);
+    }
+    // The provider field, which is skipped.
+    data.write(0x1A);
+    data.write(2);
+    data.write('p');
+    data.write('r');
+    return PsshAtomUtil.buildPsshAtom(C.WIDEVINE_UUID, data.toByteArray());
+  }
+
+  /** Returns a manager that opens a new session for every acquisition. */
+  private DrmSessionManager createManager() {
+    return (DrmSessionManager) Proxy.newProxyInstance(DrmSessionManager.class.getClassLoader(),
+        new Class<?>[] {DrmSessionManager.class}, (proxy, method, args) -> {
+          if (!method.getName().equals("acquireSession")) {
+            throw new UnsupportedOperationException(method.getName());
+          }
+          FakeSession session = new FakeSession();
+          openedSessions.add(session);
+          return session.drmSession;
+        });
+  }
+
+  /** A session that counts its references, like {@code DefaultDrmSession} does. */
+  private static final class FakeSession {
+
+    private final DrmSession drmSession;
+    private int referenceCount;
+
+    public FakeSession() {
+      referenceCount = 1;
+      drmSession = (DrmSession) Proxy.newProxyInstance(DrmSession.class.getClassLoader(),
+          new Class<?>[] {DrmSession.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+              case "acquire":
+                referenceCount++;
+                return null;
+              case "release":
+                referenceCount--;
+                return null;
+              case "getState":
+                return referenceCount == 0
+                    ? DrmSession.STATE_RELEASED
+                    : DrmSession.STATE_OPENED_WITH_KEYS;
+              default:
+                throw new UnsupportedOperationException(method.getName());
+            }
+          });
+    }
+  }
+}
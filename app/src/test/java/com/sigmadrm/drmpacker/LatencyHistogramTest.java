@@ -0,0 +1,76 @@
+package com.sigmadrm.drmpacker;
+
+import androidx.media3.common.C;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+
+  @Test
+  public void empty_hasNoPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+
+    assertEquals(0, histogram.getCount());
+    assertEquals(C.TIME_UNSET, histogram.getPercentile(0.5));
+  }
+
+  @Test
+  public void smallValues_areExact() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 10; i++) {
+      histogram.record(i);
+    }
+
+    assertEquals(10, histogram.getCount());
+    assertEquals(55, histogram.getSum());
+    assertEquals(5, histogram.getPercentile(0.5));
+    assertEquals(9, histogram.getPercentile(0.9));
+    assertEquals(10, histogram.getPercentile(1));
+  }
+
+  @Test
+  public void largeValues_areWithinBucketError() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 10_000; i++) {
+      histogram.record(i);
+    }
+
+    assertWithinBucketError(5_000, histogram.getPercentile(0.5));
+    assertWithinBucketError(9_900, histogram.getPercentile(0.99));
+    assertEquals(10_000, histogram.getPercentile(1));
+  }
+
+  @Test
+  public void valuesAboveMax_areClampedButKeepMax() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(LatencyHistogram.MAX_VALUE * 4);
+    histogram.record(-1);
+
+    assertEquals(1, histogram.getCount());
+    assertEquals(LatencyHistogram.MAX_VALUE * 4, histogram.getMax());
+    assertWithinBucketError(LatencyHistogram.MAX_VALUE, histogram.getPercentile(0.5));
+  }
+
+  @Test
+  public void copy_isIndependent() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(100);
+    LatencyHistogram copy = histogram.copy();
+    histogram.record(200);
+    histogram.reset();
+
+    assertEquals(0, histogram.getCount());
+    assertEquals(1, copy.getCount());
+    assertEquals(100, copy.getMax());
+  }
+
+  private static void assertWithinBucketError(long expected, long actual) {
+    assertTrue("expected ~" + expected + " but was " + actual,
+        actual >= expected && actual <= expected * 1.125 + 1);
+  }
+}
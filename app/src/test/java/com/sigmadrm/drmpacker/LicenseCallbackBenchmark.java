@@ -0,0 +1,213 @@
+package com.sigmadrm.drmpacker;
+
+import android.app.Application;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import androidx.media3.common.C;
+import androidx.media3.datasource.HttpDataSource;
+import androidx.media3.exoplayer.drm.ExoMediaDrm.KeyRequest;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Measures the key request path of {@link WidevineMediaDrmCallback} against a {@link
+ * MockLicenseServer}: custom data encoding, {@code executePost} with response decoding, and complete
+ * {@code executeKeyRequest} calls with injected latency and errors. The server replays the key
+ * response fixtures of {@link MockLicenseServer#loadResponses()}.
+ *
+ * <p>Reports throughput, latency percentiles in microseconds and bytes allocated per request. The
+ * allocations are summed over all threads of the process but those of the license server, so that
+ * they include the request executor of the callback and the HTTP stack besides the requesting
+ * threads. Request info is normally parsed from the key request by the native packer library,
+ * which is not available on the host, so fixed request info is used instead.
+ *
+ * <p>Skipped unless the build is run with {@code -Pbenchmark=true}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(application = Application.class)
+public class LicenseCallbackBenchmark {
+
+  private static final int WARMUP_REQUESTS = 500;
+  private static final int MEASURED_REQUESTS = 2_000;
+  private static final int CUSTOM_DATA_ITERATIONS = 100_000;
+  private static final byte[] KEY_REQUEST_DATA = new byte[1_024];
+
+  private MockLicenseServer licenseServer;
+  private LicenseHttpTransport transport;
+  private SigmaCustomData customData;
+
+  @Before
+  public void setUp() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+    licenseServer = new MockLicenseServer(MockLicenseServer.loadResponses());
+    transport = new LicenseHttpTransport.Builder().build();
+    customData = new SigmaCustomData.Builder()
+        .setMerchantId("merchant")
+        .setAppId("app")
+        .setUserId("user")
+        .setSessionId("session")
+        .build();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (licenseServer != null) {
+      licenseServer.close();
+    }
+  }
+
+  @Test
+  public void customData() {
+    String deviceInfo = "{\"model\":\"host\",\"securityLevel\":\"L3\"}";
+    measure("customData", /* threadCount= */ 1, CUSTOM_DATA_ITERATIONS,
+        () -> customData.encode("request-id", deviceInfo));
+  }
+
+  @Test
+  public void executePost() throws Exception {
+    HttpDataSource.Factory dataSourceFactory = transport.getDataSourceFactory();
+    String url = licenseServer.getUrl();
+    LicenseRetryPolicy retryPolicy = LicenseRetryPolicy.NO_RETRY;
+    measure("executePost", /* threadCount= */ 1, MEASURED_REQUESTS,
+        () -> WidevineMediaDrmCallback.executePost(dataSourceFactory, url, KEY_REQUEST_DATA,
+            Collections.emptyMap(), retryPolicy, /* decodeLicense= */ true));
+  }
+
+  @Test
+  public void executeKeyRequest() throws Exception {
+    WidevineMediaDrmCallback callback = buildCallback();
+    measure("executeKeyRequest x1", /* threadCount= */ 1, MEASURED_REQUESTS,
+        () -> callback.executeKeyRequest(C.WIDEVINE_UUID, buildKeyRequest()));
+    measure("executeKeyRequest x4", /* threadCount= */ 4, MEASURED_REQUESTS,
+        () -> callback.executeKeyRequest(C.WIDEVINE_UUID, buildKeyRequest()));
+  }
+
+  @Test
+  public void executeKeyRequest_withLatency() throws Exception {
+    WidevineMediaDrmCallback callback = buildCallback();
+    licenseServer.setLatency(/* latencyMs= */ 20, /* jitterMs= */ 20);
+    measure("executeKeyRequest 20-40ms x4", /* threadCount= */ 4, MEASURED_REQUESTS / 10,
+        () -> callback.executeKeyRequest(C.WIDEVINE_UUID, buildKeyRequest()));
+  }
+
+  @Test
+  public void executeKeyRequest_withErrors() throws Exception {
+    WidevineMediaDrmCallback callback = buildCallback();
+    callback.setRetryPolicy(
+        new LicenseRetryPolicy.Builder().setInitialBackoffMs(5).setMaxBackoffMs(20).build());
+    licenseServer.setErrors(/* errorRate= */ 0.05, /* errorCode= */ 503);
+    int requestCountBefore = licenseServer.getRequestCount();
+    measure("executeKeyRequest 5% 503", /* threadCount= */ 1, MEASURED_REQUESTS,
+        () -> callback.executeKeyRequest(C.WIDEVINE_UUID, buildKeyRequest()));
+    System.out.printf("  %d server requests for %d key requests%n",
+        licenseServer.getRequestCount() - requestCountBefore, WARMUP_REQUESTS + MEASURED_REQUESTS);
+  }
+
+  private WidevineMediaDrmCallback buildCallback() {
+    WidevineMediaDrmCallback callback = new WidevineMediaDrmCallback(
+        licenseServer.getUrl(), transport.getDataSourceFactory(), customData);
+    callback.setCustomDataProvider(
+        data -> customData.encode("request-id", "{\"model\":\"host\"}"));
+    return callback;
+  }
+
+  private static KeyRequest buildKeyRequest() {
+    return new KeyRequest(KEY_REQUEST_DATA, /* licenseServerUrl= */ "");
+  }
+
+  private void measure(String name, int threadCount, int iterations, Operation operation) {
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    try {
+      run(executor, threadCount, Math.min(WARMUP_REQUESTS, iterations), operation,
+          /* histogram= */ null);
+      LatencyHistogram histogramUs = new LatencyHistogram();
+      Map<Long, Long> startAllocatedBytes = getAllocatedBytes();
+      long startNs = System.nanoTime();
+      run(executor, threadCount, iterations, operation, histogramUs);
+      long elapsedNs = System.nanoTime() - startNs;
+      // Read before the executor shuts down, as the bytes of terminated threads are not reported.
+      long allocatedBytes = getAllocatedBytesSince(startAllocatedBytes);
+      System.out.printf("%-30s %10.0f ops/s  p50 %7d us  p90 %7d us  p99 %7d us  %8d B/op%n",
+          name,
+          iterations * 1e9 / elapsedNs,
+          histogramUs.getPercentile(0.5),
+          histogramUs.getPercentile(0.9),
+          histogramUs.getPercentile(0.99),
+          allocatedBytes / iterations);
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static void run(ExecutorService executor, int threadCount, int iterations,
+      Operation operation, LatencyHistogram histogramUs) throws Exception {
+    List<Future<?>> futures = new ArrayList<>();
+    for (int thread = 0; thread < threadCount; thread++) {
+      int threadIterations = iterations / threadCount + (thread < iterations % threadCount ? 1 : 0);
+      futures.add(executor.submit(() -> {
+        for (int i = 0; i < threadIterations; i++) {
+          long startNs = System.nanoTime();
+          operation.run();
+          if (histogramUs != null) {
+            histogramUs.record((System.nanoTime() - startNs) / 1_000);
+          }
+        }
+        return null;
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+  }
+
+  /** Returns the bytes allocated so far by each live thread that is not a license server thread. */
+  private Map<Long, Long> getAllocatedBytes() {
+    com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long[] threadIds = threadBean.getAllThreadIds();
+    long[] allocatedBytes = threadBean.getThreadAllocatedBytes(threadIds);
+    Set<Long> serverThreadIds = licenseServer.getThreadIds();
+    Map<Long, Long> allocatedBytesByThread = new HashMap<>();
+    for (int i = 0; i < threadIds.length; i++) {
+      // Threads that terminated since they were listed report -1.
+      if (allocatedBytes[i] >= 0 && !serverThreadIds.contains(threadIds[i])) {
+        allocatedBytesByThread.put(threadIds[i], allocatedBytes[i]);
+      }
+    }
+    return allocatedBytesByThread;
+  }
+
+  /**
+   * Returns the bytes allocated since {@code startAllocatedBytes} by the threads that are still
+   * live, including threads started since.
+   */
+  private long getAllocatedBytesSince(Map<Long, Long> startAllocatedBytes) {
+    long allocatedBytes = 0;
+    for (Map.Entry<Long, Long> entry : getAllocatedBytes().entrySet()) {
+      Long startBytes = startAllocatedBytes.get(entry.getKey());
+      allocatedBytes += entry.getValue() - (startBytes != null ? startBytes : 0);
+    }
+    return allocatedBytes;
+  }
+
+  private interface Operation {
+    Object run() throws Exception;
+  }
+}
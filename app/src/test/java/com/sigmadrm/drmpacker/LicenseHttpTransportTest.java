@@ -0,0 +1,74 @@
+package com.sigmadrm.drmpacker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link LicenseHttpTransport} against a local mock license server.
+ */
+public class LicenseHttpTransportTest {
+
+  private MockWebServer licenseServer;
+
+  @Before
+  public void setUp() throws Exception {
+    licenseServer = new MockWebServer();
+    licenseServer.start();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    licenseServer.shutdown();
+  }
+
+  @Test
+  public void keyRequests_reusePooledConnection() throws Exception {
+    LicenseHttpTransport transport = new LicenseHttpTransport.Builder().build();
+    for (int i = 0; i < 3; i++) {
+      licenseServer.enqueue(new MockResponse().setBody("{\"license\":\"AAAA\"}"));
+    }
+
+    for (int i = 0; i < 3; i++) {
+      postKeyRequest(transport.getClient());
+    }
+
+    assertEquals(3, transport.getAcquiredConnectionCount());
+    assertEquals(1, transport.getNewConnectionCount());
+    assertEquals(2f / 3f, transport.getConnectionReuseRate(), 0.001f);
+    // The server numbers requests per connection, so the third request arrives as number 2.
+    licenseServer.takeRequest();
+    licenseServer.takeRequest();
+    assertEquals(2, licenseServer.takeRequest().getSequenceNumber());
+  }
+
+  @Test
+  public void reuseRate_isZeroBeforeFirstRequest() {
+    LicenseHttpTransport transport = new LicenseHttpTransport.Builder().build();
+
+    assertEquals(0f, transport.getConnectionReuseRate(), 0f);
+  }
+
+  private void postKeyRequest(OkHttpClient client) throws Exception {
+    Request request =
+        new Request.Builder()
+            .url(licenseServer.url("/license/verify/widevine"))
+            .post(RequestBody.create(new byte[16], MediaType.get("application/octet-stream")))
+            .build();
+    try (Response response = client.newCall(request).execute()) {
+      assertTrue(response.isSuccessful());
+      assertNotNull(response.body());
+      response.body().bytes();
+    }
+  }
+}
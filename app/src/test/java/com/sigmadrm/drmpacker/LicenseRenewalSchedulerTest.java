@@ -0,0 +1,320 @@
+package com.sigmadrm.drmpacker;
+
+import android.app.Application;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import androidx.media3.common.C;
+import androidx.media3.exoplayer.drm.ExoMediaDrm;
+import androidx.media3.exoplayer.drm.MediaDrmCallback;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link LicenseRenewalScheduler}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(application = Application.class)
+public class LicenseRenewalSchedulerTest {
+
+  private static final byte[] KEY_RESPONSE = {4, 5, 6};
+
+  private FakeScheduledExecutor executor;
+  private LicenseRenewalScheduler scheduler;
+  private final Map<String, String> keyStatus = new HashMap<>();
+  private final List<byte[]> providedResponses = new ArrayList<>();
+  private int keyRequestCount;
+
+  @Before
+  public void setUp() {
+    executor = new FakeScheduledExecutor();
+    // Without jitter, so that renewal times only depend on the remaining durations.
+    scheduler = new LicenseRenewalScheduler(C.WIDEVINE_UUID, executor, new Random() {
+      @Override
+      public double nextDouble() {
+        return 0;
+      }
+    });
+    keyStatus.put("LicenseDurationRemaining", "600");
+  }
+
+  @Test
+  public void longLicense_keepsFractionOfRemainingAsMargin() {
+    assertEquals(540_000, LicenseRenewalScheduler.getRenewalDelayMs(600_000, 0));
+  }
+
+  @Test
+  public void shortLicense_keepsMinimumMargin() {
+    assertEquals(30_000, LicenseRenewalScheduler.getRenewalDelayMs(60_000, 0));
+  }
+
+  @Test
+  public void jitter_movesRenewalEarlier() {
+    assertEquals(513_000, LicenseRenewalScheduler.getRenewalDelayMs(600_000, 0.5));
+  }
+
+  @Test
+  public void almostExpiredLicense_isRenewedAfterMinimumDelay() {
+    assertEquals(LicenseRenewalScheduler.MIN_DELAY_MS,
+        LicenseRenewalScheduler.getRenewalDelayMs(10_000, 0.5));
+  }
+
+  @Test
+  public void remaining_isEarlierOfLicenseAndPlaybackDuration() {
+    Map<String, String> keyStatus = new HashMap<>();
+    keyStatus.put("LicenseDurationRemaining", "3600");
+    keyStatus.put("PlaybackDurationRemaining", "600");
+    assertEquals(600_000, LicenseRenewalScheduler.getRemainingMs(keyStatus));
+  }
+
+  @Test
+  public void unlimitedOrUnknownDuration_isUnset() {
+    Map<String, String> keyStatus = new HashMap<>();
+    assertEquals(C.TIME_UNSET, LicenseRenewalScheduler.getRemainingMs(keyStatus));
+    keyStatus.put("LicenseDurationRemaining", String.valueOf(Long.MAX_VALUE));
+    keyStatus.put("PlaybackDurationRemaining", "0");
+    assertEquals(C.TIME_UNSET, LicenseRenewalScheduler.getRemainingMs(keyStatus));
+  }
+
+  @Test
+  public void sessionsWithSameExpiry_areRenewedMinSpacingApart() {
+    DrmSessionTracker.SessionListener listener =
+        scheduler.createSessionListener(createCallback(/* onKeyRequest= */ null));
+
+    for (int i = 0; i < 3; i++) {
+      listener.onKeysLoaded(createMediaDrm(), new byte[] {(byte) i});
+    }
+
+    assertEquals(3, executor.scheduledTasks.size());
+    assertEquals(540_000, executor.scheduledTasks.get(0).delayMs);
+    assertEquals(540_000 - LicenseRenewalScheduler.MIN_SPACING_MS,
+        executor.scheduledTasks.get(1).delayMs);
+    assertEquals(540_000 - 2 * LicenseRenewalScheduler.MIN_SPACING_MS,
+        executor.scheduledTasks.get(2).delayMs);
+  }
+
+  @Test
+  public void closedSession_cancelsRenewal() {
+    DrmSessionTracker.SessionListener listener =
+        scheduler.createSessionListener(createCallback(/* onKeyRequest= */ null));
+    byte[] sessionId = {1};
+    listener.onKeysLoaded(createMediaDrm(), sessionId);
+
+    listener.onSessionClosed(sessionId);
+
+    FakeScheduledFuture renewal = executor.scheduledTasks.get(0);
+    assertTrue(renewal.isCancelled());
+    // A renewal that started before the cancellation makes no request.
+    renewal.task.run();
+    assertEquals(0, keyRequestCount);
+  }
+
+  @Test
+  public void responseAfterClose_isDropped() {
+    byte[] sessionId = {1};
+    List<DrmSessionTracker.SessionListener> listeners = new ArrayList<>();
+    DrmSessionTracker.SessionListener listener = scheduler.createSessionListener(
+        createCallback(() -> listeners.get(0).onSessionClosed(sessionId)));
+    listeners.add(listener);
+    listener.onKeysLoaded(createMediaDrm(), sessionId);
+
+    executor.scheduledTasks.get(0).task.run();
+
+    assertEquals(1, keyRequestCount);
+    assertTrue(providedResponses.isEmpty());
+    assertEquals(1, executor.scheduledTasks.size());
+  }
+
+  @Test
+  public void failedRenewal_isScheduledAgain() {
+    DrmSessionTracker.SessionListener listener = scheduler.createSessionListener(createCallback(
+        () -> {
+          throw new IllegalStateException("License server unavailable");
+        }));
+    listener.onKeysLoaded(createMediaDrm(), new byte[] {1});
+    // The renewal is due, a minute before expiry.
+    keyStatus.put("LicenseDurationRemaining", "60");
+
+    executor.scheduledTasks.get(0).task.run();
+
+    assertEquals(1, keyRequestCount);
+    assertTrue(providedResponses.isEmpty());
+    assertEquals(2, executor.scheduledTasks.size());
+    assertEquals(30_000, executor.scheduledTasks.get(1).delayMs);
+  }
+
+  @Test
+  public void successfulRenewal_providesResponseAndIsScheduledAgain() {
+    DrmSessionTracker.SessionListener listener =
+        scheduler.createSessionListener(createCallback(/* onKeyRequest= */ null));
+    listener.onKeysLoaded(createMediaDrm(), new byte[] {1});
+
+    executor.scheduledTasks.get(0).task.run();
+
+    assertEquals(1, providedResponses.size());
+    assertArrayEquals(KEY_RESPONSE, providedResponses.get(0));
+    assertEquals(2, executor.scheduledTasks.size());
+  }
+
+  /** Returns a callback that runs {@code onKeyRequest}, if any, before it answers a key request. */
+  private MediaDrmCallback createCallback(Runnable onKeyRequest) {
+    return new MediaDrmCallback() {
+      @Override
+      public byte[] executeProvisionRequest(UUID uuid, ExoMediaDrm.ProvisionRequest request) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public byte[] executeKeyRequest(UUID uuid, ExoMediaDrm.KeyRequest request) {
+        keyRequestCount++;
+        if (onKeyRequest != null) {
+          onKeyRequest.run();
+        }
+        return KEY_RESPONSE.clone();
+      }
+    };
+  }
+
+  /** Returns a DRM whose sessions report {@link #keyStatus}. */
+  private ExoMediaDrm createMediaDrm() {
+    return (ExoMediaDrm) Proxy.newProxyInstance(ExoMediaDrm.class.getClassLoader(),
+        new Class<?>[] {ExoMediaDrm.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "queryKeyStatus":
+              return new HashMap<>(keyStatus);
+            case "getKeyRequest":
+              return new ExoMediaDrm.KeyRequest(new byte[] {1, 2, 3}, "");
+            case "provideKeyResponse":
+              providedResponses.add((byte[]) args[1]);
+              return null;
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  /** Runs tasks inline and records scheduled tasks, which the tests run themselves. */
+  private static final class FakeScheduledExecutor extends AbstractExecutorService
+      implements ScheduledExecutorService {
+
+    private final List<FakeScheduledFuture> scheduledTasks = new ArrayList<>();
+
+    @Override
+    public void execute(Runnable command) {
+      command.run();
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+      FakeScheduledFuture future = new FakeScheduledFuture(command, unit.toMillis(delay));
+      scheduledTasks.add(future);
+      return future;
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay,
+        long period, TimeUnit unit) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay,
+        long delay, TimeUnit unit) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void shutdown() {}
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return false;
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return false;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+      return false;
+    }
+  }
+
+  private static final class FakeScheduledFuture implements ScheduledFuture<Object> {
+
+    private final Runnable task;
+    private final long delayMs;
+    private boolean cancelled;
+
+    public FakeScheduledFuture(Runnable task, long delayMs) {
+      this.task = task;
+      this.delayMs = delayMs;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+      return Long.compare(delayMs, other.getDelay(TimeUnit.MILLISECONDS));
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      cancelled = true;
+      return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+      return cancelled;
+    }
+
+    @Override
+    public Object get() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object get(long timeout, TimeUnit unit) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
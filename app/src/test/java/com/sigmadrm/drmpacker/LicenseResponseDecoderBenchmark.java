@@ -0,0 +1,71 @@
+package com.sigmadrm.drmpacker;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Base64;
+import java.util.Random;
+
+import org.json.JSONObject;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Compares {@link LicenseResponseDecoder} with the previous decoding of key responses, which read
+ * the body into an array, built a string and a {@link JSONObject} and then Base64 decoded the
+ * license field.
+ *
+ * <p>Skipped unless the build is run with {@code -Pbenchmark=true}.
+ */
+public class LicenseResponseDecoderBenchmark {
+
+  private static final int WARMUP_ITERATIONS = 20_000;
+  private static final int MEASURED_ITERATIONS = 100_000;
+
+  @Test
+  public void compareWithJsonObjectDecoding() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+    byte[] license = new byte[2_048];
+    new Random(/* seed= */ 0).nextBytes(license);
+    byte[] response =
+        ("{\"license\":\"" + Base64.getEncoder().encodeToString(license) + "\"}").getBytes();
+
+    run("JSONObject", () -> decodeWithJsonObject(new ByteArrayInputStream(response)));
+    run("LicenseResponseDecoder", () -> LicenseResponseDecoder.decode(
+        new ByteArrayInputStream(response), "application/json", response.length));
+  }
+
+  private static byte[] decodeWithJsonObject(InputStream inputStream) throws Exception {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int bytesRead;
+    while ((bytesRead = inputStream.read(buffer)) != -1) {
+      outputStream.write(buffer, 0, bytesRead);
+    }
+    JSONObject jsonObject = new JSONObject(new String(outputStream.toByteArray()));
+    return Base64.getMimeDecoder().decode(jsonObject.getString("license"));
+  }
+
+  private static void run(String name, Decoder decoder) throws Exception {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      decoder.decode();
+    }
+    com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+    long startBytes = threadBean.getThreadAllocatedBytes(threadId);
+    long startNs = System.nanoTime();
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      decoder.decode();
+    }
+    long elapsedNs = System.nanoTime() - startNs;
+    long allocatedBytes = threadBean.getThreadAllocatedBytes(threadId) - startBytes;
+    System.out.printf("%-24s %8.0f ns/op %8d B/op%n", name,
+        (double) elapsedNs / MEASURED_ITERATIONS, allocatedBytes / MEASURED_ITERATIONS);
+  }
+
+  private interface Decoder {
+    byte[] decode() throws Exception;
+  }
+}
@@ -0,0 +1,127 @@
+package com.sigmadrm.drmpacker;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+import androidx.media3.common.C;
+import androidx.media3.common.ParserException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link LicenseResponseDecoder}.
+ */
+public class LicenseResponseDecoderTest {
+
+  private static final byte[] LICENSE = buildLicense(1_000);
+
+  @Test
+  public void jsonEnvelope_decodesLicenseField() throws Exception {
+    String body = "{\"status\":\"ok\", \"license\" : \""
+        + Base64.getEncoder().encodeToString(LICENSE) + "\", \"expires\":3600}";
+
+    assertArrayEquals(LICENSE, decode(body, "application/json; charset=utf-8"));
+  }
+
+  @Test
+  public void jsonEnvelope_handlesEscapedSlashesAndLineBreaks() throws Exception {
+    String base64 = Base64.getMimeEncoder().encodeToString(LICENSE)
+        .replace("/", "\\/")
+        .replace("\r\n", "\\n");
+    String body = "{\"license\":\"" + base64 + "\"}";
+
+    assertArrayEquals(LICENSE, decode(body, "application/json"));
+  }
+
+  @Test
+  public void jsonEnvelope_skipsLicenseAsValue() throws Exception {
+    String body = "{\"type\":\"license\",\"license\":\""
+        + Base64.getEncoder().encodeToString(LICENSE) + "\"}";
+
+    assertArrayEquals(LICENSE, decode(body, /* contentType= */ null));
+  }
+
+  @Test
+  public void binaryContentType_returnsBodyAsIs() throws Exception {
+    byte[] decoded = LicenseResponseDecoder.decode(
+        new ByteArrayInputStream(LICENSE), "application/octet-stream", LICENSE.length);
+
+    assertArrayEquals(LICENSE, decoded);
+  }
+
+  @Test
+  public void unknownContentType_sniffsBinaryBody() throws Exception {
+    byte[] body = LICENSE.clone();
+    body[0] = 0x08;
+
+    byte[] decoded =
+        LicenseResponseDecoder.decode(new ByteArrayInputStream(body), null, C.LENGTH_UNSET);
+
+    assertArrayEquals(body, decoded);
+  }
+
+  @Test
+  public void unknownContentType_keepsWhitespaceReadBeforeBinaryBody() throws Exception {
+    byte[] body = LICENSE.clone();
+    body[0] = '\n';
+    body[1] = ' ';
+    body[2] = 0x08;
+
+    // The first read returns only the whitespace bytes.
+    byte[] decoded = LicenseResponseDecoder.decode(
+        new ChunkedInputStream(body, /* firstChunkSize= */ 2), null, C.LENGTH_UNSET);
+
+    assertArrayEquals(body, decoded);
+  }
+
+  @Test
+  public void unknownContentType_skipsWhitespaceReadBeforeJsonBody() throws Exception {
+    byte[] body = ("\n  {\"license\":\"" + Base64.getEncoder().encodeToString(LICENSE) + "\"}")
+        .getBytes(StandardCharsets.UTF_8);
+
+    byte[] decoded = LicenseResponseDecoder.decode(
+        new ChunkedInputStream(body, /* firstChunkSize= */ 3), null, C.LENGTH_UNSET);
+
+    assertArrayEquals(LICENSE, decoded);
+  }
+
+  @Test(expected = ParserException.class)
+  public void jsonWithoutLicense_throwsParserException() throws Exception {
+    decode("{\"error\":\"denied\"}", "application/json");
+  }
+
+  private static byte[] decode(String body, String contentType) throws Exception {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    return LicenseResponseDecoder.decode(new ByteArrayInputStream(bytes), contentType, bytes.length);
+  }
+
+  /** Returns {@code firstChunkSize} bytes from its first read, like a slow network would. */
+  private static final class ChunkedInputStream extends ByteArrayInputStream {
+
+    private int firstChunkSize;
+
+    public ChunkedInputStream(byte[] data, int firstChunkSize) {
+      super(data);
+      this.firstChunkSize = firstChunkSize;
+    }
+
+    @Override
+    public synchronized int read(byte[] buffer, int offset, int length) {
+      if (firstChunkSize > 0) {
+        length = Math.min(length, firstChunkSize);
+        firstChunkSize = 0;
+      }
+      return super.read(buffer, offset, length);
+    }
+  }
+
+  private static byte[] buildLicense(int length) {
+    byte[] license = new byte[length];
+    new Random(/* seed= */ 0).nextBytes(license);
+    return license;
+  }
+}
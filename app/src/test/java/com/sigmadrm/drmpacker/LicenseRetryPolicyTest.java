@@ -0,0 +1,64 @@
+package com.sigmadrm.drmpacker;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+import androidx.media3.common.C;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link LicenseRetryPolicy}.
+ */
+public class LicenseRetryPolicyTest {
+
+  @Test
+  public void networkError_isRetriedWithExponentialBackoff() {
+    LicenseRetryPolicy policy =
+        new LicenseRetryPolicy.Builder()
+            .setMaxAttempts(4)
+            .setInitialBackoffMs(100)
+            .setJitterFraction(0)
+            .build();
+    IOException error = new SocketTimeoutException();
+
+    assertEquals(100, policy.getRetryDelayMs(error, 1, 10_000));
+    assertEquals(200, policy.getRetryDelayMs(error, 2, 10_000));
+    assertEquals(400, policy.getRetryDelayMs(error, 3, 10_000));
+    assertEquals(C.TIME_UNSET, policy.getRetryDelayMs(error, 4, 10_000));
+  }
+
+  @Test
+  public void jitter_staysWithinBackoff() {
+    LicenseRetryPolicy policy =
+        new LicenseRetryPolicy.Builder()
+            .setInitialBackoffMs(1_000)
+            .setJitterFraction(0.5f)
+            .setRandom(new Random(/* seed= */ 0))
+            .build();
+
+    for (int i = 0; i < 100; i++) {
+      long delayMs = policy.getRetryDelayMs(new SocketTimeoutException(), 1, 10_000);
+      assertTrue(delayMs >= 500 && delayMs <= 1_000);
+    }
+  }
+
+  @Test
+  public void nonNetworkError_isFatal() {
+    LicenseRetryPolicy policy = new LicenseRetryPolicy.Builder().build();
+
+    assertFalse(LicenseRetryPolicy.isRetriable(new IllegalStateException()));
+    assertEquals(C.TIME_UNSET, policy.getRetryDelayMs(new IllegalStateException(), 1, 10_000));
+  }
+
+  @Test
+  public void retry_neverExceedsDeadline() {
+    LicenseRetryPolicy policy =
+        new LicenseRetryPolicy.Builder().setInitialBackoffMs(500).setJitterFraction(0).build();
+
+    assertEquals(C.TIME_UNSET, policy.getRetryDelayMs(new SocketTimeoutException(), 1, 400));
+  }
+}
@@ -0,0 +1,72 @@
+package com.sigmadrm.drmpacker;
+
+import androidx.media3.common.Format;
+import androidx.media3.common.MimeTypes;
+import androidx.media3.common.TrackGroup;
+import androidx.media3.exoplayer.Renderer;
+import androidx.media3.exoplayer.trackselection.ExoTrackSelection;
+import androidx.media3.exoplayer.trackselection.FixedTrackSelection;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link MemoryAwareLoadControl}.
+ */
+public class MemoryAwareLoadControlTest {
+
+  @Test
+  public void profile_followsMemoryClass() {
+    assertSame(MemoryAwareLoadControl.Profile.LOW,
+        MemoryAwareLoadControl.Profile.forMemoryClass(128, /* isLowRamDevice= */ false));
+    assertSame(MemoryAwareLoadControl.Profile.LOW,
+        MemoryAwareLoadControl.Profile.forMemoryClass(512, /* isLowRamDevice= */ true));
+    assertSame(MemoryAwareLoadControl.Profile.MEDIUM,
+        MemoryAwareLoadControl.Profile.forMemoryClass(192, /* isLowRamDevice= */ false));
+    assertSame(MemoryAwareLoadControl.Profile.HIGH,
+        MemoryAwareLoadControl.Profile.forMemoryClass(512, /* isLowRamDevice= */ false));
+  }
+
+  @Test
+  public void targetBufferBytes_holdsMaxBufferAtSelectedBitrate() {
+    MemoryAwareLoadControl loadControl =
+        new MemoryAwareLoadControl(MemoryAwareLoadControl.Profile.MEDIUM, /* memoryClassMb= */ 256);
+
+    int targetBytes = loadControl.calculateTargetBufferBytes(
+        new Renderer[2], new ExoTrackSelection[] {
+            buildSelection(MimeTypes.VIDEO_H264, 4_000_000),
+            buildSelection(MimeTypes.AUDIO_AAC, 128_000)});
+
+    // 4.128 Mbit/s for 50 seconds with 25% headroom.
+    assertEquals(32_250_000, targetBytes);
+  }
+
+  @Test
+  public void targetBufferBytes_isCappedByHeapBudget() {
+    MemoryAwareLoadControl loadControl =
+        new MemoryAwareLoadControl(MemoryAwareLoadControl.Profile.LOW, /* memoryClassMb= */ 96);
+
+    int targetBytes = loadControl.calculateTargetBufferBytes(
+        new Renderer[1], new ExoTrackSelection[] {buildSelection(MimeTypes.VIDEO_H265, 25_000_000)});
+
+    assertEquals(96 * 1024 * 1024 / 4, targetBytes);
+  }
+
+  @Test
+  public void targetBufferBytes_isCappedBySplitHeapBudget() {
+    MemoryAwareLoadControl loadControl = new MemoryAwareLoadControl(
+        MemoryAwareLoadControl.Profile.HIGH, /* memoryClassMb= */ 512, /* playerCount= */ 4);
+
+    int targetBytes = loadControl.calculateTargetBufferBytes(
+        new Renderer[1], new ExoTrackSelection[] {buildSelection(MimeTypes.VIDEO_H265, 25_000_000)});
+
+    assertEquals(512 * 1024 * 1024 / 2 / 4, targetBytes);
+  }
+
+  private static ExoTrackSelection buildSelection(String sampleMimeType, int bitrate) {
+    Format format =
+        new Format.Builder().setSampleMimeType(sampleMimeType).setAverageBitrate(bitrate).build();
+    return new FixedTrackSelection(new TrackGroup(format), /* track= */ 0);
+  }
+}
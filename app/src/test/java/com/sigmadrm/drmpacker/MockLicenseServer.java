@@ -0,0 +1,135 @@
+package com.sigmadrm.drmpacker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+/**
+ * An in-process license server that replays key responses, such as the fixtures of {@link
+ * #loadResponses()}, with optional injected latency and errors.
+ */
+final class MockLicenseServer implements Closeable {
+
+  private final MockWebServer server;
+  private final List<byte[]> responses;
+  private final AtomicInteger requestCount;
+  private final Set<Long> threadIds;
+  private final Random random;
+
+  private volatile long latencyMs;
+  private volatile long latencyJitterMs;
+  private volatile double errorRate;
+  private volatile int errorCode;
+
+  /** @param responses The response bodies, replayed in order. */
+  public MockLicenseServer(List<byte[]> responses) throws IOException {
+    this.responses = responses;
+    requestCount = new AtomicInteger();
+    threadIds = ConcurrentHashMap.newKeySet();
+    random = new Random(/* seed= */ 0);
+    errorCode = 503;
+    server = new MockWebServer();
+    server.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        threadIds.add(Thread.currentThread().getId());
+        return nextResponse();
+      }
+    });
+    server.start();
+  }
+
+  /**
+   * Returns the key response fixtures listed by {@code license/responses.txt} in the test
+   * resources, in the order listed.
+   */
+  public static List<byte[]> loadResponses() throws IOException {
+    List<byte[]> responses = new ArrayList<>();
+    for (String name : new String(readResource("license/responses.txt"), "UTF-8").split("\n")) {
+      if (!name.trim().isEmpty()) {
+        responses.add(readResource("license/" + name.trim()));
+      }
+    }
+    return responses;
+  }
+
+  /** Delays every response by {@code latencyMs} plus a uniformly random {@code jitterMs}. */
+  public void setLatency(long latencyMs, long jitterMs) {
+    this.latencyMs = latencyMs;
+    this.latencyJitterMs = jitterMs;
+  }
+
+  /** Fails a fraction {@code errorRate} of the requests with HTTP status {@code errorCode}. */
+  public void setErrors(double errorRate, int errorCode) {
+    this.errorRate = errorRate;
+    this.errorCode = errorCode;
+  }
+
+  /** Returns the URL of the license endpoint. */
+  public String getUrl() {
+    return server.url("/license/verify/widevine").toString();
+  }
+
+  /** Returns the number of requests received so far. */
+  public int getRequestCount() {
+    return requestCount.get();
+  }
+
+  /** Returns the ids of the threads that served requests so far. */
+  public Set<Long> getThreadIds() {
+    return threadIds;
+  }
+
+  @Override
+  public void close() throws IOException {
+    server.shutdown();
+  }
+
+  private MockResponse nextResponse() {
+    int index = requestCount.getAndIncrement();
+    long delayMs;
+    boolean fail;
+    synchronized (random) {
+      delayMs = latencyMs + (long) (random.nextDouble() * latencyJitterMs);
+      fail = errorRate > 0 && random.nextDouble() < errorRate;
+    }
+    MockResponse response = fail
+        ? new MockResponse().setResponseCode(errorCode)
+        : new MockResponse()
+            .setHeader("Content-Type", "application/json")
+            .setBody(new Buffer().write(responses.get(index % responses.size())));
+    return response.setHeadersDelay(delayMs, TimeUnit.MILLISECONDS);
+  }
+
+  private static byte[] readResource(String name) throws IOException {
+    InputStream inputStream = MockLicenseServer.class.getClassLoader().getResourceAsStream(name);
+    if (inputStream == null) {
+      throw new IOException("Missing test resource " + name);
+    }
+    try {
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int bytesRead;
+      while ((bytesRead = inputStream.read(buffer)) != -1) {
+        outputStream.write(buffer, 0, bytesRead);
+      }
+      return outputStream.toByteArray();
+    } finally {
+      inputStream.close();
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package com.sigmadrm.drmpacker;
+
+import androidx.media3.common.Format;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the division of the decoder budget between the tiles of a {@link
+ * MultiViewPipeline}.
+ */
+public class MultiViewPipelineTest {
+
+  @Test
+  public void singleTile_getsWholeDecoder() {
+    assertArrayEquals(new int[] {1920, 1080},
+        MultiViewPipeline.getMaxTileVideoSize(1920, 1080, /* tileCount= */ 1));
+  }
+
+  @Test
+  public void fourTiles_getQuarterOfDecoderEach() {
+    assertArrayEquals(new int[] {960, 540},
+        MultiViewPipeline.getMaxTileVideoSize(1920, 1080, /* tileCount= */ 4));
+    assertArrayEquals(new int[] {1920, 1080},
+        MultiViewPipeline.getMaxTileVideoSize(3840, 2160, /* tileCount= */ 4));
+  }
+
+  @Test
+  public void unevenTileCount_keepsAspectRatio() {
+    int[] size = MultiViewPipeline.getMaxTileVideoSize(1920, 1080, /* tileCount= */ 3);
+    assertEquals(1108, size[0]);
+    assertEquals(623, size[1]);
+  }
+
+  @Test
+  public void unknownDecoder_isUnbounded() {
+    assertArrayEquals(new int[] {Integer.MAX_VALUE, Integer.MAX_VALUE},
+        MultiViewPipeline.getMaxTileVideoSize(Format.NO_VALUE, Format.NO_VALUE, 4));
+  }
+
+  @Test
+  public void budgetsOfSeveralMimeTypes_intersect() {
+    MultiViewPipeline.DecoderBudget budget = new MultiViewPipeline.DecoderBudget(3840, 2160, 4)
+        .intersect(new MultiViewPipeline.DecoderBudget(1920, 1088, 16));
+
+    assertEquals(1920, budget.maxWidth);
+    assertEquals(1088, budget.maxHeight);
+    assertEquals(4, budget.maxInstances);
+  }
+
+  @Test
+  public void unknownLimits_doNotTightenIntersection() {
+    MultiViewPipeline.DecoderBudget budget = new MultiViewPipeline.DecoderBudget(1920, 1080, 4)
+        .intersect(MultiViewPipeline.DecoderBudget.UNKNOWN);
+
+    assertEquals(1920, budget.maxWidth);
+    assertEquals(1080, budget.maxHeight);
+    assertEquals(4, budget.maxInstances);
+  }
+}
@@ -0,0 +1,89 @@
+package com.sigmadrm.drmpacker;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the file retention of {@link PlaybackMetricsExporter}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PlaybackMetricsExporterTest {
+
+  private static final long DAY_MS = 24 * 60 * 60 * 1000;
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private File directory;
+  private long nowMs;
+
+  @Before
+  public void setUp() {
+    directory = temporaryFolder.getRoot();
+    nowMs = System.currentTimeMillis();
+  }
+
+  @Test
+  public void export_keepsNewestFilesUpToMaxCount() throws Exception {
+    for (int i = 1; i <= 5; i++) {
+      createFile("playback-metrics-" + i + ".json", nowMs - (6 - i) * 60_000);
+    }
+    PlaybackMetricsExporter exporter = new PlaybackMetricsExporter(
+        directory, /* maxFileCount= */ 3, PlaybackMetricsExporter.DEFAULT_MAX_FILE_AGE_MS);
+
+    File file = exporter.export(new PlaybackMetrics().getSnapshot());
+
+    assertEquals(
+        new HashSet<>(Arrays.asList(
+            file.getName(), "playback-metrics-4.json", "playback-metrics-5.json")),
+        listFileNames());
+  }
+
+  @Test
+  public void export_deletesExpiredAndLeftoverFiles() throws Exception {
+    createFile("playback-metrics-1.json", nowMs - 3 * DAY_MS);
+    createFile("playback-metrics-2.json", nowMs - DAY_MS / 2);
+    createFile("playback-metrics-3.json.tmp", nowMs - DAY_MS / 2);
+    createFile("other.json", nowMs - 3 * DAY_MS);
+    PlaybackMetricsExporter exporter = new PlaybackMetricsExporter(
+        directory, PlaybackMetricsExporter.DEFAULT_MAX_FILE_COUNT, /* maxFileAgeMs= */ DAY_MS);
+
+    File file = exporter.export(new PlaybackMetrics().getSnapshot());
+
+    assertEquals(
+        new HashSet<>(Arrays.asList(file.getName(), "playback-metrics-2.json", "other.json")),
+        listFileNames());
+  }
+
+  @Test
+  public void repeatedExport_replacesOwnFile() throws Exception {
+    PlaybackMetricsExporter exporter = new PlaybackMetricsExporter(
+        directory, /* maxFileCount= */ 1, PlaybackMetricsExporter.DEFAULT_MAX_FILE_AGE_MS);
+
+    File file = exporter.export(new PlaybackMetrics().getSnapshot());
+    exporter.export(new PlaybackMetrics().getSnapshot());
+
+    assertTrue(file.exists());
+    assertEquals(new HashSet<>(Arrays.asList(file.getName())), listFileNames());
+  }
+
+  private void createFile(String name, long lastModifiedMs) throws Exception {
+    File file = new File(directory, name);
+    assertTrue(file.createNewFile());
+    assertTrue(file.setLastModified(lastModifiedMs));
+  }
+
+  private Set<String> listFileNames() {
+    return new HashSet<>(Arrays.asList(directory.list()));
+  }
+}
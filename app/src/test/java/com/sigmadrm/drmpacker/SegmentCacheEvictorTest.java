@@ -0,0 +1,108 @@
+package com.sigmadrm.drmpacker;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import androidx.media3.datasource.cache.Cache;
+import androidx.media3.datasource.cache.CacheSpan;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link SegmentCacheEvictor}.
+ */
+public class SegmentCacheEvictorTest {
+
+  private static final String REPRESENTATION = "https://cdn.test/title/video/720p/";
+
+  private final List<String> removedKeys = new ArrayList<>();
+  private SegmentCacheEvictor evictor;
+  private Cache cache;
+  private long timestamp;
+
+  @Test
+  public void overBudget_evictsLeastRecentlyUsedSegment() {
+    createEvictor(/* maxBytes= */ 250, /* prioritizedSegments= */ 0);
+
+    addSegment("seg-1.m4s");
+    addSegment("seg-2.m4s");
+    addSegment("seg-3.m4s");
+
+    assertEquals(Collections.singletonList(REPRESENTATION + "seg-1.m4s"), removedKeys);
+  }
+
+  @Test
+  public void overBudget_keepsFirstSegmentsOfRepresentation() {
+    createEvictor(/* maxBytes= */ 300, /* prioritizedSegments= */ 2);
+
+    addSegment("init.mp4");
+    addSegment("seg-1.m4s");
+    addSegment("seg-2.m4s");
+    addSegment("seg-3.m4s");
+
+    assertEquals(Collections.singletonList(REPRESENTATION + "seg-2.m4s"), removedKeys);
+  }
+
+  @Test
+  public void priority_followsSegmentPositionRatherThanOrderAdded() {
+    createEvictor(/* maxBytes= */ 250, /* prioritizedSegments= */ 2);
+
+    // As when the cache index is read after a restart, in no particular order.
+    addSegment("seg-5.m4s");
+    addSegment("seg-1.m4s");
+    addSegment("seg-2.m4s");
+
+    assertEquals(Collections.singletonList(REPRESENTATION + "seg-5.m4s"), removedKeys);
+  }
+
+  @Test
+  public void removedSegments_noLongerTakePriority() {
+    createEvictor(/* maxBytes= */ 250, /* prioritizedSegments= */ 1);
+    CacheSpan first = addSegment("seg-1.m4s");
+    addSegment("seg-7.m4s");
+
+    evictor.onSpanRemoved(cache, first);
+    addSegment("seg-8.m4s");
+    addSegment("seg-9.m4s");
+
+    // seg-7 is the first segment left in the cache, so seg-8 is evicted in its place.
+    assertEquals(Collections.singletonList(REPRESENTATION + "seg-8.m4s"), removedKeys);
+  }
+
+  @Test
+  public void segmentPosition_isLastNumberOfFileName() {
+    assertEquals(-1, SegmentCacheEvictor.getSegmentPosition(REPRESENTATION + "init.mp4"));
+    assertEquals(-1, SegmentCacheEvictor.getSegmentPosition(REPRESENTATION + "init-stream0.m4s"));
+    assertEquals(12, SegmentCacheEvictor.getSegmentPosition(REPRESENTATION + "seg-12.m4s"));
+    assertEquals(7, SegmentCacheEvictor.getSegmentPosition(
+        REPRESENTATION + "chunk-stream0-00007.m4s?token=abc.1"));
+    assertEquals(900_000, SegmentCacheEvictor.getSegmentPosition(REPRESENTATION + "900000"));
+    assertEquals(-1, SegmentCacheEvictor.getSegmentPosition(REPRESENTATION + "media.mp4"));
+  }
+
+  private void createEvictor(long maxBytes, int prioritizedSegments) {
+    evictor = new SegmentCacheEvictor(maxBytes, prioritizedSegments);
+    // The evictor only removes spans, which the cache reports back like SimpleCache does.
+    cache = (Cache) Proxy.newProxyInstance(Cache.class.getClassLoader(),
+        new Class<?>[] {Cache.class}, (proxy, method, args) -> {
+          if (!method.getName().equals("removeSpan")) {
+            throw new UnsupportedOperationException(method.getName());
+          }
+          CacheSpan span = (CacheSpan) args[0];
+          removedKeys.add(span.key);
+          evictor.onSpanRemoved((Cache) proxy, span);
+          return null;
+        });
+  }
+
+  private CacheSpan addSegment(String name) {
+    CacheSpan span = new CacheSpan(REPRESENTATION + name, /* position= */ 0, /* length= */ 100,
+        /* lastTouchTimestamp= */ ++timestamp, /* file= */ null);
+    evictor.onSpanAdded(cache, span);
+    return span;
+  }
+}
@@ -0,0 +1,293 @@
+package com.sigmadrm.drmpacker;
+
+import android.graphics.SurfaceTexture;
+import android.view.Surface;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import androidx.annotation.NonNull;
+import androidx.media3.common.C;
+import androidx.media3.common.PlaybackException;
+import androidx.media3.common.Player;
+import androidx.media3.common.util.Clock;
+import androidx.media3.exoplayer.ExoPlayer;
+import androidx.media3.exoplayer.Renderer;
+import androidx.media3.exoplayer.analytics.AnalyticsListener;
+import androidx.media3.exoplayer.drm.DefaultDrmSessionManager;
+import androidx.media3.exoplayer.source.LoadEventInfo;
+import androidx.media3.exoplayer.source.MediaLoadData;
+import androidx.media3.test.utils.FakeClock;
+import androidx.media3.test.utils.FakeExoMediaDrm;
+import androidx.media3.test.utils.FakeVideoRenderer;
+import androidx.media3.test.utils.robolectric.RobolectricUtil;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures the start of playback through the player wiring of {@link PlayerActivity}, {@link
+ * ExoplayerApplication#buildPlaylistPlayer}, with the DRM session manager and license callback of
+ * {@link ExoplayerApplication}.
+ *
+ * <p>The DASH fixtures are served by a {@link DashFixtureServer} and canned key responses by a
+ * {@link MockLicenseServer}, both in process. The renderers are fake video renderers that do not
+ * decode, and the CDM is a {@link FakeExoMediaDrm}. Every run uses new URLs, so it starts with cold
+ * manifest and segment caches. Reports the time from the start of the run to the manifest being
+ * loaded, the keys being loaded, the first media segment being loaded, the player being ready and
+ * the first frame being rendered.
+ *
+ * <p>The medians are written to {@code build/startup-benchmark.properties}. If the build is run
+ * with {@code -PstartupBaseline=<file>} naming the results of an earlier run, the benchmark fails
+ * when the median of a stage regressed by more than {@code -PstartupMaxRegression}, a fraction of
+ * the baseline that defaults to 0.2.
+ *
+ * <p>Skipped unless the build is run with {@code -Pbenchmark=true}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(application = ExoplayerApplication.class)
+public class StartupBenchmark {
+
+  private static final int WARMUP_RUNS = 5;
+  private static final int MEASURED_RUNS = 30;
+  private static final long RUN_TIMEOUT_MS = 10_000;
+  private static final String[] STAGES = {"manifest", "keys", "firstSegment", "ready", "firstFrame"};
+  private static final int STAGE_MANIFEST = 0;
+  private static final int STAGE_KEYS = 1;
+  private static final int STAGE_FIRST_SEGMENT = 2;
+  private static final int STAGE_READY = 3;
+  private static final int STAGE_FIRST_FRAME = 4;
+  /** Regressions smaller than this are noise, whatever the baseline. */
+  private static final long MIN_REGRESSION_US = 5_000;
+  private static final File RESULTS_FILE = new File("build/startup-benchmark.properties");
+
+  private DashFixtureServer fixtureServer;
+  private MockLicenseServer licenseServer;
+  private SigmaCustomData customData;
+  private int runCount;
+
+  @Before
+  public void setUp() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+    fixtureServer = new DashFixtureServer();
+    licenseServer = new MockLicenseServer(MockLicenseServer.loadResponses());
+    customData = new SigmaCustomData.Builder()
+        .setMerchantId("merchant")
+        .setAppId("app")
+        .setUserId("user")
+        .setSessionId("session")
+        .build();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (fixtureServer != null) {
+      fixtureServer.close();
+    }
+    if (licenseServer != null) {
+      licenseServer.close();
+    }
+  }
+
+  @Test
+  public void startup() throws Exception {
+    LatencyHistogram[] histogramsUs = measure();
+    Properties results = new Properties();
+    for (int stage = 0; stage < STAGES.length; stage++) {
+      results.setProperty(STAGES[stage], String.valueOf(histogramsUs[stage].getPercentile(0.5)));
+    }
+    writeResults(results);
+    checkRegressions(results);
+  }
+
+  @Test
+  public void startup_withLatency() throws Exception {
+    fixtureServer.setLatency(/* latencyMs= */ 20);
+    licenseServer.setLatency(/* latencyMs= */ 50, /* jitterMs= */ 0);
+    measure();
+  }
+
+  private LatencyHistogram[] measure() throws Exception {
+    for (int i = 0; i < WARMUP_RUNS; i++) {
+      run();
+    }
+    LatencyHistogram[] histogramsUs = new LatencyHistogram[STAGES.length];
+    for (int stage = 0; stage < STAGES.length; stage++) {
+      histogramsUs[stage] = new LatencyHistogram();
+    }
+    for (int i = 0; i < MEASURED_RUNS; i++) {
+      long[] stageTimesUs = run();
+      for (int stage = 0; stage < STAGES.length; stage++) {
+        histogramsUs[stage].record(stageTimesUs[stage]);
+      }
+    }
+    for (int stage = 0; stage < STAGES.length; stage++) {
+      System.out.printf("%-14s p50 %8.1f ms  p90 %8.1f ms  max %8.1f ms%n",
+          STAGES[stage],
+          histogramsUs[stage].getPercentile(0.5) / 1_000f,
+          histogramsUs[stage].getPercentile(0.9) / 1_000f,
+          histogramsUs[stage].getMax() / 1_000f);
+    }
+    return histogramsUs;
+  }
+
+  /** Plays the fixture until its first frame, and returns the time of each stage in microseconds. */
+  private long[] run() throws Exception {
+    ExoplayerApplication application = (ExoplayerApplication) RuntimeEnvironment.getApplication();
+    StageListener stageListener = new StageListener(System.nanoTime());
+    WidevineMediaDrmCallback callback =
+        application.buildMediaDrmCallback(licenseServer.getUrl(), customData);
+    callback.setCustomDataProvider(
+        data -> customData.encode("request-id", "{\"model\":\"host\"}"));
+    DefaultDrmSessionManager drmSessionManager = application.buildDrmSessionManager(
+        uuid -> new FakeExoMediaDrm.Builder().setEnforceValidKeyResponses(false).build(),
+        callback, /* multiSession= */ true);
+    // Advances the playback clock whenever the player waits, so that runs only take as long as
+    // loading and the license request.
+    FakeClock clock = new FakeClock(/* isAutoAdvancing= */ true);
+    // New URLs for every run, so that nothing is served from the caches of earlier runs.
+    String manifestUrl = fixtureServer.getManifestUrl("run-" + runCount++);
+    ExoplayerApplication.PlaylistPlayer playlistPlayer = application.buildPlaylistPlayer(
+        new String[] {manifestUrl},
+        drmSessionManager,
+        (eventHandler, videoListener, audioListener, textOutput, metadataOutput) ->
+            new Renderer[] {
+                new FakeVideoRenderer(
+                    clock.createHandler(eventHandler.getLooper(), /* callback= */ null),
+                    videoListener)
+            },
+        clock);
+    ExoPlayer player = playlistPlayer.player;
+    try {
+      player.addAnalyticsListener(stageListener);
+      player.setVideoSurface(new Surface(new SurfaceTexture(/* texName= */ 1)));
+      player.play();
+      RobolectricUtil.runMainLooperUntil(
+          () -> stageListener.isComplete() || player.getPlayerError() != null,
+          RUN_TIMEOUT_MS, Clock.DEFAULT);
+      PlaybackException error = player.getPlayerError();
+      if (error != null) {
+        throw error;
+      }
+      return stageListener.getStageTimesUs();
+    } finally {
+      player.release();
+    }
+  }
+
+  private static void writeResults(Properties results) throws Exception {
+    File directory = RESULTS_FILE.getParentFile();
+    if (directory != null && !directory.exists() && !directory.mkdirs()) {
+      throw new IllegalStateException("Cannot create " + directory);
+    }
+    try (OutputStream outputStream = new FileOutputStream(RESULTS_FILE)) {
+      results.store(outputStream, "Median time of each startup stage, in microseconds");
+    }
+    System.out.println("Results written to " + RESULTS_FILE.getAbsolutePath());
+  }
+
+  private static void checkRegressions(Properties results) throws Exception {
+    String baselinePath = System.getProperty("startupBaseline", "");
+    if (baselinePath.isEmpty()) {
+      return;
+    }
+    double maxRegression = Double.parseDouble(System.getProperty("startupMaxRegression", "0.2"));
+    Properties baseline = new Properties();
+    try (InputStream inputStream = new FileInputStream(baselinePath)) {
+      baseline.load(inputStream);
+    }
+    List<String> regressions = new ArrayList<>();
+    for (String stage : STAGES) {
+      String baselineValue = baseline.getProperty(stage);
+      if (baselineValue == null) {
+        continue;
+      }
+      long baselineUs = Long.parseLong(baselineValue);
+      long resultUs = Long.parseLong(results.getProperty(stage));
+      long allowedUs = baselineUs + Math.max(MIN_REGRESSION_US, (long) (baselineUs * maxRegression));
+      if (resultUs > allowedUs) {
+        regressions.add(String.format("%s: %.1f ms, baseline %.1f ms",
+            stage, resultUs / 1_000f, baselineUs / 1_000f));
+      }
+    }
+    if (!regressions.isEmpty()) {
+      fail("Startup regressed by more than " + (int) (maxRegression * 100) + "%: " + regressions);
+    }
+  }
+
+  /** Records when each stage of a run completed. Called on the main thread only. */
+  private static final class StageListener implements AnalyticsListener {
+
+    private final long startTimeNs;
+    private final long[] stageTimesNs;
+
+    private StageListener(long startTimeNs) {
+      this.startTimeNs = startTimeNs;
+      stageTimesNs = new long[STAGES.length];
+    }
+
+    @Override
+    public void onLoadCompleted(@NonNull EventTime eventTime, @NonNull LoadEventInfo loadEventInfo,
+        @NonNull MediaLoadData mediaLoadData) {
+      if (mediaLoadData.dataType == C.DATA_TYPE_MANIFEST) {
+        complete(STAGE_MANIFEST);
+      } else if (mediaLoadData.dataType == C.DATA_TYPE_MEDIA) {
+        complete(STAGE_FIRST_SEGMENT);
+      }
+    }
+
+    @Override
+    public void onDrmKeysLoaded(@NonNull EventTime eventTime) {
+      complete(STAGE_KEYS);
+    }
+
+    @Override
+    public void onPlaybackStateChanged(@NonNull EventTime eventTime, int state) {
+      if (state == Player.STATE_READY) {
+        complete(STAGE_READY);
+      }
+    }
+
+    @Override
+    public void onRenderedFirstFrame(@NonNull EventTime eventTime, @NonNull Object output,
+        long renderTimeMs) {
+      complete(STAGE_FIRST_FRAME);
+    }
+
+    public boolean isComplete() {
+      for (long stageTimeNs : stageTimesNs) {
+        if (stageTimeNs == 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    public long[] getStageTimesUs() {
+      long[] stageTimesUs = new long[STAGES.length];
+      for (int stage = 0; stage < STAGES.length; stage++) {
+        stageTimesUs[stage] = (stageTimesNs[stage] - startTimeNs) / 1_000;
+      }
+      return stageTimesUs;
+    }
+
+    private void complete(int stage) {
+      if (stageTimesNs[stage] == 0) {
+        stageTimesNs[stage] = System.nanoTime();
+      }
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package com.sigmadrm.drmpacker;
+
+import android.app.Application;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import androidx.media3.common.C;
+import androidx.media3.datasource.DefaultHttpDataSource;
+import androidx.media3.exoplayer.drm.ExoMediaDrm.KeyRequest;
+import androidx.media3.exoplayer.drm.MediaDrmCallbackException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the request executor of {@link WidevineMediaDrmCallback}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(application = Application.class)
+public class WidevineMediaDrmCallbackTest {
+
+  private static final String LICENSE_URL = "http://127.0.0.1:1/license";
+
+  private final CountDownLatch released = new CountDownLatch(1);
+
+  private ExecutorService requestExecutor;
+  private WidevineMediaDrmCallback callback;
+
+  @Before
+  public void setUp() {
+    requestExecutor = WidevineMediaDrmCallback.newRequestExecutor(/* maxThreads= */ 1);
+    callback = new WidevineMediaDrmCallback(LICENSE_URL, new DefaultHttpDataSource.Factory(),
+        new SigmaCustomData.Builder()
+            .setMerchantId("merchant")
+            .setAppId("app")
+            .setUserId("user")
+            .setSessionId("session")
+            .build());
+    callback.setCustomDataProvider(data -> "custom-data");
+    callback.setRequestExecutor(requestExecutor);
+    callback.setRetryPolicy(new LicenseRetryPolicy.Builder()
+        .setMaxAttempts(1)
+        .setTotalDeadlineMs(200)
+        .build());
+  }
+
+  @After
+  public void tearDown() {
+    released.countDown();
+    requestExecutor.shutdownNow();
+  }
+
+  @Test
+  public void keyRequest_withFullQueue_failsWithoutRunningOnCaller() throws Exception {
+    occupyExecutor(/* taskCount= */ 5);
+
+    try {
+      callback.executeKeyRequest(C.WIDEVINE_UUID, new KeyRequest(new byte[] {1}, ""));
+      fail();
+    } catch (MediaDrmCallbackException e) {
+      assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+  }
+
+  @Test
+  public void queuedKeyRequest_failsAtDeadline() throws Exception {
+    occupyExecutor(/* taskCount= */ 1);
+
+    long startTimeMs = System.currentTimeMillis();
+    try {
+      callback.executeKeyRequest(C.WIDEVINE_UUID, new KeyRequest(new byte[] {1}, ""));
+      fail();
+    } catch (MediaDrmCallbackException e) {
+      assertTrue(e.getCause() instanceof TimeoutException);
+    }
+    assertTrue(System.currentTimeMillis() - startTimeMs < 5_000);
+  }
+
+  /** Submits tasks that block until the test ends, filling the one thread and then its queue. */
+  private void occupyExecutor(int taskCount) {
+    for (int i = 0; i < taskCount; i++) {
+      requestExecutor.submit(() -> released.await(10, TimeUnit.SECONDS));
+    }
+  }
+}